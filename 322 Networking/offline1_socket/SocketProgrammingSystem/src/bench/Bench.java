@@ -0,0 +1,185 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// Shared by the benchmarks: the real server and the real client, each in its own JVM on this
+// classpath, the client driven through its menu by a script on stdin. So a benchmark measures
+// exactly what a user runs, and reads the numbers the client prints itself (printRate).
+// The server listens on ServerConfig.SERVER_PORT (6666), it must be free.
+class Bench {
+    private static final Pattern RATE = Pattern.compile("(Uploaded|Downloaded) (\\d+) bytes in ([\\d.]+) s \\(([\\d.]+) MB/s");
+
+    private Bench() {
+    }
+
+    //empty working directory for one benchmark (the server keeps server_data/ in it)
+    static Path workDir(String name) throws IOException {
+        return Files.createTempDirectory("bench-" + name + "-");
+    }
+
+    //starts the server in dir and waits until it accepts connections
+    static Process startServer(Path dir, String... args) throws IOException, InterruptedException {
+        List<String> command = java("server.server");
+        command.addAll(List.of(args));
+        Process server = new ProcessBuilder(command).directory(dir.toFile())
+            .redirectErrorStream(true).redirectOutput(dir.resolve("server.log").toFile()).start();
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline) {
+            if (!server.isAlive()) {
+                throw new IOException("Server exited, see " + dir.resolve("server.log"));
+            }
+            if (Files.readString(dir.resolve("server.log")).contains("Server is listening")) {
+                return server;
+            }
+            Thread.sleep(100);
+        }
+        server.destroy();
+        throw new IOException("Server did not start, see " + dir.resolve("server.log"));
+    }
+
+    static void stop(Process process) throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(5, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+        }
+    }
+
+    //runs one client session (script = what a user types, one answer per line) and returns its output
+    static String runClient(Path dir, int port, String script, String... args) throws IOException, InterruptedException {
+        List<String> command = java("client.Client");
+        command.add("localhost");
+        command.add(String.valueOf(port));
+        command.addAll(List.of(args));
+        Process client = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true).start();
+        try (OutputStream in = client.getOutputStream()) {
+            in.write(script.getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                output.append(line).append('\n');
+            }
+        }
+        if (!client.waitFor(10, TimeUnit.MINUTES)) {
+            client.destroyForcibly();
+        }
+        return output.toString();
+    }
+
+    //menu script: log in, upload file (public, not for a request), log out
+    static String uploadScript(String user, Path file) {
+        return user + "\n4\n" + file.toAbsolutePath() + "\npublic\nno\n9\n";
+    }
+
+    //menu script: log in, download owner's fileName to saveAs, log out
+    static String downloadScript(String user, String owner, String fileName, Path saveAs) {
+        return user + "\n5\n" + owner + "\n" + fileName + "\n" + saveAs.toAbsolutePath() + "\n9\n";
+    }
+
+    //MB/s of the first "Uploaded" / "Downloaded" line, -1 if the transfer didn't finish
+    static double rate(String output, String what) {
+        Matcher matcher = RATE.matcher(output);
+        while (matcher.find()) {
+            if (matcher.group(1).equals(what)) {
+                return Double.parseDouble(matcher.group(4));
+            }
+        }
+        return -1;
+    }
+
+    //size bytes of random (incompressible, never deduplicated) data
+    static Path randomFile(Path dir, String name, long size, long seed) throws IOException {
+        Path file = dir.resolve(name);
+        Random random = new Random(seed);
+        byte[] block = new byte[1024 * 1024];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    //"name=value" argument, or the default
+    static long arg(String[] args, String name, long otherwise) {
+        for (String arg : args) {
+            if (arg.startsWith(name + "=")) {
+                return Long.parseLong(arg.substring(name.length() + 1));
+            }
+        }
+        return otherwise;
+    }
+
+    static List<Integer> list(String[] args, String name, List<Integer> otherwise) {
+        for (String arg : args) {
+            if (arg.startsWith(name + "=")) {
+                List<Integer> values = new ArrayList<>();
+                for (String value : arg.substring(name.length() + 1).split(",")) {
+                    values.add(Integer.parseInt(value.trim()));
+                }
+                return values;
+            }
+        }
+        return otherwise;
+    }
+
+    static List<String> words(String[] args, String name, List<String> otherwise) {
+        for (String arg : args) {
+            if (arg.startsWith(name + "=")) {
+                return List.of(arg.substring(name.length() + 1).split(","));
+            }
+        }
+        return otherwise;
+    }
+
+    //"Threads" / "VmRSS" line of /proc/<pid>/status (Linux), "?" elsewhere
+    static String procStatus(Process process, String field) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(process.pid()), "status"))) {
+                if (line.startsWith(field + ":")) {
+                    return line.substring(field.length() + 1).trim();
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        return "?";
+    }
+
+    private static List<String> java(String mainClass) {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        List<String> classpath = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classpath.add(Path.of(entry).toAbsolutePath().toString()); // the child runs in another directory
+        }
+        command.add(String.join(File.pathSeparator, classpath));
+        command.add(mainClass);
+        return command;
+    }
+}
@@ -0,0 +1,99 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import models.FileMetadata;
+import server.FileCatalog;
+import server.IdAllocator;
+import utils.Protocol;
+
+// Lookup latency of the catalog indexes against the scan over every file they replaced, for
+// growing catalogs: own files (LIST_OWN_FILES), public files of others (LIST_PUBLIC_FILES) and
+// owner + name (UPLOAD_REQUEST). In memory only, no server, nothing written to disk.
+// The scans run over a ready made list, the cheapest a scan gets.
+//   java -cp <classes> bench.CatalogBenchmark [files=1000,10000,100000] [owners=N] [public=percent]
+public class CatalogBenchmark {
+    private static final int LOOKUPS = 2000;
+
+    // a lookup run LOOKUPS times, owner i % owners
+    private interface Lookup {
+        int run(int i);
+    }
+
+    private static volatile int sink; // results go here so the JIT can't drop the lookups
+
+    public static void main(String[] args) {
+        List<Integer> sizes = Bench.list(args, "files", List.of(1_000, 10_000, 100_000));
+        int owners = (int) Bench.arg(args, "owners", 500);
+        int publicPercent = (int) Bench.arg(args, "public", 10);
+
+        System.out.println(owners + " owners, " + publicPercent + "% public, microseconds per lookup (p50 / p99)");
+        System.out.println("   files   own index    own scan    public index   public scan   name index   name scan");
+        for (int size : sizes) {
+            FileCatalog catalog = new FileCatalog(new IdAllocator());
+            Random random = new Random(size);
+            for (int i = 0; i < size; i++) {
+                FileMetadata metadata = new FileMetadata("file" + i + ".bin", 1024, "user" + random.nextInt(owners),
+                    random.nextInt(100) < publicPercent ? Protocol.PUBLIC : Protocol.PRIVATE);
+                catalog.register(newID(i), metadata);
+            }
+            List<FileMetadata> all = catalog.getAll();
+
+            String ownIndex = time(i -> catalog.getFilesOwnedBy("user" + i % owners).size());
+            String ownScan = time(i -> {
+                String owner = "user" + i % owners;
+                int found = 0;
+                for (FileMetadata metadata : all) {
+                    if (metadata.getOwner().equals(owner)) found++;
+                }
+                return found;
+            });
+            String publicIndex = time(i -> catalog.getPublicFilesNotOwnedBy("user" + i % owners).size());
+            String publicScan = time(i -> {
+                String owner = "user" + i % owners;
+                int found = 0;
+                for (FileMetadata metadata : all) {
+                    if (Protocol.PUBLIC.equals(metadata.getAccessType()) && !metadata.getOwner().equals(owner)) found++;
+                }
+                return found;
+            });
+            String nameIndex = time(i -> {
+                FileMetadata metadata = all.get(i % all.size());
+                return catalog.find(metadata.getOwner(), metadata.getFileName()) != null ? 1 : 0;
+            });
+            String nameScan = time(i -> {
+                FileMetadata wanted = all.get(i % all.size());
+                for (FileMetadata metadata : all) {
+                    if (metadata.getOwner().equals(wanted.getOwner()) && metadata.getFileName().equals(wanted.getFileName())) {
+                        return 1;
+                    }
+                }
+                return 0;
+            });
+            System.out.printf("%8d %11s %11s %14s %13s %12s %11s%n", size,
+                ownIndex, ownScan, publicIndex, publicScan, nameIndex, nameScan);
+        }
+    }
+
+    private static String newID(int i) {
+        return IdAllocator.format(IdAllocator.FILE_PREFIX, i + 1);
+    }
+
+    //warms up, then times LOOKUPS calls one by one: "p50/p99" in microseconds
+    private static String time(Lookup lookup) {
+        int result = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            result += lookup.run(i);
+        }
+        long[] nanos = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            long start = System.nanoTime();
+            result += lookup.run(i);
+            nanos[i] = System.nanoTime() - start;
+        }
+        sink = result;
+        Arrays.sort(nanos);
+        return String.format("%.1f/%.1f", nanos[LOOKUPS / 2] / 1000.0, nanos[LOOKUPS * 99 / 100] / 1000.0);
+    }
+}
@@ -0,0 +1,142 @@
+package bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Local proxy that makes loopback look like a long link: every piece of data is forwarded delayMs
+// after it arrived (both directions, so the round trip grows by 2 * delayMs), in order, optionally
+// paced to bytesPerSec. Used by the benchmarks, also runnable on its own:
+//   java bench.DelayProxy listenPort targetHost targetPort delayMs [MB/s]
+public class DelayProxy implements Closeable {
+    private static final byte[] EOF = new byte[0];
+
+    private final ServerSocket listener;
+    private final String targetHost;
+    private final int targetPort;
+    private final long delayNanos;
+    private final long bytesPerSec; // 0 = no cap
+
+    private static class Piece {
+        final long due;
+        final byte[] data;
+
+        Piece(long due, byte[] data) {
+            this.due = due;
+            this.data = data;
+        }
+    }
+
+    public DelayProxy(int listenPort, String targetHost, int targetPort, long delayMs, long bytesPerSec) throws IOException {
+        this.listener = new ServerSocket(listenPort);
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.delayNanos = delayMs * 1_000_000;
+        this.bytesPerSec = bytesPerSec;
+        daemon(this::acceptLoop, "proxy-accept");
+    }
+
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        listener.close();
+    }
+
+    private void acceptLoop() {
+        while (!listener.isClosed()) {
+            try {
+                Socket client = listener.accept();
+                Socket server = new Socket(targetHost, targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                pipe(client, server);
+                pipe(server, client);
+            } catch (IOException e) {
+                if (!listener.isClosed()) {
+                    System.err.println("Proxy: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    //from -> to: one thread reads and stamps, one waits for the stamp and writes
+    private void pipe(Socket from, Socket to) {
+        BlockingQueue<Piece> queue = new LinkedBlockingQueue<>();
+        daemon(() -> {
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = from.getInputStream()) {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    queue.add(new Piece(System.nanoTime() + delayNanos, Arrays.copyOf(buffer, read)));
+                }
+            } catch (IOException ignored) {
+            }
+            queue.add(new Piece(System.nanoTime() + delayNanos, EOF));
+        }, "proxy-read");
+        daemon(() -> {
+            long free = 0; // when the paced link can take the next byte
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Piece piece = queue.take();
+                    long sendAt = Math.max(piece.due, free);
+                    sleepUntil(sendAt);
+                    if (piece.data == EOF) {
+                        break;
+                    }
+                    out.write(piece.data);
+                    if (bytesPerSec > 0) {
+                        free = sendAt + piece.data.length * 1_000_000_000L / bytesPerSec;
+                    }
+                }
+                to.shutdownOutput();
+            } catch (IOException | InterruptedException ignored) {
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        }, "proxy-write");
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException {
+        long wait;
+        while ((wait = nanos - System.nanoTime()) > 0) {
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("usage: java bench.DelayProxy listenPort targetHost targetPort delayMs [MB/s]");
+            return;
+        }
+        long rate = args.length > 4 ? (long) (Double.parseDouble(args[4]) * 1024 * 1024) : 0;
+        try (DelayProxy proxy = new DelayProxy(Integer.parseInt(args[0]), args[1], Integer.parseInt(args[2]),
+                Long.parseLong(args[3]), rate)) {
+            System.out.println("Proxy on port " + proxy.getPort() + " -> " + args[1] + ":" + args[2]
+                + ", +" + args[3] + " ms each way" + (rate > 0 ? ", " + args[4] + " MB/s" : ""));
+            Thread.currentThread().join();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package bench;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import models.Message;
+import server.IdAllocator;
+import server.MessageStore;
+
+// Concurrency check of the MessageStore: producers=N threads deliver messages round robin into
+// a few mailboxes (every 10th one a broadcast) while one reader per mailbox keeps calling getAll
+// and markRead, like a user viewing messages during the flood. Checks:
+//   - a reader never sees its own messages shrink or reorder (each view extends the last one)
+//   - every producer's messages show up in the order it sent them
+//   - at the end nothing is lost or duplicated, and a store reopened from disk shows the same
+//     views (same messages, same order, same read flags)
+// Prints deliveries per second. No server, the store is used directly in a temp directory.
+//   java -cp <classes> bench.MailboxStress [producers=N] [messages=per producer] [mailboxes=N]
+public class MailboxStress {
+    private static final int BROADCAST_EVERY = 10;
+
+    public static void main(String[] args) throws Exception {
+        int producers = (int) Bench.arg(args, "producers", 16);
+        int perProducer = (int) Bench.arg(args, "messages", 5000);
+        int mailboxes = (int) Bench.arg(args, "mailboxes", 4);
+
+        Path dir = Bench.workDir("mailbox");
+        try {
+            MessageStore store = new MessageStore(new IdAllocator());
+            store.open(dir);
+            IdAllocator ids = new IdAllocator();
+            ConcurrentLinkedQueue<String> problems = new ConcurrentLinkedQueue<>();
+            AtomicBoolean producing = new AtomicBoolean(true);
+            CountDownLatch start = new CountDownLatch(1);
+
+            List<Thread> readers = new ArrayList<>();
+            for (int m = 0; m < mailboxes; m++) {
+                String user = "user" + m;
+                readers.add(new Thread(() -> read(store, user, producing, problems), "reader-" + user));
+            }
+            List<Thread> writers = new ArrayList<>();
+            for (int p = 0; p < producers; p++) {
+                int producer = p;
+                writers.add(new Thread(() -> {
+                    awaitQuietly(start);
+                    for (int i = 0; i < perProducer; i++) {
+                        Message message;
+                        if (i % BROADCAST_EVERY == BROADCAST_EVERY - 1) {
+                            message = new Message(ids.next(), "ALL", producer + ":" + i);
+                            store.addBroadcast("producer" + producer, message);
+                        } else {
+                            message = new Message(ids.next(), "user" + (i % mailboxes), producer + ":" + i);
+                            store.add(message);
+                        }
+                    }
+                }, "producer-" + p));
+            }
+            readers.forEach(Thread::start);
+            writers.forEach(Thread::start);
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            double seconds = (System.nanoTime() - begin) / 1e9;
+            producing.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+
+            long deliveries = (long) producers * perProducer;
+            System.out.printf("%d producers, %d mailboxes: %d deliveries in %.2f s (%.0f per second)%n",
+                producers, mailboxes, deliveries, seconds, deliveries / seconds);
+
+            int broadcasts = producers * (perProducer / BROADCAST_EVERY);
+            List<List<Message>> views = new ArrayList<>();
+            for (int m = 0; m < mailboxes; m++) {
+                String user = "user" + m;
+                List<Message> view = store.getAll(user);
+                views.add(view);
+                int own = 0;
+                for (int i = 0; i < perProducer; i++) {
+                    if (i % BROADCAST_EVERY != BROADCAST_EVERY - 1 && i % mailboxes == m) own++;
+                }
+                check(view, user, producers * own, broadcasts, problems);
+            }
+
+            // everything again, through a store that only has the files
+            MessageStore reopened = new MessageStore(new IdAllocator());
+            reopened.open(dir);
+            for (int m = 0; m < mailboxes; m++) {
+                String user = "user" + m;
+                if (!sameView(views.get(m), reopened.getAll(user))) {
+                    problems.add(user + ": the reopened store shows a different view");
+                }
+            }
+
+            if (problems.isEmpty()) {
+                System.out.println("OK: nothing lost, duplicated or reordered, the reopened store agrees");
+            } else {
+                System.out.println(problems.size() + " problem(s):");
+                int shown = 0;
+                for (String problem : problems) {
+                    if (shown++ == 20) {
+                        System.out.println("  ...");
+                        break;
+                    }
+                    System.out.println("  " + problem);
+                }
+                System.exit(1);
+            }
+        } finally {
+            Bench.deleteTree(dir);
+        }
+    }
+
+    //views the mailbox over and over while the producers run; each view has to start with the
+    //user's own messages of the previous one, and marks what it showed read now and then
+    private static void read(MessageStore store, String user, AtomicBoolean producing, ConcurrentLinkedQueue<String> problems) {
+        List<Long> previous = new ArrayList<>();
+        int views = 0;
+        while (producing.get()) {
+            List<Message> view = store.getAll(user);
+            List<Long> own = new ArrayList<>();
+            for (Message message : view) {
+                if (message.getRecipient().equals(user)) own.add(message.getMessageID());
+            }
+            if (own.size() < previous.size() || !own.subList(0, previous.size()).equals(previous)) {
+                problems.add(user + ": view " + views + " does not extend the previous one");
+            }
+            previous = own;
+            if (++views % 8 == 0) {
+                store.markRead(user, view);
+            }
+        }
+    }
+
+    //counts, duplicates and per producer order of one final view
+    private static void check(List<Message> view, String user, int own, int broadcasts, ConcurrentLinkedQueue<String> problems) {
+        Set<Long> seen = new HashSet<>();
+        List<Integer> last = new ArrayList<>();
+        int ownSeen = 0;
+        int broadcastsSeen = 0;
+        for (Message message : view) {
+            if (!seen.add(message.getMessageID())) {
+                problems.add(user + ": message " + message.getMessageID() + " shows up twice");
+            }
+            if (message.getRecipient().equals("ALL")) {
+                broadcastsSeen++;
+                continue;
+            }
+            ownSeen++;
+            String[] sent = message.getContent().split(":");
+            int producer = Integer.parseInt(sent[0]);
+            int index = Integer.parseInt(sent[1]);
+            while (last.size() <= producer) {
+                last.add(-1);
+            }
+            if (index <= last.get(producer)) {
+                problems.add(user + ": " + message.getContent() + " after " + producer + ":" + last.get(producer));
+            }
+            last.set(producer, index);
+        }
+        if (ownSeen != own) {
+            problems.add(user + ": " + ownSeen + " message(s), sent " + own);
+        }
+        if (broadcastsSeen != broadcasts) {
+            problems.add(user + ": " + broadcastsSeen + " broadcast(s), sent " + broadcasts);
+        }
+    }
+
+    private static boolean sameView(List<Message> before, List<Message> after) {
+        if (before.size() != after.size()) return false;
+        for (int i = 0; i < before.size(); i++) {
+            Message a = before.get(i);
+            Message b = after.get(i);
+            if (a.getMessageID() != b.getMessageID() || a.isRead() != b.isRead()
+                || !a.getContent().equals(b.getContent())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
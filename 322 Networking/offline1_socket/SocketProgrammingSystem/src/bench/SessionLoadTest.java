@@ -0,0 +1,154 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import utils.Frame;
+import utils.Protocol;
+
+// Many sessions at once against each server mode: thread (a platform thread per connection),
+// virtual (a virtual thread per connection) and nio. All sessions log in and stay connected, then
+// every one of them sends a LIST_CLIENTS at the same time. Prints how long the logins took, the
+// LIST latency and what the server process holds with all sessions open (threads, resident memory).
+// The sessions are raw sockets speaking the binary protocol, not client JVMs.
+//   java -cp <classes> bench.SessionLoadTest [sessions=N] [modes=thread,virtual,nio]
+// mode=virtual needs JDK 21+ on the server side, older JDKs fall back to platform threads (the
+// server log says which, printed below). Needs sessions + a few file descriptors on both sides.
+public class SessionLoadTest {
+    private static final int CALLERS = 64; // threads doing the logins and LISTs on this side
+
+    // one logged in session
+    private static class Session {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Session(Socket socket, DataInputStream in, DataOutputStream out) {
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = (int) Bench.arg(args, "sessions", 2000);
+        List<String> modes = Bench.words(args, "modes", List.of("thread", "virtual", "nio"));
+
+        System.out.println(sessions + " sessions per mode");
+        System.out.println("mode      login s   LIST p50 ms   p99 ms   server threads   server RSS");
+        for (String mode : modes) {
+            run(mode, sessions);
+        }
+    }
+
+    private static void run(String mode, int sessions) throws Exception {
+        Path dir = Bench.workDir("load-" + mode);
+        Process server = Bench.startServer(dir, "mode=" + mode, "max-sessions=" + sessions,
+            "per-ip=" + sessions, "accept-queue=" + sessions, "idle-timeout=0");
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        List<Session> open = Collections.synchronizedList(new ArrayList<>());
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> logins = new ArrayList<>();
+            for (int i = 0; i < sessions; i++) {
+                String user = "load" + i;
+                logins.add(callers.submit(() -> open.add(login(user))));
+            }
+            int failed = 0;
+            for (Future<?> login : logins) {
+                try {
+                    login.get();
+                } catch (Exception e) {
+                    failed++;
+                }
+            }
+            double loginSeconds = (System.nanoTime() - start) / 1e9;
+
+            List<Future<Long>> lists = new ArrayList<>();
+            for (Session session : open) {
+                lists.add(callers.submit(() -> list(session)));
+            }
+            List<Long> micros = new ArrayList<>();
+            for (Future<Long> list : lists) {
+                try {
+                    micros.add(list.get());
+                } catch (Exception e) {
+                    failed++;
+                }
+            }
+            Collections.sort(micros);
+
+            System.out.printf("%-8s %8.2f %12s %8s %16s %12s%s%n", mode, loginSeconds,
+                percentile(micros, 50), percentile(micros, 99),
+                Bench.procStatus(server, "Threads"), Bench.procStatus(server, "VmRSS"),
+                failed > 0 ? "   (" + failed + " failed)" : "");
+            if (mode.equals("virtual") && !Files.readString(dir.resolve("server.log")).contains("virtual threads.")) {
+                System.out.println("         (server JDK has no virtual threads, that row is platform threads)");
+            }
+        } finally {
+            for (Session session : open) {
+                try {
+                    session.socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            callers.shutdownNow();
+            Bench.stop(server);
+            Bench.deleteTree(dir);
+        }
+    }
+
+    //same login as client.Client: object stream prompt, "user:::BINARY", then frames
+    private static Session login(String user) throws Exception {
+        Socket socket = new Socket("localhost", 6666);
+        try {
+            ObjectOutputStream objectOut = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream objectIn = new ObjectInputStream(socket.getInputStream());
+            objectIn.readObject(); // prompt
+            objectOut.writeObject(user + Protocol.DELIMITER + Protocol.BINARY);
+            objectOut.flush();
+            String reply = (String) objectIn.readObject();
+            if (!reply.startsWith(Protocol.SUCCESS)) {
+                throw new IOException(reply);
+            }
+            return new Session(socket, new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())));
+        } catch (Exception e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    //LIST_CLIENTS round trip in microseconds
+    private static long list(Session session) throws IOException {
+        long start = System.nanoTime();
+        Frame.writeText(session.out, Frame.CMD, Protocol.LIST_CLIENTS);
+        session.out.flush();
+        Frame reply;
+        do {
+            reply = Frame.read(session.in);
+        } while (reply.getOpcode() == Frame.NOTIFY);
+        return (System.nanoTime() - start) / 1000;
+    }
+
+    private static String percentile(List<Long> sorted, int p) {
+        if (sorted.isEmpty()) {
+            return "-";
+        }
+        long micros = sorted.get(Math.min(sorted.size() - 1, sorted.size() * p / 100));
+        return String.format("%.2f", micros / 1000.0);
+    }
+}
@@ -0,0 +1,55 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+// Upload and download throughput against the number of parallel connections (client streams=N).
+// One connection is capped by how much it keeps in flight per round trip, so the benchmark goes
+// through a DelayProxy (round trip + 2 * delay, optionally rate= MB/s per connection) where one
+// stream can't fill the link. Ranges are at least Client.MIN_RANGE_SIZE, a file smaller than
+// streams * 4 MB uses fewer connections than asked for.
+//   java -cp <classes> bench.StreamsBenchmark [size=MB] [delay=ms] [rate=MB/s] [streams=1,2,4,8]
+// Run from any directory, server data goes to a temp directory that is deleted afterwards.
+public class StreamsBenchmark {
+    public static void main(String[] args) throws Exception {
+        long size = Bench.arg(args, "size", 128) * 1024 * 1024;
+        long delay = Bench.arg(args, "delay", 25);
+        long rate = Bench.arg(args, "rate", 0) * 1024 * 1024;
+        List<Integer> counts = Bench.list(args, "streams", List.of(1, 2, 4, 8));
+
+        Path dir = Bench.workDir("streams");
+        Process server = Bench.startServer(dir);
+        DelayProxy proxy = new DelayProxy(0, "localhost", 6666, delay, rate);
+        try {
+            System.out.println("Transfer of " + size / (1024 * 1024) + " MB, +" + 2 * delay + " ms round trip"
+                + (rate > 0 ? ", " + rate / (1024 * 1024) + " MB/s per connection" : ""));
+            System.out.println("streams   upload MB/s   download MB/s");
+            for (int streams : counts) {
+                // new content and a new user every run: nothing can be deduplicated or sent as a delta
+                String user = "streams" + streams;
+                Path file = Bench.randomFile(dir, user + ".bin", size, streams);
+                Path saveAs = dir.resolve(user + ".down");
+                // one session: log in, upload (public, not for a request), download it back, log out
+                String script = user + "\n4\n" + file + "\npublic\nno\n5\n" + user + "\n" + file.getFileName()
+                    + "\n" + saveAs + "\n9\n";
+                String output = Bench.runClient(dir, proxy.getPort(), script, "streams=" + streams, "compress=off");
+                double up = Bench.rate(output, "Uploaded");
+                double down = Bench.rate(output, "Downloaded");
+                boolean same = Files.exists(saveAs) && Files.mismatch(file, saveAs) == -1;
+                System.out.printf("%7d %13s %15s%s%n", streams, format(up), format(down),
+                    down >= 0 && !same ? "   (downloaded file differs!)" : "");
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(saveAs);
+            }
+        } finally {
+            proxy.close();
+            Bench.stop(server);
+            Bench.deleteTree(dir);
+        }
+    }
+
+    private static String format(double rate) {
+        return rate < 0 ? "failed" : String.format("%.1f", rate);
+    }
+}
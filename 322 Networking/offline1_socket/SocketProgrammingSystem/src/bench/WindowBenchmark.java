@@ -0,0 +1,41 @@
+package bench;
+
+import java.nio.file.Path;
+import java.util.List;
+
+// Upload throughput against the upload window (chunks in flight before waiting for an ack).
+// window=1 is the old stop-and-wait. On plain loopback the round trip is tiny and every window
+// looks alike; delay=ms puts a DelayProxy in between (round trip + 2 * delay), which is where
+// stop-and-wait falls apart.
+//   java -cp <classes> bench.WindowBenchmark [size=MB] [delay=ms] [windows=1,2,4,...]
+// Run from any directory, server data goes to a temp directory that is deleted afterwards.
+public class WindowBenchmark {
+    public static void main(String[] args) throws Exception {
+        long size = Bench.arg(args, "size", 64) * 1024 * 1024;
+        long delay = Bench.arg(args, "delay", 0);
+        List<Integer> windows = Bench.list(args, "windows", List.of(1, 2, 4, 8, 16, 32, 64));
+
+        Path dir = Bench.workDir("window");
+        Process server = Bench.startServer(dir);
+        DelayProxy proxy = delay > 0 ? new DelayProxy(0, "localhost", 6666, delay, 0) : null;
+        int port = proxy != null ? proxy.getPort() : 6666;
+        try {
+            System.out.println("Upload of " + size / (1024 * 1024) + " MB, " + (delay > 0 ? "+" + 2 * delay + " ms round trip" : "loopback"));
+            System.out.println("window   MB/s");
+            for (int window : windows) {
+                // new content and a new user every run: nothing can be deduplicated or sent as a delta
+                Path file = Bench.randomFile(dir, "window" + window + ".bin", size, window);
+                String output = Bench.runClient(dir, port, Bench.uploadScript("window" + window, file),
+                    "window=" + window, "compress=off");
+                double rate = Bench.rate(output, "Uploaded");
+                System.out.printf("%6d %7s%n", window, rate < 0 ? "failed" : String.format("%.1f", rate));
+            }
+        } finally {
+            if (proxy != null) {
+                proxy.close();
+            }
+            Bench.stop(server);
+            Bench.deleteTree(dir);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.TreeMap;
+import utils.Checksums;
+import utils.ChunkCodec;
+
+// What an upload still has to send, in order: bytes [from, to) of the file cut into chunks of the
+// current chunk size (the server may change it in any ack), minus the bytes the server already has.
+// A part's bytes are read from the file when it is cut and dropped once it is acked, so only the
+// window (and the compression lookahead) is ever in memory, whatever the size of the file.
+// With compression on, the next few parts are deflated on the shared pool while earlier ones are
+// on the wire, so the sending thread only waits for compression if every core is behind.
+// Parts are cut in file order, so they also feed the upload's whole-file digest (if given).
+// Every ack carries the server's crc32c of the part it stored; a part that arrived damaged is
+// queued again (at the front) up to MAX_ATTEMPTS times.
+class ChunkQueue {
+    private static final int MAX_ATTEMPTS = 3;
+
+    static class Part {
+        final int seq;
+        final long offset;
+        final int length;
+        byte[] data;     // the plain bytes, until acked
+        byte[] deflated; // null = send plain
+        long crc;        // crc32c of the plain bytes
+        int attempts;
+
+        Part(int seq, long offset, int length) {
+            this.seq = seq;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final FileChannel file;
+    private final long to;
+    private final TreeMap<Long, Long> onServer;
+    private final ChunkCodec.Pipeline pipeline; // null = no compression
+    private final FileDigest digest;             // null = not hashed here
+    private final ArrayDeque<Part> ready = new ArrayDeque<>();
+    private final ArrayDeque<Part> resend = new ArrayDeque<>();  // came back damaged, sent before anything new
+    private final ArrayDeque<Part> unacked = new ArrayDeque<>(); // sent, in send order (= ack order)
+    private int chunkSize;
+    private long offset;
+    private int seq;
+    private long plainBytes; // bytes handed out
+    private long wireBytes;  // of which this many go on the wire (less when compressed)
+
+    //compress = DEFLATE was negotiated, the first chunk is still sniffed before using it
+    ChunkQueue(FileChannel file, long from, long to, int chunkSize, TreeMap<Long, Long> onServer, boolean compress,
+               FileDigest digest) throws IOException {
+        this.file = file;
+        this.digest = digest;
+        this.to = to;
+        this.onServer = onServer;
+        this.chunkSize = chunkSize;
+        this.offset = from;
+        this.seq = (int) (from / chunkSize);
+        boolean worthIt = false;
+        if (compress && from < to) {
+            byte[] first = read(file, from, (int) Math.min(chunkSize, to - from));
+            worthIt = ChunkCodec.worthCompressing(first, 0, first.length);
+        }
+        this.pipeline = worthIt ? new ChunkCodec.Pipeline() : null;
+    }
+
+    //length bytes of file at position (EOFException if the file got shorter meanwhile)
+    static byte[] read(FileChannel file, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File changed during upload");
+            }
+        }
+        return buffer.array();
+    }
+
+    boolean isCompressing() {
+        return pipeline != null;
+    }
+
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    boolean hasNext() throws IOException {
+        fill(1);
+        return !resend.isEmpty() || !ready.isEmpty();
+    }
+
+    Part next() throws IOException {
+        Part part = resend.poll();
+        if (part == null) {
+            fill(pipeline == null ? 1 : ChunkCodec.lookahead());
+            part = ready.poll();
+            if (pipeline != null) {
+                part.deflated = pipeline.take();
+            }
+            part.crc = Checksums.crc32c(part.data, 0, part.length);
+        }
+        part.attempts++;
+        unacked.add(part);
+        plainBytes += part.length;
+        wireBytes += part.deflated != null ? part.deflated.length : part.length;
+        return part;
+    }
+
+    //matches an ack (CHUNK_ACK split on the delimiter) to the oldest part sent and checks the
+    //server's crc32c of what it stored. a damaged part is queued again. false = it kept arriving
+    //damaged, give up on the upload
+    boolean acked(String[] ackParts) {
+        Part part = unacked.poll();
+        if (part == null) {
+            return true;
+        }
+        if (ackParts.length <= 6 || Long.parseLong(ackParts[6]) == part.crc) {
+            part.data = null; // (no crc in the ack: server that doesn't check)
+            return true;
+        }
+        System.out.println("Chunk at byte " + part.offset + " arrived damaged (crc32c mismatch)"
+            + (part.attempts < MAX_ATTEMPTS ? ", sending it again" : ", giving up"));
+        if (part.attempts >= MAX_ATTEMPTS) {
+            return false;
+        }
+        resend.add(part);
+        return true;
+    }
+
+    //stops compressing what will not be sent anymore
+    void close() {
+        if (pipeline != null) {
+            pipeline.cancel();
+        }
+    }
+
+    long getPlainBytes() {
+        return plainBytes;
+    }
+
+    long getWireBytes() {
+        return wireBytes;
+    }
+
+    //cuts chunks until count parts are queued (or the range is done). every missing part of a
+    //chunk becomes its own part with the chunk's seq
+    private void fill(int count) throws IOException {
+        while (ready.size() < count && offset < to) {
+            int length = (int) Math.min(chunkSize, to - offset);
+            List<long[]> missing = TransferStream.missing(onServer, offset, length);
+            for (long[] range : missing) {
+                Part part = new Part(seq, range[0], (int) (range[1] - range[0]));
+                part.data = read(file, part.offset, part.length);
+                if (digest != null) {
+                    digest.update(part.offset, part.data, 0, part.length);
+                }
+                ready.add(part);
+                if (pipeline != null) {
+                    pipeline.add(part.data, 0, part.length);
+                }
+            }
+            seq++;
+            offset += length;
+        }
+    }
+}
@@ -1,16 +1,43 @@
 package client;
 
-import java.io.ByteArrayOutputStream;  
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
 import java.net.Socket;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.Arrays;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import utils.Checksums;
+import utils.ChunkCodec;
+import utils.Frame;
 import utils.Protocol;
+import utils.RollingChecksum;
 
 public class Client {
     private Socket socket;
@@ -19,46 +46,228 @@ public class Client {
     private String username;
     private Scanner scanner;
 
+    // binary framed protocol, asked for at login. false = old Base64 string protocol
+    private boolean wantBinary;
+    // upload chunks allowed in flight before waiting for acks (1 = old stop-and-wait)
+    private int uploadWindow = DEFAULT_UPLOAD_WINDOW;
+    public static final int DEFAULT_UPLOAD_WINDOW = 8;
+    public static final int MAX_UPLOAD_WINDOW = 256; // acks queue up in the socket buffer, keep it bounded
+    private boolean binaryMode;
+    private DataInputStream din;
+    private DataOutputStream dout;
+
+    // binary mode: a reader thread owns din. NOTIFY pushes are printed as they arrive,
+    // everything else goes to replies for the thread that sent the command
+    // (new queue + semaphore per connection, so a dying old reader can't touch the new one)
+    private BlockingQueue<Frame> replies = new LinkedBlockingQueue<>();
+    // the reader stops after a BULK header until the main thread has read the body from din
+    private Semaphore bulkConsumed = new Semaphore(0);
+    private static final Frame DISCONNECTED = new Frame((byte) 0, "", 0, 0, new byte[0]);
+
+    // multiplexed session (MUX at login): a command sent with a tag is answered by frames with the
+    // same tag, which the reader hands to whoever is waiting for that tag (per connection, like replies).
+    // the menu's lists/messages are tagged, a download runs in the background on its own tag
+    private boolean multiplexed;
+    private InFlight awaiting = new InFlight();
+    private final AtomicInteger nextTag = new AtomicInteger();
+    private final Object sendLock = new Object(); // a tagged command may be sent by any thread
+    private final List<CompletableFuture<Void>> background = new ArrayList<>();
+    private final ExecutorService backgroundTransfers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "background-download");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // requests waiting for a tagged reply on one connection
+    private static class InFlight {
+        final Map<Integer, CompletableFuture<String>> replies = new ConcurrentHashMap<>(); // one text reply
+        final Map<Integer, BlockingQueue<Frame>> streams = new ConcurrentHashMap<>();      // all frames (downloads)
+        volatile boolean closed;
+
+        //false if nobody waits for this tag
+        boolean deliver(Frame frame) {
+            CompletableFuture<String> reply = replies.remove(frame.getSeq());
+            if (reply != null) {
+                reply.complete(frame.getText());
+                return true;
+            }
+            BlockingQueue<Frame> stream = streams.get(frame.getSeq());
+            return stream != null && stream.add(frame);
+        }
+
+        void close() {
+            closed = true;
+            java.io.EOFException gone = new java.io.EOFException("Connection to server closed");
+            replies.values().forEach(reply -> reply.completeExceptionally(gone));
+            streams.values().forEach(stream -> stream.add(DISCONNECTED));
+        }
+    }
+
+    // reconnect + resume when the connection drops in the middle of a transfer
+    private String host;
+    private int port;
+    private static final int MAX_RESUME_ATTEMPTS = 5;
+    private static final long RECONNECT_DELAY_MS = 1000;
+    // bumped by every reconnect. a transfer that saw connection N drop reconnects only if nobody
+    // (the menu, a background download) has already, both may notice the same drop
+    private volatile int connection;
+    private final Object reconnectLock = new Object();
+
+    // what a background download reads from: the connection it was sent on, taken in one step
+    private static class Connection {
+        final int id;
+        final InFlight inFlight;
+        final Semaphore bulkConsumed;
+        final DataInputStream din;
+
+        Connection(int id, InFlight inFlight, Semaphore bulkConsumed, DataInputStream din) {
+            this.id = id;
+            this.inFlight = inFlight;
+            this.bulkConsumed = bulkConsumed;
+            this.din = din;
+        }
+    }
+
+    // smoothed round trip of small request/reply exchanges (login, UPLOAD_REQUEST), in microseconds.
+    // sent with every upload request so the server can size chunks for the link, 0 = not measured yet
+    private long rttMicros;
+
+    // parallel transfers: large files are split into byte ranges, one per extra connection
+    // (ATTACH with the session token the server gave at login). 1 = everything on the main connection
+    private int streams = 1;
+    private String sessionToken;
+
+    // per-chunk compression (DEFLATE at login): wanted unless compress=off, used if the server agreed
+    private boolean wantCompression = true;
+    private boolean compression;
+    public static final int MAX_STREAMS = 16;
+    public static final long MIN_RANGE_SIZE = 4 * 1024 * 1024; // smaller ranges aren't worth a connection
+
     public Client(){
+        this(true);
+    }
+
+    public Client(boolean wantBinary){
         scanner = new Scanner(System.in);
+        this.wantBinary = wantBinary;
     }
 
-    public boolean connect(String host, int port){
-        try {
-            socket = new Socket(host, port); //localhost fore own machine er port 6666
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
+    public void setUploadWindow(int window) {
+        this.uploadWindow = Math.max(1, Math.min(window, MAX_UPLOAD_WINDOW));
+    }
+
+    public void setCompression(boolean on) {
+        this.wantCompression = on;
+    }
 
-            System.out.println("Connected to server at " + host + ":" + port);
+    public void setStreams(int streams) {
+        this.streams = Math.max(1, Math.min(streams, MAX_STREAMS));
+    }
 
+    public boolean connect(String host, int port){
+        this.host = host;
+        this.port = port;
+        try {
             // Authentication
-            String message = (String) in.readObject(); // "Enter your username:"
+            String message = openSession(); // "Enter your username:"
             System.out.println(message); 
 
             username = scanner.nextLine().trim();
-            out.writeObject(username);
-            out.flush();
+            return login();
+        } catch (Exception e) {
+            System.out.println("Connection error: " + e.getMessage());
+            return false;
+        }
+    }
 
-            String response = (String) in.readObject(); // SUCCESS|||login succesful
-            String[] parts = response.split(Protocol.DELIMITER);
+    //opens the socket + object streams, returns the server's prompt
+    private String openSession() throws Exception {
+        socket = new Socket(host, port); //localhost fore own machine er port 6666
+        out = new ObjectOutputStream(socket.getOutputStream());
+        in = new ObjectInputStream(socket.getInputStream());
+        binaryMode = false;
 
+        String prompt = (String) in.readObject();
+        if (prompt.startsWith(Protocol.DENIED + Protocol.DELIMITER)) {
+            socket.close();
+            throw new IOException(prompt.substring(Protocol.DENIED.length() + Protocol.DELIMITER.length()));
+        }
+        System.out.println("Connected to server at " + host + ":" + port);
+        return prompt;
+    }
+
+    private boolean login() throws Exception {
+        long sentNanos = System.nanoTime();
+        String login = wantBinary ? username + Protocol.DELIMITER + Protocol.BINARY + Protocol.DELIMITER + Protocol.MUX : username;
+        out.writeObject(wantCompression ? login + Protocol.DELIMITER + Protocol.DEFLATE : login);
+        out.flush();
+
+        String response = (String) in.readObject(); // SUCCESS|||login succesful
+        recordRtt(sentNanos);
+        String[] parts = response.split(Protocol.DELIMITER);
 
-            // System.out.println("here" + " response is " + response + " parts[0] " + parts[0]);
-            if(parts[0].equals(Protocol.SUCCESS)){
-                System.out.println(parts[1]); // Welcome message
+        if(parts[0].equals(Protocol.SUCCESS)){
+            System.out.println(parts[1]); // Welcome message
+            compression = parts[parts.length - 1].equals(Protocol.DEFLATE);
+            if (parts.length > 2 && parts[2].equals(Protocol.BINARY)) {
+                // server agreed, switch to frames on the raw socket streams
+                din = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                dout = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                binaryMode = true;
+                sessionToken = parts.length > 3 && !parts[3].equals(Protocol.DEFLATE) ? parts[3] : null;
+                multiplexed = parts.length > 4 && parts[4].equals(Protocol.MUX);
+                startReader();
+                System.out.println("Using binary protocol." + (multiplexed ? " (multiplexed)" : ""));
+            }
+            return true;
+        }else if(parts[0].equals(Protocol.DENIED)){
+            System.out.println("Connection failed: " + parts[1]);
+        }
+        return false;
+    }
+
+    private void recordRtt(long sentNanos) {
+        long sample = (System.nanoTime() - sentNanos) / 1000;
+        rttMicros = rttMicros == 0 ? sample : (7 * rttMicros + sample) / 8;
+    }
+
+    //connection `seen` dropped: log in again as the same user (the server may need a moment to
+    //notice the old session is gone, "already logged in" is retried). true at once if another
+    //thread already replaced that connection
+    private boolean reconnect(int seen) {
+        synchronized (reconnectLock) {
+            if (connection != seen) {
                 return true;
-            }else if(parts[0].equals(Protocol.DENIED)){
-                System.out.println("Connection failed: " + parts[1]);
-                return false;
             }
-            
-            
-        } catch (Exception e) {
-            System.out.println("Connection error: " + e.getMessage());
+            try {
+                socket.close();
+            } catch (Exception ignored) {
+            }
+            for (int attempt = 1; attempt <= MAX_RESUME_ATTEMPTS; attempt++) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS * attempt);
+                    System.out.println("Reconnecting (attempt " + attempt + ")...");
+                    openSession();
+                    if (login()) {
+                        connection++;
+                        return true;
+                    }
+                    socket.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } catch (Exception e) {
+                    System.out.println("Reconnect failed: " + e.getMessage());
+                }
+            }
             return false;
         }
+    }
 
-        return false;
+    private Connection currentConnection() {
+        synchronized (reconnectLock) {
+            return new Connection(connection, awaiting, bulkConsumed, din);
+        }
     }
 
     //menu
@@ -129,11 +338,136 @@ public class Client {
     }
 
     private void sendCommand(String command) throws Exception {
+        if (binaryMode) {
+            synchronized (sendLock) {
+                Frame.writeText(dout, Frame.CMD, command);
+                dout.flush();
+            }
+            return;
+        }
         out.writeObject(command);
         out.flush();
     }
-    private String recieveResponse() throws Exception {
-        String response = (String) in.readObject();
+
+    //sends a command and returns its reply as a future. on a multiplexed session the command is
+    //tagged and doesn't wait for anything else in flight (a running download, other commands),
+    //without one it is the usual request/reply and the future is already done when returned
+    public CompletableFuture<String> sendAsync(String command) {
+        if (!multiplexed) {
+            try {
+                sendCommand(command);
+                return CompletableFuture.completedFuture(readMessage());
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        InFlight inFlight = this.awaiting;
+        int tag = newTag();
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        inFlight.replies.put(tag, reply);
+        try {
+            if (inFlight.closed) {
+                throw new java.io.EOFException("Connection to server closed");
+            }
+            sendTagged(tag, command);
+        } catch (IOException e) {
+            inFlight.replies.remove(tag);
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    //sendAsync and wait for the reply
+    private String request(String command) throws Exception {
+        try {
+            return sendAsync(command).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void sendTagged(int tag, String command) throws IOException {
+        synchronized (sendLock) {
+            Frame.writeText(dout, Frame.CMD, tag, command);
+            dout.flush();
+        }
+    }
+
+    private int newTag() {
+        int tag;
+        do {
+            tag = nextTag.incrementAndGet() & Integer.MAX_VALUE;
+        } while (tag == 0); // 0 = untagged
+        return tag;
+    }
+
+    //next text message from server, whichever protocol is in use
+    private void startReader() {
+        BlockingQueue<Frame> replies = new LinkedBlockingQueue<>();
+        Semaphore bulkConsumed = new Semaphore(0);
+        InFlight inFlight = new InFlight();
+        DataInputStream din = this.din;
+        this.replies = replies;
+        this.bulkConsumed = bulkConsumed;
+        this.awaiting = inFlight;
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    Frame frame = Frame.read(din);
+                    if (frame.getOpcode() == Frame.NOTIFY) {
+                        System.out.println("\n[NEW MESSAGE] " + frame.getText());
+                        continue;
+                    }
+                    if (frame.getSeq() != 0) {
+                        // tagged reply (download chunks sent without a tag have seq 0 as well)
+                        if (inFlight.deliver(frame)) {
+                            if (frame.getOpcode() == Frame.BULK) {
+                                bulkConsumed.acquire();
+                            }
+                        } else if (frame.getOpcode() == Frame.BULK) {
+                            din.skipNBytes(frame.getBulkLength()); // nobody waits for it anymore
+                        }
+                        continue;
+                    }
+                    replies.put(frame);
+                    if (frame.getOpcode() == Frame.BULK) {
+                        bulkConsumed.acquire();
+                    }
+                }
+            } catch (Exception e) {
+                inFlight.close();
+                replies.add(DISCONNECTED);
+            }
+        }, "server-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    //next reply frame (binary mode). BULK: caller reads the body from din, then calls bulkDone()
+    private Frame readFrame() throws Exception {
+        return readFrame(replies);
+    }
+
+    private static Frame readFrame(BlockingQueue<Frame> from) throws Exception {
+        Frame frame = from.take();
+        if (frame == DISCONNECTED) {
+            from.add(DISCONNECTED); // later reads fail too
+            throw new java.io.EOFException("Connection to server closed");
+        }
+        return frame;
+    }
+
+    private String readMessage() throws Exception {
+        if (binaryMode) {
+            return readFrame().getText();
+        }
+        return (String) in.readObject();
+    }
+
+    private String recieveResponse(String response) {
         String [] parts = response.split(Protocol.DELIMITER);
         if(parts.length > 1){
             return parts[1];
@@ -142,20 +476,17 @@ public class Client {
     }
 
     private void listClients() throws Exception {
-        sendCommand(Protocol.LIST_CLIENTS);
-        String response = recieveResponse();
+        String response = recieveResponse(request(Protocol.LIST_CLIENTS));
         System.out.println("\nOnline Clients: " + response);
     }
     private void listOwnFiles() throws Exception {
-        sendCommand(Protocol.LIST_OWN_FILES);
-        String response = recieveResponse();
+        String response = recieveResponse(request(Protocol.LIST_OWN_FILES));
         System.out.println("\n" + response);
     }
 
     //Lists public files from other users
     private void listPublicFiles() throws Exception {
-        sendCommand(Protocol.LIST_PUBLIC_FILES);
-        String response = recieveResponse();
+        String response = recieveResponse(request(Protocol.LIST_PUBLIC_FILES));
         System.out.println("\n" + response);
     }
     private void uploadFile() throws Exception {
@@ -186,19 +517,28 @@ public class Client {
             accessType = Protocol.PUBLIC; // Force public for requested files
         }
         
-        // Read file data
-        byte[] fileData = Files.readAllBytes(Paths.get(filePath));
-        long fileSize = fileData.length;
-        String fileName = file.getName();
+        // the file is read a chunk at a time while it is sent, never loaded whole
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            sendFile(source, file.getName(), accessType, requestID);
+        }
+    }
+
+    private void sendFile(FileChannel source, String fileName, String accessType, String requestID) throws Exception {
+        long fileSize = source.size();
         
         System.out.println("\nInitiating upload for: " + fileName + " (" + fileSize + " bytes)");
         
-        // Send upload request
-        String uploadRequest = Protocol.UPLOAD_REQUEST + Protocol.DELIMITER + fileName + Protocol.DELIMITER + fileSize + Protocol.DELIMITER + accessType + Protocol.DELIMITER + requestID;
+        // Send upload request (with our rtt and how many chunks will be in flight in total, the
+        // server starts the chunk size from them)
+        int ranges = rangeCount(fileSize);
+        String uploadRequest = Protocol.UPLOAD_REQUEST + Protocol.DELIMITER + fileName + Protocol.DELIMITER + fileSize + Protocol.DELIMITER + accessType + Protocol.DELIMITER + requestID
+                             + Protocol.DELIMITER + rttMicros + Protocol.DELIMITER + uploadWindow * ranges;
+        long sentNanos = System.nanoTime();
         sendCommand(uploadRequest);
         
         // Get response
-        String response = (String) in.readObject();  //(Protocol.UPLOAD_CONFIRMED + Protocol.DELIMITER + fileID + Protocol.DELIMITER + chunkSize)
+        String response = readMessage();  //(Protocol.UPLOAD_CONFIRMED + Protocol.DELIMITER + fileID + Protocol.DELIMITER + chunkSize)
+        recordRtt(sentNanos);
         String[] parts = response.split(Protocol.DELIMITER);  //
         
         if (parts[0].equals(Protocol.BUFFER_FULL)) {
@@ -214,44 +554,394 @@ public class Client {
         String fileID = parts[1];
         int chunkSize = Integer.parseInt(parts[2]);
         
-        System.out.println("Upload confirmed. File ID: " + fileID + ", Chunk size: " + chunkSize + " bytes");
-        
-        // Send file in chunks
-        int offset = 0; // file er kon jaga theke send korbo
-        int chunkNum = 0;
+        System.out.println("Upload confirmed. File ID: " + fileID + ", Chunk size: " + chunkSize + " bytes (adapted by the server as the upload runs)");
+
+        // byte ranges the server fills in itself, they are not sent: a re-upload is sent as a delta
+        // against the stored version, otherwise the server reuses blocks it already has (dedup)
+        // whole-file digest for the server to check against, built by whichever of these passes
+        // reads the file in order first (the delta scan, the block hashes, the chunks)
+        FileDigest digest = new FileDigest();
+        TreeMap<Long, Long> onServer = new TreeMap<>();
+        if (parts.length > 4 && Long.parseLong(parts[4]) >= 0) {
+            onServer = sendDelta(fileID, source, Long.parseLong(parts[4]), digest);
+        }
+        if (onServer.isEmpty() && parts.length > 3) {
+            onServer = sendBlockHashes(fileID, source, Integer.parseInt(parts[3]), digest);
+        }
         
-        while (offset < fileData.length) {
-            int length = Math.min(chunkSize, fileData.length - offset);
-            byte[] chunk = Arrays.copyOfRange(fileData, offset, offset + length); //src, start, end
-            String chunkBase64 = Base64.getEncoder().encodeToString(chunk);
-            
-            // Send chunk
-            String chunkCommand = Protocol.UPLOAD_CHUNK + Protocol.DELIMITER + fileID + Protocol.DELIMITER + chunkBase64;
-            sendCommand(chunkCommand);
-            
-            // Wait for acknowledgment
-            String ack = (String) in.readObject(); //Protocol.CHUNK_ACK + Protocol.DELIMITER + fileID
-            
-            chunkNum++;
-            System.out.println("Chunk " + chunkNum + " sent and acknowledged");
-            
-            offset += length;
+        long startNanos = System.nanoTime();
+        long offset = 0;
+        int attempts = 0;
+        while (true) {
+            int seen = connection;
+            try {
+                if (attempts == 0 && ranges > 1) {
+                    System.out.println("Uploading over " + ranges + " parallel connections");
+                    if (!sendParallel(fileID, source, chunkSize, ranges, onServer, digest)) {
+                        return;
+                    }
+                } else if (!sendChunks(fileID, source, chunkSize, offset, onServer, digest)) {
+                    return;
+                }
+                break;
+            } catch (IOException e) {
+                // connection lost: log in again and continue from what the server has committed
+                System.out.println("Connection lost during upload: " + e.getMessage());
+                if (++attempts > MAX_RESUME_ATTEMPTS || !reconnect(seen)) {
+                    throw e;
+                }
+                sendCommand(Protocol.UPLOAD_RESUME + Protocol.DELIMITER + fileID);
+                String[] resume = readMessage().split(Protocol.DELIMITER);
+                if (!resume[0].equals(Protocol.UPLOAD_RESUME)) {
+                    System.out.println("Upload cannot be resumed: " + resume[resume.length - 1]);
+                    return;
+                }
+                offset = Long.parseLong(resume[2]);
+                chunkSize = Integer.parseInt(resume[3]);
+                System.out.println("Resuming upload at byte " + offset + " of " + fileSize);
+            }
         }
         
         // Send completion
-        sendCommand(Protocol.UPLOAD_COMPLETE + Protocol.DELIMITER + fileID);
+        sendCommand(Protocol.UPLOAD_COMPLETE + Protocol.DELIMITER + fileID + Protocol.DELIMITER + digest.finish(source));
         
         // Get final response
-        String finalResponse = (String) in.readObject();
+        String finalResponse = readMessage();
         String[] finalParts = finalResponse.split(Protocol.DELIMITER);
         
         if (finalParts[0].equals(Protocol.SUCCESS)) {
             System.out.println(finalParts[1]);
+            printRate("Uploaded", fileSize, startNanos);
+            System.out.println("Upload window: " + uploadWindow + " chunk(s)");
         } else {
             System.out.println("Upload failed: " + finalParts[1]);
         }
     }
 
+    //re-upload: gets the block signatures of the stored version and tells the server where its
+    //blocks appear in the new file. the window rolls one byte at a time, so blocks that moved
+    //(data inserted or removed before them) are found too. returns the ranges the server copied
+    private TreeMap<Long, Long> sendDelta(String fileID, FileChannel source, long previousSize, FileDigest digest) throws Exception {
+        TreeMap<Long, Long> onServer = new TreeMap<>();
+        sendCommand(Protocol.UPLOAD_SIGNATURES + Protocol.DELIMITER + fileID);
+        String[] sig = readMessage().split(Protocol.DELIMITER); //UPLOAD_SIGNATURES|||fileID|||blockSize|||version|||sigs
+        if (!sig[0].equals(Protocol.UPLOAD_SIGNATURES) || sig.length < 5) {
+            return onServer;
+        }
+        int blockSize = Integer.parseInt(sig[2]);
+        String version = sig[3];
+        String[] entries = sig[4].split(",");
+
+        // weak sum -> blocks with it. a short last block can't match a full window, it is checked
+        // against the end of the new file after the scan
+        int fullBlocks = (int) (previousSize / blockSize);
+        Map<Integer, List<Integer>> byWeak = new HashMap<>();
+        String[] strong = new String[entries.length];
+        for (int i = 0; i < entries.length && i < fullBlocks; i++) {
+            String[] pair = entries[i].split(":");
+            byWeak.computeIfAbsent((int) Long.parseLong(pair[0], 16), k -> new ArrayList<>()).add(i);
+            strong[i] = pair[1];
+        }
+
+        StringBuilder matches = new StringBuilder();
+        long size = source.size();
+        FileBuffer window = new FileBuffer(source, digest);
+        long position = 0;
+        long matchedTo = 0; // end of the last match
+        int weak = 0;
+        if (size >= blockSize) {
+            int at = window.at(0, blockSize); // (before reading window.data, at() may replace it)
+            weak = RollingChecksum.weak(window.data, at, blockSize);
+        }
+        while (position + blockSize <= size) {
+            int matched = -1;
+            List<Integer> candidates = byWeak.get(weak);
+            if (candidates != null) {
+                int at = window.at(position, blockSize);
+                String hash = RollingChecksum.strong(window.data, at, blockSize);
+                for (int block : candidates) {
+                    if (strong[block].equals(hash)) {
+                        matched = block;
+                        break;
+                    }
+                }
+            }
+            if (matched >= 0) {
+                if (matches.length() > 0) {
+                    matches.append(',');
+                }
+                matches.append(position).append(':').append(matched);
+                TransferStream.addRange(onServer, position, position + blockSize);
+                position += blockSize;
+                matchedTo = position;
+                if (position + blockSize <= size) {
+                    int at = window.at(position, blockSize);
+                    weak = RollingChecksum.weak(window.data, at, blockSize);
+                }
+            } else {
+                if (position + blockSize < size) {
+                    int at = window.at(position, blockSize + 1);
+                    weak = RollingChecksum.roll(weak, window.data[at], window.data[at + blockSize], blockSize);
+                }
+                position++;
+            }
+        }
+        // like rsync, the short last block can only match the end of the file (where the window
+        // gets shorter too), so an unchanged tail is not sent again
+        int tail = (int) (previousSize % blockSize);
+        long tailAt = size - tail;
+        if (tail > 0 && fullBlocks < entries.length && tailAt >= matchedTo) {
+            String[] pair = entries[fullBlocks].split(":");
+            int at = window.at(tailAt, tail);
+            if (RollingChecksum.weak(window.data, at, tail) == (int) Long.parseLong(pair[0], 16)
+                    && RollingChecksum.strong(window.data, at, tail).equals(pair[1])) {
+                if (matches.length() > 0) {
+                    matches.append(',');
+                }
+                matches.append(tailAt).append(':').append(fullBlocks);
+                TransferStream.addRange(onServer, tailAt, size);
+            }
+        }
+        if (matches.length() == 0) {
+            return onServer;
+        }
+
+        sendCommand(Protocol.UPLOAD_DELTA + Protocol.DELIMITER + fileID + Protocol.DELIMITER + version + Protocol.DELIMITER + matches);
+        String response = readMessage(); //UPLOAD_DELTA|||fileID|||committed|||copiedBytes
+        String[] parts = response.split(Protocol.DELIMITER);
+        if (!parts[0].equals(Protocol.UPLOAD_DELTA)) {
+            System.out.println("Delta upload not possible (" + response + "), sending the whole file");
+            return new TreeMap<>();
+        }
+        System.out.println("Delta: " + parts[3] + " of " + size + " bytes taken from the stored version");
+        return onServer;
+    }
+
+    //the part of a file the delta scan is looking at: a few MB read at a time, moved forward as the
+    //rolling window gets to its end (so every read also goes to the upload's digest)
+    private static class FileBuffer {
+        private static final int SIZE = 4 * 1024 * 1024;
+
+        private final FileChannel file;
+        private final FileDigest digest;
+        byte[] data = new byte[0];
+        private long start; // file position of data[0]
+
+        FileBuffer(FileChannel file, FileDigest digest) {
+            this.file = file;
+            this.digest = digest;
+        }
+
+        //makes file[position, position + count) readable in data, returns the index of position
+        int at(long position, int count) throws IOException {
+            if (position < start || position + count > start + data.length) {
+                data = ChunkQueue.read(file, position, (int) Math.min(Math.max(SIZE, count), file.size() - position));
+                start = position;
+                digest.update(start, data, 0, data.length);
+            }
+            return (int) (position - start);
+        }
+    }
+
+    //sends the sha-256 of every blockSize block, returns the blocks the server already had
+    //(an empty set if it could not tell, then everything is sent). the blocks go to digest too
+    private TreeMap<Long, Long> sendBlockHashes(String fileID, FileChannel source, int blockSize, FileDigest digest) throws Exception {
+        StringBuilder hashes = new StringBuilder();
+        long size = source.size();
+        for (long offset = 0; offset < size; offset += blockSize) {
+            if (hashes.length() > 0) {
+                hashes.append(',');
+            }
+            byte[] block = ChunkQueue.read(source, offset, (int) Math.min(blockSize, size - offset));
+            digest.update(offset, block, 0, block.length);
+            hashes.append(Checksums.sha256(block));
+        }
+        sendCommand(Protocol.UPLOAD_HASHES + Protocol.DELIMITER + fileID + Protocol.DELIMITER + hashes);
+
+        String response = readMessage(); //UPLOAD_HASHES|||fileID|||committed|||present
+        String[] parts = response.split(Protocol.DELIMITER);
+        TreeMap<Long, Long> onServer = new TreeMap<>();
+        if (!parts[0].equals(Protocol.UPLOAD_HASHES)) {
+            System.out.println("Server could not check blocks (" + response + "), sending the whole file");
+            return onServer;
+        }
+        String flags = parts.length > 3 ? parts[3] : "";
+        long skipped = 0;
+        int blocks = 0;
+        for (int i = 0; i < flags.length(); i++) {
+            if (flags.charAt(i) == '1') {
+                long start = (long) i * blockSize;
+                long end = Math.min(start + blockSize, size);
+                TransferStream.addRange(onServer, start, end);
+                skipped += end - start;
+                blocks++;
+            }
+        }
+        if (skipped > 0) {
+            System.out.println("Server already has " + blocks + " of " + flags.length()
+                + " block(s), " + skipped + " bytes will not be sent");
+        }
+        return onServer;
+    }
+
+    //sends source[offset..] in chunks, keeping up to uploadWindow chunks unacknowledged.
+    //bytes in onServer are left out (only the rest of a chunk is sent, possibly nothing).
+    //chunkSize is only the starting size, every ack carries the size the server wants from then on.
+    //false if the server rejected a chunk, IOException if the connection dropped
+    private boolean sendChunks(String fileID, FileChannel source, int chunkSize, long offset, TreeMap<Long, Long> onServer,
+                               FileDigest digest) throws Exception {
+        long fileSize = source.size();
+        ChunkQueue parts = new ChunkQueue(source, offset, fileSize, chunkSize, onServer, compression, digest);
+        int inFlight = 0;
+        int chunkNum = 0;
+        
+        try {
+            while (parts.hasNext() || inFlight > 0) {
+                // fill the window (under sendLock: a command sent from another thread can't land inside a frame)
+                synchronized (sendLock) {
+                    while (inFlight < uploadWindow && parts.hasNext()) {
+                        ChunkQueue.Part part = parts.next();
+                        if (binaryMode) {
+                            // the chunk's raw bytes (or their compressed form)
+                            if (part.deflated != null) {
+                                Frame.write(dout, Frame.DEFLATED, fileID, part.seq, part.offset, part.deflated, 0, part.deflated.length);
+                            } else {
+                                Frame.write(dout, Frame.DATA, fileID, part.seq, part.offset, part.data, 0, part.length);
+                            }
+                        } else {
+                            byte[] chunk = part.deflated != null ? part.deflated : part.data;
+                            String chunkBase64 = Base64.getEncoder().encodeToString(chunk);
+                        
+                            // Send chunk
+                            String chunkCommand = Protocol.UPLOAD_CHUNK + Protocol.DELIMITER + fileID + Protocol.DELIMITER + chunkBase64
+                                                + Protocol.DELIMITER + part.seq + Protocol.DELIMITER + part.offset
+                                                + (part.deflated != null ? Protocol.DELIMITER + Protocol.DEFLATE : "");
+                            out.writeObject(chunkCommand);
+                        }
+                        inFlight++;
+                    }
+                    if (binaryMode) {
+                        dout.flush();
+                    } else {
+                        out.flush();
+                    }
+                }
+                if (inFlight == 0) break; // the rest was all on the server already
+                
+                // Wait for acknowledgment
+                String ack = readMessage(); //CHUNK_ACK|||fileID|||seq|||committedBytes|||chunkSize|||bytesPerSec
+                String[] ackParts = ack.split(Protocol.DELIMITER);
+                if (!ackParts[0].equals(Protocol.CHUNK_ACK)) {
+                    System.out.println("Upload failed: " + ack);
+                    return false;
+                }
+                if (!parts.acked(ackParts)) {
+                    return false;
+                }
+                int nextChunkSize = ackParts.length > 4 ? Integer.parseInt(ackParts[4]) : 0;
+                if (nextChunkSize > 0 && nextChunkSize != chunkSize) {
+                    System.out.printf("Server set chunk size to %d KB (measured %.2f MB/s)%n", nextChunkSize / 1024,
+                        Long.parseLong(ackParts[5]) / (1024.0 * 1024));
+                    chunkSize = nextChunkSize;
+                    parts.setChunkSize(chunkSize);
+                }
+                inFlight--;
+                chunkNum++;
+                if (ackParts.length > 3) {
+                    System.out.println("Chunk " + ackParts[2] + " acknowledged (" + ackParts[3] + "/" + fileSize + " bytes committed)");
+                } else {
+                    System.out.println("Chunk " + chunkNum + " sent and acknowledged");
+                }
+            }
+        } finally {
+            parts.close();
+        }
+        if (parts.isCompressing()) {
+            System.out.printf("Compressed: %d bytes sent as %d (%.1fx)%n", parts.getPlainBytes(), parts.getWireBytes(),
+                (double) parts.getPlainBytes() / Math.max(1, parts.getWireBytes()));
+        }
+        return true;
+    }
+
+
+    //how many connections a transfer of size bytes should use
+    private int rangeCount(long size) {
+        if (!binaryMode || sessionToken == null) {
+            return 1;
+        }
+        return (int) Math.max(1, Math.min(streams, size / MIN_RANGE_SIZE));
+    }
+
+    //uploads source split into ranges (whole chunks each), one TransferStream per range.
+    //a failed stream fails the whole upload, the caller then resumes over the main connection
+    private boolean sendParallel(String fileID, FileChannel source, int chunkSize, int ranges, TreeMap<Long, Long> onServer,
+                                 FileDigest digest) throws Exception {
+        long size = source.size();
+        long chunks = (size + chunkSize - 1) / chunkSize;
+        long chunksPerRange = (chunks + ranges - 1) / ranges;
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (int i = 0; i < ranges; i++) {
+            long from = Math.min(size, i * chunksPerRange * chunkSize);
+            long to = Math.min(size, (i + 1) * chunksPerRange * chunkSize);
+            if (from >= to) break;
+            tasks.add(() -> {
+                try (TransferStream stream = new TransferStream(host, port, username, sessionToken, wantCompression)) {
+                    return stream.sendRange(fileID, source, chunkSize, from, to, uploadWindow, onServer, digest);
+                }
+            });
+        }
+        for (Boolean ok : runAll(tasks)) {
+            if (!ok) return false;
+        }
+        return true;
+    }
+
+    //downloads the whole file into saveFile, each range written in place by its own connection
+    //returns the file's sha-256: the first range is hashed as it lands, the rest read back (FileDigest)
+    private String receiveParallel(String owner, String fileName, long fileSize, File saveFile, int ranges) throws Exception {
+        long rangeSize = (fileSize + ranges - 1) / ranges;
+        FileDigest digest = new FileDigest();
+        try (RandomAccessFile raf = new RandomAccessFile(saveFile, "rw")) {
+            raf.setLength(fileSize);
+            FileChannel target = raf.getChannel();
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (int i = 0; i < ranges; i++) {
+                long from = i * rangeSize;
+                long length = Math.min(rangeSize, fileSize - from);
+                if (length <= 0) break;
+                tasks.add(() -> {
+                    try (TransferStream stream = new TransferStream(host, port, username, sessionToken, wantCompression)) {
+                        stream.receiveRange(owner, fileName, from, length, target, digest);
+                        return true;
+                    }
+                });
+            }
+            runAll(tasks);
+            return digest.finish(target);
+        }
+    }
+
+    //runs the range tasks in parallel and waits for all of them. the first failure is rethrown
+    //(IOException stays an IOException so the caller can fall back / resume)
+    private static List<Boolean> runAll(List<Callable<Boolean>> tasks) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<Boolean> results = new ArrayList<>();
+            for (Future<Boolean> result : pool.invokeAll(tasks)) {
+                try {
+                    results.add(result.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
     private void downloadFile() throws Exception {
     System.out.print("Download from (enter username or 'self' for your files): ");
@@ -286,6 +976,14 @@ public class Client {
     }
     
     System.out.println("Will save as: " + savePath);
+
+    if (streams > 1 && binaryMode && sessionToken != null && downloadParallel(owner, fileName, savePath)) {
+        return;
+    }
+    if (multiplexed) {
+        downloadInBackground(owner, fileName, savePath);
+        return;
+    }
     
     // Send download request
     String downloadRequest = Protocol.DOWNLOAD_REQUEST + Protocol.DELIMITER + 
@@ -293,7 +991,7 @@ public class Client {
     sendCommand(downloadRequest);
     
     // Get response
-    String response = (String) in.readObject();
+    String response = readMessage();
     String[] parts = response.split(Protocol.DELIMITER);
     
     if (parts[0].equals(Protocol.ERROR)) {
@@ -308,25 +1006,12 @@ public class Client {
     
     String downloadFileName = parts[1];
     long fileSize = Long.parseLong(parts[2]);
+    // whole-file sha-256 from the server (older files have none), hashed as the bytes are written
+    String expected = parts.length > 5 ? parts[5] : null;
+    MessageDigest digest = expected != null ? Checksums.sha256() : null;
     
     System.out.println("Downloading: " + downloadFileName + " (" + fileSize + " bytes)");
     
-    // Receive file chunks
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    int counter = 0;
-    while (true) {
-        String data = (String) in.readObject();
-        
-        if (data.startsWith(Protocol.DOWNLOAD_COMPLETE)) {
-            break;
-        }
-        
-        byte[] chunk = Base64.getDecoder().decode(data);
-        baos.write(chunk);
-        System.out.println("written chunk no. " + counter);
-        counter++;
-    }
-    
     // Create parent directories if they don't exist
     File saveFile = new File(savePath);
     File parentDir = saveFile.getParentFile();
@@ -334,12 +1019,279 @@ public class Client {
         parentDir.mkdirs();
     }
     
-    // Save file
-    byte[] fileData = baos.toByteArray();
-    Files.write(Paths.get(savePath), fileData);
+    long startNanos = System.nanoTime();
+    int attempts = 0;
+    while (true) {
+        int seen = connection;
+        // first attempt truncates, a resumed one appends after what is already on disk
+        try (FileOutputStream fos = new FileOutputStream(saveFile, attempts > 0)) {
+            receiveDownload(fos, digest, replies, bulkConsumed, din);
+            break;
+        } catch (IOException e) {
+            System.out.println("Connection lost during download: " + e.getMessage());
+            if (++attempts > MAX_RESUME_ATTEMPTS || !reconnect(seen)) {
+                throw e;
+            }
+            long have = saveFile.length();
+            System.out.println("Resuming download at byte " + have + " of " + fileSize);
+            sendCommand(downloadRequest + Protocol.DELIMITER + have);
+            String restart = readMessage();
+            if (!restart.startsWith(Protocol.DOWNLOAD_START)) {
+                System.out.println("Download cannot be resumed: " + restart);
+                return;
+            }
+        }
+    }
     
-    System.out.println("File downloaded successfully: " + savePath + " (" + fileData.length + " bytes)");
+    long received = saveFile.length();
+    if (digest != null && !verifyDigest(expected, Checksums.hex(digest.digest()), saveFile)) {
+        return;
+    }
+    System.out.println("File downloaded successfully: " + savePath + " (" + received + " bytes)");
+    printRate("Downloaded", received, startNanos);
 }
+
+    //multiplexed session: the download gets its own tag and is received on a background thread,
+    //the menu stays usable meanwhile (logout waits for it). If the connection drops it logs in
+    //again and asks for the rest, like a download in the foreground: what arrived stays on disk
+    private void downloadInBackground(String owner, String fileName, String savePath) throws Exception {
+        String downloadRequest = Protocol.DOWNLOAD_REQUEST + Protocol.DELIMITER + owner + Protocol.DELIMITER + fileName;
+        Connection first = currentConnection();
+        int tag = newTag();
+        BlockingQueue<Frame> frames = openStream(first, tag, downloadRequest);
+        System.out.println("Downloading " + fileName + " in the background, the menu stays usable");
+        CompletableFuture<Void> done = CompletableFuture.runAsync(() -> {
+            try {
+                receiveInBackground(downloadRequest, fileName, savePath, first, tag, frames);
+            } catch (Exception e) {
+                System.out.println("\n[DOWNLOAD FAILED] " + fileName + ": " + e.getMessage());
+            }
+        }, backgroundTransfers);
+        synchronized (background) {
+            background.removeIf(CompletableFuture::isDone);
+            background.add(done);
+        }
+    }
+
+    //sends a tagged command on connection, its reply frames go to the returned queue (until the
+    //tag is removed from connection.inFlight.streams)
+    private BlockingQueue<Frame> openStream(Connection connection, int tag, String command) throws IOException {
+        BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+        connection.inFlight.streams.put(tag, frames);
+        try {
+            if (connection.inFlight.closed) {
+                throw new java.io.EOFException("Connection to server closed");
+            }
+            sendTagged(tag, command);
+        } catch (IOException e) {
+            connection.inFlight.streams.remove(tag);
+            throw e;
+        }
+        return frames;
+    }
+
+    private void receiveInBackground(String downloadRequest, String fileName, String savePath,
+                                     Connection connection, int tag, BlockingQueue<Frame> frames) throws Exception {
+        String response;
+        try {
+            response = readFrame(frames).getText();
+        } catch (Exception e) {
+            connection.inFlight.streams.remove(tag);
+            throw e;
+        }
+        String[] parts = response.split(Protocol.DELIMITER);
+        if (!parts[0].equals(Protocol.DOWNLOAD_START)) {
+            connection.inFlight.streams.remove(tag);
+            System.out.println("\n[DOWNLOAD FAILED] " + fileName + ": " + (parts.length > 1 ? parts[1] : response));
+            return;
+        }
+        long fileSize = Long.parseLong(parts[2]);
+        String expected = parts.length > 5 ? parts[5] : null;
+        MessageDigest digest = expected != null ? Checksums.sha256() : null;
+
+        File saveFile = new File(savePath);
+        File parentDir = saveFile.getParentFile();
+        if (parentDir != null && !parentDir.exists()) {
+            parentDir.mkdirs();
+        }
+        long startNanos = System.nanoTime();
+        int attempts = 0;
+        while (true) {
+            try {
+                if (attempts > 0) {
+                    long have = saveFile.length();
+                    System.out.println("\n[DOWNLOAD] resuming " + fileName + " at byte " + have + " of " + fileSize);
+                    connection = currentConnection();
+                    tag = newTag();
+                    frames = openStream(connection, tag, downloadRequest + Protocol.DELIMITER + have);
+                    String restart = readFrame(frames).getText();
+                    if (!restart.startsWith(Protocol.DOWNLOAD_START)) {
+                        System.out.println("\n[DOWNLOAD FAILED] " + fileName + " cannot be resumed: " + restart);
+                        return;
+                    }
+                }
+                // first attempt truncates, a resumed one appends after what is already on disk
+                try (FileOutputStream fos = new FileOutputStream(saveFile, attempts > 0)) {
+                    receiveDownload(fos, digest, frames, connection.bulkConsumed, connection.din);
+                }
+                break;
+            } catch (IOException e) {
+                System.out.println("\n[DOWNLOAD] connection lost during " + fileName + ": " + e.getMessage());
+                if (++attempts > MAX_RESUME_ATTEMPTS || !reconnect(connection.id)) {
+                    throw e;
+                }
+            } finally {
+                connection.inFlight.streams.remove(tag);
+            }
+        }
+        if (digest != null && !verifyDigest(expected, Checksums.hex(digest.digest()), saveFile)) {
+            return;
+        }
+        System.out.println("\n[DOWNLOAD DONE] " + savePath + " (" + fileSize + " bytes)");
+        printRate("Downloaded", fileSize, startNanos);
+    }
+
+    //logout: lets the background downloads finish first
+    private void waitForBackground() {
+        List<CompletableFuture<Void>> running;
+        synchronized (background) {
+            running = new ArrayList<>(background);
+            background.clear();
+        }
+        running.removeIf(CompletableFuture::isDone);
+        if (!running.isEmpty()) {
+            System.out.println("Waiting for " + running.size() + " background download(s) to finish...");
+            CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).join();
+        }
+    }
+
+    //large file + streams > 1: ask for the size and fetch it as parallel ranges.
+    //false = not worth it (small file) or a range failed, the caller then downloads normally
+    private boolean downloadParallel(String owner, String fileName, String savePath) throws Exception {
+        String[] info = request(Protocol.FILE_INFO + Protocol.DELIMITER + owner + Protocol.DELIMITER + fileName)
+            .split(Protocol.DELIMITER); //FILE_INFO|||fileName|||size
+        if (!info[0].equals(Protocol.FILE_INFO)) {
+            return false; // the normal request reports the error
+        }
+        long fileSize = Long.parseLong(info[2]);
+        String expected = info.length > 3 ? info[3] : null;
+        int ranges = rangeCount(fileSize);
+        if (ranges < 2) {
+            return false;
+        }
+
+        File saveFile = new File(savePath);
+        File parentDir = saveFile.getParentFile();
+        if (parentDir != null && !parentDir.exists()) {
+            parentDir.mkdirs();
+        }
+        System.out.println("Downloading: " + fileName + " (" + fileSize + " bytes) over " + ranges + " parallel connections");
+        long startNanos = System.nanoTime();
+        String actual;
+        try {
+            actual = receiveParallel(owner, fileName, fileSize, saveFile, ranges);
+        } catch (IOException e) {
+            System.out.println("Parallel download failed (" + e.getMessage() + "), retrying over the main connection");
+            return false;
+        }
+        if (expected != null && !verifyDigest(expected, actual, saveFile)) {
+            System.out.println("Retrying over the main connection");
+            return false;
+        }
+        System.out.println("File downloaded successfully: " + savePath + " (" + saveFile.length() + " bytes)");
+        printRate("Downloaded", fileSize, startNanos);
+        return true;
+    }
+
+    //false (and the file is deleted) if what arrived doesn't hash to what the server has
+    private static boolean verifyDigest(String expected, String actual, File saveFile) {
+        if (expected.equals(actual)) {
+            System.out.println("Checksum verified (sha-256 " + actual.substring(0, 16) + "...)");
+            return true;
+        }
+        System.out.println("Download corrupted: sha-256 " + actual + " expected " + expected + ", file deleted");
+        saveFile.delete();
+        return false;
+    }
+
+    //reads one download body (after DOWNLOAD_START) into fos until DOWNLOAD_COMPLETE.
+    //fos is unbuffered, so after an IOException the file length is exactly what arrived
+    //(and digest, if any, has seen exactly those bytes: it is updated after each write)
+    //binary mode: frames come from from, a BULK body is read from din and then consumed released
+    //body = the connection's din, a BULK body is read from there
+    private void receiveDownload(FileOutputStream fos, MessageDigest digest, BlockingQueue<Frame> from, Semaphore consumed,
+                                 DataInputStream body) throws Exception {
+        int counter = 0;
+        while (true) {
+            if (binaryMode) {
+                Frame frame = readFrame(from);
+                if (frame.getOpcode() == Frame.BULK) {
+                    // whole body (or a slice of it, multiplexed) follows raw, the reader thread waits until it is consumed
+                    try {
+                        copyExactly(body, fos, frame.getBulkLength(), digest);
+                    } finally {
+                        consumed.release();
+                    }
+                    continue;
+                }
+                if (frame.getOpcode() == Frame.DEFLATED) {
+                    write(fos, ChunkCodec.inflate(frame.getPayload()), digest);
+                    continue;
+                }
+                if (frame.getOpcode() != Frame.DATA) {
+                    if (frame.getText().startsWith(Protocol.DOWNLOAD_COMPLETE)) {
+                        break;
+                    }
+                    continue;
+                }
+                write(fos, frame.getPayload(), digest);
+            } else {
+                String data = (String) in.readObject();
+                
+                if (data.startsWith(Protocol.DOWNLOAD_COMPLETE)) {
+                    break;
+                }
+                
+                byte[] chunk;
+                if (data.startsWith(Protocol.DEFLATE + Protocol.DELIMITER)) {
+                    chunk = ChunkCodec.inflate(Base64.getDecoder().decode(data.substring(Protocol.DEFLATE.length() + Protocol.DELIMITER.length())));
+                } else {
+                    chunk = Base64.getDecoder().decode(data);
+                }
+                write(fos, chunk, digest);
+                System.out.println("written chunk no. " + counter);
+                counter++;
+            }
+        }
+    }
+
+    private static void copyExactly(InputStream input, FileOutputStream fos, long length, MessageDigest digest) throws Exception {
+        byte[] buffer = new byte[64 * 1024];
+        while (length > 0) {
+            int read = input.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (read < 0) {
+                throw new java.io.EOFException("Connection closed during download");
+            }
+            fos.write(buffer, 0, read);
+            if (digest != null) {
+                digest.update(buffer, 0, read);
+            }
+            length -= read;
+        }
+    }
+
+    private static void write(FileOutputStream fos, byte[] data, MessageDigest digest) throws IOException {
+        fos.write(data);
+        if (digest != null) {
+            digest.update(data);
+        }
+    }
+
+    private void printRate(String what, long bytes, long startNanos) {
+        double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+        System.out.println(String.format("%s %d bytes in %.3f s (%.2f MB/s, %s protocol)",
+            what, bytes, seconds, bytes / (1024.0 * 1024.0) / seconds, binaryMode ? "binary" : "legacy"));
+    }
     //make file request
     private void makeFileRequest() throws Exception {
         System.out.print("Enter file description: ");
@@ -350,22 +1302,41 @@ public class Client {
         
         String command = Protocol.MAKE_FILE_REQUEST + Protocol.DELIMITER + 
                         description + Protocol.DELIMITER + recipient;
-        sendCommand(command);
-        
-        String response = recieveResponse();
+        String response = recieveResponse(request(command));
         System.out.println("\n" + response);
     }
     private void viewMessages() throws Exception {
-        sendCommand(Protocol.VIEW_MESSAGES);
-        String response = recieveResponse();
+        String response = recieveResponse(request(Protocol.VIEW_MESSAGES));
         System.out.println("\n" + response);
     }
+    //pages through the history newest first, the server only reads the requested page
     private void viewHistory() throws Exception {
-        sendCommand(Protocol.VIEW_HISTORY);
-        String response = recieveResponse();
-        System.out.println("\n" + response);
+        System.out.print("Entries per page (blank = 20): ");
+        String limit = scanner.nextLine().trim();
+        System.out.print("Filter by action, e.g. UPLOAD / DOWNLOAD (blank = all): ");
+        String action = scanner.nextLine().trim().toUpperCase();
+        System.out.print("Filter by status, e.g. SUCCESS / FAILED (blank = all): ");
+        String status = scanner.nextLine().trim().toUpperCase();
+
+        String cursor = "";
+        while (true) {
+            String response = request(Protocol.VIEW_HISTORY + Protocol.DELIMITER + limit + Protocol.DELIMITER + cursor
+                + Protocol.DELIMITER + action + Protocol.DELIMITER + status); // whole reply, the cursor is its last field
+            int last = response.lastIndexOf(Protocol.DELIMITER);
+            if (!response.startsWith(Protocol.SUCCESS) || last < 0) {
+                System.out.println("\n" + response);
+                return;
+            }
+            System.out.println("\n" + response.substring((Protocol.SUCCESS + Protocol.DELIMITER).length(), last));
+
+            cursor = response.substring(last + Protocol.DELIMITER.length()).trim();
+            if (cursor.equals("-1")) return;
+            System.out.print("Show older entries? (yes/no): ");
+            if (!scanner.nextLine().trim().equalsIgnoreCase("yes")) return;
+        }
     }
     private void logout() throws Exception {
+        waitForBackground();
         sendCommand(Protocol.LOGOUT);
         
         
@@ -391,6 +1362,25 @@ public class Client {
             host = args[0];
             port = Integer.parseInt(args[1]);
         }
+        // optional extra arguments:
+        //   legacy    -> keep the old Base64 string protocol (for comparison)
+        //   window=N  -> upload chunks kept in flight (1 = stop-and-wait)
+        //   streams=N -> parallel connections for large uploads/downloads (binary protocol only)
+        //   compress=off -> never compress chunks (on by default, only used for compressible data)
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("legacy")) {
+                client = new Client(false);
+            }
+        }
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("window=")) {
+                client.setUploadWindow(Integer.parseInt(args[i].substring("window=".length())));
+            } else if (args[i].startsWith("streams=")) {
+                client.setStreams(Integer.parseInt(args[i].substring("streams=".length())));
+            } else if (args[i].equalsIgnoreCase("compress=off")) {
+                client.setCompression(false);
+            }
+        }
 
         if (client.connect(host, port)) {
             client.run();
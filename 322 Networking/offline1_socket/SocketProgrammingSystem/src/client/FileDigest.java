@@ -0,0 +1,43 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import utils.Checksums;
+
+// Whole-file sha-256 of a transfer, built from bytes the transfer handles anyway: on upload the
+// block hashes / the delta scan / the chunks as they are cut, on download the bytes as they land.
+// sha-256 only takes bytes in file order, so a piece only counts if it continues what is hashed
+// so far (overlaps are skipped, pieces further on are ignored). finish() reads back whatever no
+// pass saw in order: ranges the server already had, the later ranges of a parallel transfer.
+// Ranges of a parallel transfer arrive side by side, holding the later ones until their turn
+// would mean up to the whole file in memory, so those are read back once (from the page cache).
+class FileDigest {
+    private final MessageDigest digest = Checksums.sha256();
+    private long hashedTo;
+
+    //data[offset, offset + length) is the file at position
+    synchronized void update(long position, byte[] data, int offset, int length) {
+        long end = position + length;
+        if (position > hashedTo || end <= hashedTo) {
+            return;
+        }
+        int skip = (int) (hashedTo - position);
+        digest.update(data, offset + skip, length - skip);
+        hashedTo = end;
+    }
+
+    //hashes the rest of file and returns the digest in hex
+    synchronized String finish(FileChannel file) throws IOException {
+        long size = file.size();
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        while (hashedTo < size) {
+            int read = file.read(buffer.clear(), hashedTo);
+            if (read <= 0) break;
+            digest.update(buffer.array(), 0, read);
+            hashedTo += read;
+        }
+        return Checksums.hex(digest.digest());
+    }
+}
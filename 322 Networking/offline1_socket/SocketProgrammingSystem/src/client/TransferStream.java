@@ -0,0 +1,194 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import utils.ChunkCodec;
+import utils.Frame;
+import utils.Protocol;
+
+// One extra connection of a logged in session (ATTACH login with the session token).
+// A parallel upload/download gives each of these one byte range of the file.
+// Nothing is pushed to these connections, so there is no reader thread: replies are read inline.
+public class TransferStream implements AutoCloseable {
+    private final Socket socket;
+    private final DataInputStream din;
+    private final DataOutputStream dout;
+    private boolean compression; // DEFLATE agreed for this connection
+
+    public TransferStream(String host, int port, String username, String token, boolean wantCompression) throws Exception {
+        socket = new Socket(host, port);
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            String prompt = (String) in.readObject(); // "Enter your username:" (or DENIED, too many connections)
+            if (prompt.startsWith(Protocol.DENIED)) {
+                throw new IOException("Server refused transfer connection: " + prompt);
+            }
+            out.writeObject(username + Protocol.DELIMITER + Protocol.BINARY + Protocol.DELIMITER + Protocol.ATTACH + Protocol.DELIMITER + token
+                + (wantCompression ? Protocol.DELIMITER + Protocol.DEFLATE : ""));
+            out.flush();
+
+            String reply = (String) in.readObject();
+            if (!reply.startsWith(Protocol.SUCCESS)) {
+                throw new IOException("Server refused transfer connection: " + reply);
+            }
+            compression = reply.endsWith(Protocol.DELIMITER + Protocol.DEFLATE);
+        } catch (Exception e) {
+            socket.close();
+            throw e;
+        }
+        din = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        dout = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    //uploads bytes [from, to) of source as DATA (or DEFLATED) frames of chunkSize (from is a multiple of the starting chunkSize,
+    //so seq numbers start where the previous stream's end), skipping bytes the server already has.
+    //the chunk size follows what the server puts in its acks. false if the server rejected a chunk.
+    //digest sees the bytes as they are read (only the range at its front counts, see FileDigest)
+    public boolean sendRange(String fileID, FileChannel source, int chunkSize, long from, long to, int window,
+                             TreeMap<Long, Long> onServer, FileDigest digest) throws IOException {
+        ChunkQueue parts = new ChunkQueue(source, from, to, chunkSize, onServer, compression, digest);
+        int inFlight = 0;
+        try {
+            while (parts.hasNext() || inFlight > 0) {
+                while (inFlight < window && parts.hasNext()) {
+                    ChunkQueue.Part part = parts.next();
+                    if (part.deflated != null) {
+                        Frame.write(dout, Frame.DEFLATED, fileID, part.seq, part.offset, part.deflated, 0, part.deflated.length);
+                    } else {
+                        Frame.write(dout, Frame.DATA, fileID, part.seq, part.offset, part.data, 0, part.length);
+                    }
+                    inFlight++;
+                }
+                dout.flush();
+                if (inFlight == 0) break; // the rest was all on the server already
+
+                String ack = Frame.read(din).getText(); //CHUNK_ACK|||fileID|||seq|||committedBytes|||chunkSize|||bytesPerSec
+                if (!ack.startsWith(Protocol.CHUNK_ACK)) {
+                    System.out.println("Upload failed: " + ack);
+                    return false;
+                }
+                String[] ackParts = ack.split(Protocol.DELIMITER);
+                if (!parts.acked(ackParts)) {
+                    return false;
+                }
+                if (ackParts.length > 4 && Integer.parseInt(ackParts[4]) > 0) {
+                    parts.setChunkSize(Integer.parseInt(ackParts[4]));
+                }
+                inFlight--;
+            }
+        } finally {
+            parts.close();
+        }
+        return true;
+    }
+
+    //parts of [offset, offset + length) that are not in onServer (start -> end, disjoint ranges
+    //the server filled in itself from UPLOAD_HASHES / UPLOAD_DELTA), as {start, end} pairs
+    static List<long[]> missing(TreeMap<Long, Long> onServer, long offset, int length) {
+        List<long[]> parts = new ArrayList<>();
+        long position = offset;
+        long end = offset + length;
+        Map.Entry<Long, Long> range = onServer.floorEntry(position);
+        if (range == null || range.getValue() <= position) {
+            range = onServer.higherEntry(position);
+        }
+        while (position < end) {
+            if (range == null || range.getKey() >= end) {
+                parts.add(new long[] {position, end});
+                break;
+            }
+            if (range.getKey() > position) {
+                parts.add(new long[] {position, range.getKey()});
+            }
+            position = Math.max(position, range.getValue());
+            range = onServer.higherEntry(range.getKey());
+        }
+        return parts;
+    }
+
+    //adds [start, end) to ranges, merged with ranges it overlaps or touches
+    static void addRange(TreeMap<Long, Long> ranges, long start, long end) {
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+    }
+
+    //downloads bytes [from, from + length) of owner's file straight into target at the same position,
+    //digest sees them as they land
+    public void receiveRange(String owner, String fileName, long from, long length, FileChannel target, FileDigest digest) throws IOException {
+        Frame.writeText(dout, Frame.CMD, Protocol.DOWNLOAD_REQUEST + Protocol.DELIMITER + owner + Protocol.DELIMITER + fileName
+            + Protocol.DELIMITER + from + Protocol.DELIMITER + length);
+        dout.flush();
+
+        byte[] buffer = new byte[64 * 1024];
+        while (true) {
+            Frame frame = Frame.read(din);
+            if (frame.getOpcode() == Frame.BULK) {
+                long position = frame.getOffset();
+                long remaining = frame.getBulkLength();
+                while (remaining > 0) {
+                    int read = din.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new java.io.EOFException("Connection closed during download");
+                    }
+                    writeFully(target, ByteBuffer.wrap(buffer, 0, read), position);
+                    digest.update(position, buffer, 0, read);
+                    position += read;
+                    remaining -= read;
+                }
+            } else if (frame.getOpcode() == Frame.DATA) {
+                writeFully(target, ByteBuffer.wrap(frame.getPayload()), frame.getOffset());
+                digest.update(frame.getOffset(), frame.getPayload(), 0, frame.getPayload().length);
+            } else if (frame.getOpcode() == Frame.DEFLATED) {
+                byte[] plain = ChunkCodec.inflate(frame.getPayload());
+                writeFully(target, ByteBuffer.wrap(plain), frame.getOffset());
+                digest.update(frame.getOffset(), plain, 0, plain.length);
+            } else {
+                String text = frame.getText();
+                if (text.startsWith(Protocol.DOWNLOAD_COMPLETE)) {
+                    return;
+                }
+                if (text.startsWith(Protocol.ERROR)) {
+                    throw new IOException("Range download failed: " + text);
+                }
+                // DOWNLOAD_START: nothing to do, the range was asked for explicitly
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            position += target.write(bytes, position);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -1,30 +1,213 @@
-
 package models;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import utils.Checksums;
 
 //ChunkInfo stores temporary information during file upload
- 
+
 public class ChunkInfo implements Serializable {
     private String fileID;
-    private int chunkSize;
+    private String owner;
+    private FileMetadata metadata; // registered in the catalog only once the upload commits
+    private volatile int chunkSize; // current size, the server's ChunkSizer changes it during the upload
     private int totalChunks;
     private int receivedChunks;
     private long totalSize;
-    
-    public ChunkInfo(String fileID, int chunkSize, long totalSize) {
+    private long startNanos;    // for throughput logging
+    private long startCpuNanos; // handler thread cpu time when upload started
+    private volatile long parkedAt; // owner disconnected at this time (millis), 0 while a session is attached
+    private transient boolean ended; // completed, cancelled or expired: can't be parked / resumed anymore
+
+    // received byte ranges, start -> end (exclusive). neighbours are merged so this stays tiny
+    private TreeMap<Long, Long> receivedRanges = new TreeMap<>();
+    private long receivedBytes;
+    private long chunkBytes; // bytes that came in chunks (not filled in from the blob store)
+    private long wireBytes;  // what those chunks took on the wire, less if they came compressed
+
+    // sha-256 of the file, fed with the committed prefix as it grows: straight from the chunk that
+    // extends it (the usual in-order case), from the staging file for ranges that were filled out
+    // of order (other streams, blob store, delta copies). guarded by hashLock, not the monitor:
+    // reading + hashing a range doesn't hold up markReceived of the other streams
+    private transient MessageDigest digest = Checksums.sha256();
+    private transient ReentrantLock hashLock = new ReentrantLock();
+    private volatile long hashedBytes;
+    private volatile String sha256; // set once every byte is hashed
+
+    public ChunkInfo(String fileID, String owner, int chunkSize, long totalSize) {
         this.fileID = fileID;
+        this.owner = owner;
         this.chunkSize = chunkSize;
         this.totalSize = totalSize;
         this.totalChunks = (int) Math.ceil((double) totalSize / chunkSize);
-        System.out.println("DEBUGGGG ChunkInfo total chunks calculated: " + this.totalChunks);
         this.receivedChunks = 0;
+        this.startNanos = System.nanoTime();
     }
-    
+
     public String getFileID() { return fileID; }
+    public String getOwner() { return owner; }
+    public FileMetadata getMetadata() { return metadata; }
+    public void setMetadata(FileMetadata metadata) { this.metadata = metadata; }
     public int getChunkSize() { return chunkSize; }
+    public void setChunkSize(int chunkSize) { this.chunkSize = chunkSize; }
     public int getTotalChunks() { return totalChunks; }
     public int getReceivedChunks() { return receivedChunks; }
     public void incrementReceivedChunks() { receivedChunks++; }
     public long getTotalSize() { return totalSize; }
-}
\ No newline at end of file
+    public long getStartNanos() { return startNanos; }
+    public long getStartCpuNanos() { return startCpuNanos; }
+    public void setStartCpuNanos(long startCpuNanos) { this.startCpuNanos = startCpuNanos; }
+    public long getParkedAt() { return parkedAt; }
+    public boolean isParked() { return parkedAt != 0; }
+
+    // park / unpark / expire are each one step under the monitor (ServerConfig holds it around the
+    // staging file too), so the reaper can't expire an upload its owner is resuming right then
+    public synchronized boolean isEnded() { return ended; }
+    public synchronized void end() { ended = true; }
+    public synchronized void park() { parkedAt = System.currentTimeMillis(); }
+    public synchronized void unpark() { parkedAt = 0; }
+
+    //ends the upload if it has been parked longer than ttlMillis. false = attached, already ended or not that old
+    public synchronized boolean expire(long ttlMillis) {
+        if (ended || parkedAt == 0 || System.currentTimeMillis() - parkedAt <= ttlMillis) return false;
+        ended = true;
+        return true;
+    }
+    public synchronized long getChunkBytes() { return chunkBytes; }
+    public synchronized long getWireBytes() { return wireBytes; }
+
+    public synchronized void addWireBytes(int plain, int wire) {
+        chunkBytes += plain;
+        wireBytes += wire;
+    }
+
+    //records [offset, offset+length) as received. a chunk may partly overlap ranges we already
+    //have (blocks filled from the blob store, resent chunks after a resume), only the new bytes
+    //count. returns false if nothing in it was new
+    public synchronized boolean markReceived(long offset, int length) {
+        long start = offset;
+        long end = offset + length;
+        long chunkEnd = end;
+        long added = length;
+
+        // swallow every range that overlaps or touches [start, end)
+        Map.Entry<Long, Long> range = receivedRanges.floorEntry(start);
+        if (range == null || range.getValue() < start) {
+            range = receivedRanges.ceilingEntry(start);
+        }
+        while (range != null && range.getKey() <= end) {
+            added -= Math.max(0, Math.min(chunkEnd, range.getValue()) - Math.max(offset, range.getKey()));
+            start = Math.min(start, range.getKey());
+            end = Math.max(end, range.getValue());
+            receivedRanges.remove(range.getKey());
+            range = receivedRanges.ceilingEntry(start);
+        }
+        receivedRanges.put(start, end);
+        if (added <= 0) {
+            return false;
+        }
+        receivedBytes += added;
+        receivedChunks++;
+        return true;
+    }
+
+    //bytes received without a gap from the start of the file (what a cumulative ack reports)
+    public synchronized long getCommittedBytes() {
+        Long end = receivedRanges.get(0L);
+        return end == null ? 0 : end;
+    }
+
+    public synchronized long getReceivedBytes() { return receivedBytes; }
+
+    public synchronized boolean isComplete() {
+        return getCommittedBytes() == totalSize;
+    }
+
+    //call after markReceived: hashes whatever the committed prefix gained. data = the chunk just
+    //written at offset. if another stream is hashing right now this returns at once, that stream
+    //keeps going until the committed prefix stops growing (so it takes this range too)
+    public void hashCommitted(long offset, byte[] data, FileChannel staging) throws IOException {
+        do {
+            if (!hashLock.tryLock()) return;
+            try {
+                hashTo(getCommittedBytes(), offset, data, staging);
+            } finally {
+                hashLock.unlock();
+            }
+            data = null;
+        } while (hashedBytes < getCommittedBytes()); // grew while we hashed, its owner found us busy
+    }
+
+    //like hashCommitted but waits for a stream that is hashing (at completion: every byte counts)
+    public void finishHashing(FileChannel staging) throws IOException {
+        hashLock.lock();
+        try {
+            hashTo(getCommittedBytes(), 0, null, staging);
+        } finally {
+            hashLock.unlock();
+        }
+    }
+
+    //feeds the digest up to committed (decided under the monitor by the caller, read and hashed
+    //here without it). call with hashLock held
+    private void hashTo(long committed, long offset, byte[] data, FileChannel staging) throws IOException {
+        if (data != null && offset <= hashedBytes && hashedBytes < offset + data.length) {
+            int n = (int) (Math.min(offset + data.length, committed) - hashedBytes);
+            if (n > 0) {
+                digest.update(data, (int) (hashedBytes - offset), n);
+                hashedBytes += n;
+            }
+        }
+        if (hashedBytes < committed) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(256 * 1024, committed - hashedBytes));
+            while (hashedBytes < committed) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), committed - hashedBytes));
+                if (staging.read(buffer, hashedBytes) <= 0) {
+                    throw new IOException("Staging file shorter than the received data");
+                }
+                buffer.flip();
+                hashedBytes += buffer.remaining();
+                digest.update(buffer);
+            }
+        }
+        if (hashedBytes == totalSize && sha256 == null) {
+            sha256 = Checksums.hex(digest.digest());
+        }
+    }
+
+    //throws the running digest away and hashes the staged file again from the start (a chunk was
+    //rewritten after the first copy had already gone into the digest)
+    public void rehash(FileChannel staging) throws IOException {
+        hashLock.lock();
+        try {
+            digest.reset();
+            hashedBytes = 0;
+            sha256 = null;
+            hashTo(getCommittedBytes(), 0, null, staging);
+        } finally {
+            hashLock.unlock();
+        }
+    }
+
+    //hex sha-256 of the whole file, null until all of it has been hashed
+    public String getSha256() {
+        return sha256;
+    }
+
+    //saved state of a parked upload (server restart): the running digest isn't saved, the next
+    //hashCommitted hashes the committed prefix from the staging file again
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        digest = Checksums.sha256();
+        hashLock = new ReentrantLock();
+        hashedBytes = 0;
+        sha256 = null;
+    }
+}
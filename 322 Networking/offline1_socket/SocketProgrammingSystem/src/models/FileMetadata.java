@@ -13,8 +13,9 @@ public class FileMetadata implements Serializable {
     private String owner;
     private String accessType; // PRIVATE or PUBLIC
     private String fileID;
-    private String requestID; // null if not uploaded in response to request
+    private long requestID; // 0 if not uploaded in response to request
     private Date uploadDate;
+    private String sha256; // whole-file digest, null if the file was stored before digests were kept
     
     public FileMetadata(String fileName, long fileSize, String owner, String accessType) {
         this.fileName = fileName;
@@ -32,10 +33,13 @@ public class FileMetadata implements Serializable {
     public String getAccessType() { return accessType; }
     public String getFileID() { return fileID; }
     public void setFileID(String fileID) { this.fileID = fileID; }
-    public String getRequestID() { return requestID; }
-    public void setRequestID(String requestID) { this.requestID = requestID; }
+    public long getRequestID() { return requestID; }
+    public void setRequestID(long requestID) { this.requestID = requestID; }
     public Date getUploadDate() { return uploadDate; }
+    public void setUploadDate(Date uploadDate) { this.uploadDate = uploadDate; }
     public void setAccessType(String accessType) { this.accessType = accessType; }
+    public String getSha256() { return sha256; }
+    public void setSha256(String sha256) { this.sha256 = sha256; }
 }
 
 
@@ -7,14 +7,14 @@ import java.util.Date;
 //FileRequest represents a file request made by a client
 
 public class FileRequest implements Serializable {
-    private String requestID;
+    private long requestID;
     private String requester;
     private String recipient; // username or "ALL"
     private String description;
     private Date timestamp;
     private boolean fulfilled;
     
-    public FileRequest(String requestID, String requester, String recipient, String description) {
+    public FileRequest(long requestID, String requester, String recipient, String description) {
         this.requestID = requestID;
         this.requester = requester;
         this.recipient = recipient;
@@ -23,7 +23,7 @@ public class FileRequest implements Serializable {
         this.fulfilled = false;
     }
     
-    public String getRequestID() { return requestID; }
+    public long getRequestID() { return requestID; }
     public String getRequester() { return requester; }
     public String getRecipient() { return recipient; }
     public String getDescription() { return description; }
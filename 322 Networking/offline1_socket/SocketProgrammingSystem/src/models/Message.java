@@ -6,13 +6,13 @@ import java.util.Date;
 
 //Message represents notifications sent to clients
 public class Message implements Serializable {
-    private String messageID;
+    private long messageID;
     private String recipient;
     private String content;
     private Date timestamp;
     private boolean read;
     
-    public Message(String messageID, String recipient, String content) {
+    public Message(long messageID, String recipient, String content) {
         this.messageID = messageID;
         this.recipient = recipient;
         this.content = content;
@@ -20,10 +20,11 @@ public class Message implements Serializable {
         this.read = false;
     }
     
-    public String getMessageID() { return messageID; }
+    public long getMessageID() { return messageID; }
     public String getRecipient() { return recipient; }
     public String getContent() { return content; }
     public Date getTimestamp() { return timestamp; }
+    public void setTimestamp(Date timestamp) { this.timestamp = timestamp; }
     public boolean isRead() { return read; }
     public void setRead(boolean read) { this.read = read; }
 }
\ No newline at end of file
@@ -0,0 +1,211 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Offset index for activity_log.txt so VIEW_HISTORY can read one page without touching the rest.
+// activity_log.idx holds one 8 byte start offset per log line, entry i = line i.
+// ActivityLogger appends to both files (log first, then index) from its writer thread, and
+// repairs the index when it opens a log (old logs without an index, or a crash between the writes).
+public class ActivityHistory {
+    private static final int SCAN_BATCH = 256; // entries read per step when a filter skips lines
+    public static final int DEFAULT_PAGE = 20;
+    public static final int MAX_PAGE = 500;
+
+    public static class Page {
+        public final String text;
+        public final long nextCursor; // -1 when nothing older is left
+
+        Page(String text, long nextCursor) {
+            this.text = text;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    public static Path logPath(String username) {
+        return Paths.get(ServerConfig.SERVER_DATA_DIR, username, "activity_log.txt");
+    }
+
+    public static Path indexPath(String username) {
+        return Paths.get(ServerConfig.SERVER_DATA_DIR, username, "activity_log.idx");
+    }
+
+    // ---- write side (ActivityLogger thread only) ----
+
+    //records the start of every line in bytes, which were just appended to the log at baseOffset
+    static void appendOffsets(FileChannel index, long baseOffset, byte[] bytes) throws IOException {
+        ByteBuffer offsets = ByteBuffer.allocate(8 * countLines(bytes, 0, bytes.length));
+        int lineStart = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                offsets.putLong(baseOffset + lineStart);
+                lineStart = i + 1;
+            }
+        }
+        offsets.flip();
+        while (offsets.hasRemaining()) {
+            index.write(offsets);
+        }
+    }
+
+    //makes the index cover every complete line of the log: drops a torn last entry and indexes
+    //lines that are missing (whole log if there was no index yet)
+    static void repairIndex(FileChannel log, FileChannel index) throws IOException {
+        long entries = index.size() / 8;
+        index.truncate(entries * 8);
+
+        long logSize = log.size();
+        // drop entries that point past the log (log write lost in a crash)
+        while (entries > 0 && readOffset(index, entries - 1) >= logSize) {
+            entries--;
+        }
+        index.truncate(entries * 8);
+
+        // first byte after the last indexed line, found by scanning that one line
+        long scanFrom = 0;
+        if (entries > 0) {
+            long lastStart = readOffset(index, entries - 1);
+            scanFrom = endOfLine(log, lastStart, logSize);
+            if (scanFrom < 0) return; // last line still incomplete
+        }
+        if (scanFrom >= logSize) return;
+
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer offsets = ByteBuffer.allocate(8 * buffer.capacity());
+        long lineStart = scanFrom;
+        long position = scanFrom;
+        index.position(entries * 8);
+        while (position < logSize) {
+            buffer.clear();
+            int read = log.read(buffer, position);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    offsets.putLong(lineStart);
+                    lineStart = position + i + 1;
+                }
+            }
+            position += read;
+            offsets.flip();
+            while (offsets.hasRemaining()) {
+                index.write(offsets);
+            }
+            offsets.clear();
+        }
+    }
+
+    // ---- read side ----
+
+    //one page of history, newest first. cursor = entry number to continue below (-1 = newest).
+    //action/status filters are optional (null). Only the entries that are inspected are read
+    public static Page readPage(String username, int limit, long cursor, String action, String status) throws IOException {
+        Path log = logPath(username);
+        Path idx = indexPath(username);
+        if (!Files.exists(log) || !Files.exists(idx)) {
+            return new Page("No activity log found.", -1);
+        }
+
+        try (FileChannel logChannel = FileChannel.open(log, StandardOpenOption.READ);
+             FileChannel indexChannel = FileChannel.open(idx, StandardOpenOption.READ)) {
+            long total = indexChannel.size() / 8;
+            long end = (cursor < 0 || cursor > total) ? total : cursor; // exclusive
+            List<String> page = new ArrayList<>();
+            long scanned = end;
+
+            while (scanned > 0 && page.size() < limit) {
+                long from = Math.max(0, scanned - SCAN_BATCH);
+                List<String> lines = readLines(logChannel, indexChannel, from, scanned, total);
+                for (int i = lines.size() - 1; i >= 0 && page.size() < limit; i--) {
+                    scanned = from + i;
+                    if (matches(lines.get(i), action, status)) {
+                        page.add(lines.get(i));
+                    }
+                }
+                if (page.size() < limit) {
+                    scanned = from;
+                }
+            }
+
+            StringBuilder result = new StringBuilder();
+            if (page.isEmpty()) {
+                result.append("No matching activity.\n");
+            }
+            for (String line : page) {
+                result.append(line).append("\n");
+            }
+            result.append("(").append(total).append(" entries in total");
+            if (scanned > 0) {
+                result.append(", more with cursor ").append(scanned);
+            }
+            result.append(")\n");
+            return new Page(result.toString(), scanned > 0 ? scanned : -1);
+        }
+    }
+
+    //lines [from, to) of the log, located through the index
+    private static List<String> readLines(FileChannel log, FileChannel index, long from, long to, long total) throws IOException {
+        long start = readOffset(index, from);
+        long end = to < total ? readOffset(index, to) : log.size();
+        ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+        while (bytes.hasRemaining()) {
+            if (log.read(bytes, start + bytes.position()) < 0) break;
+        }
+        String[] lines = new String(bytes.array(), 0, bytes.position(), StandardCharsets.UTF_8).split("\r?\n");
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < lines.length && result.size() < to - from; i++) {
+            result.add(lines[i]);
+        }
+        return result;
+    }
+
+    // Format: [timestamp] File: name | Action: UPLOAD | Status: SUCCESS | Access: PUBLIC
+    private static boolean matches(String line, String action, String status) {
+        if (action != null && !line.contains("| Action: " + action + " |")) return false;
+        if (status != null && !line.contains("| Status: " + status + " |")) return false;
+        return true;
+    }
+
+    private static long readOffset(FileChannel index, long entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        while (buffer.hasRemaining()) {
+            if (index.read(buffer, entry * 8 + buffer.position()) < 0) {
+                throw new IOException("Activity index truncated");
+            }
+        }
+        return buffer.getLong(0);
+    }
+
+    //position right after the '\n' ending the line that starts at lineStart, -1 if none yet
+    private static long endOfLine(FileChannel log, long lineStart, long logSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long position = lineStart;
+        while (position < logSize) {
+            buffer.clear();
+            int read = log.read(buffer, position);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return -1;
+    }
+
+    private static int countLines(byte[] bytes, int from, int to) {
+        int lines = 0;
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\n') lines++;
+        }
+        return lines;
+    }
+}
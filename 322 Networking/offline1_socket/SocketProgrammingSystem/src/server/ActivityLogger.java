@@ -0,0 +1,263 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Background writer for the per-user activity_log.txt files.
+// Handler threads only enqueue an entry; one writer thread formats them, groups them per user
+// and appends each group with a single write on a channel that stays open (LRU of channels).
+// Pending text is written once FLUSH_BYTES have piled up or the oldest entry is FLUSH_INTERVAL_MS
+// old. In durable mode every written batch is also fsynced.
+// Every written line also gets its start offset appended to activity_log.idx (see ActivityHistory).
+public class ActivityLogger {
+    private static final int QUEUE_CAPACITY = 10_000;   // producers block when the writer falls this far behind
+    private static final int FLUSH_BYTES = 64 * 1024;
+    private static final long FLUSH_INTERVAL_MS = 200;
+    private static final int MAX_OPEN_LOGS = 256;
+
+    private static final DateTimeFormatter TIMESTAMP =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static class Entry {
+        final String username;
+        final long time;
+        final String fileName;
+        final String action;
+        final String status;
+        final String accessType;
+
+        Entry(String username, long time, String fileName, String action, String status, String accessType) {
+            this.username = username;
+            this.time = time;
+            this.fileName = fileName;
+            this.action = action;
+            this.status = status;
+            this.accessType = accessType;
+        }
+    }
+
+    // both files of one user's log
+    private static class LogFiles {
+        final FileChannel log;
+        final FileChannel index;
+
+        LogFiles(FileChannel log, FileChannel index) {
+            this.log = log;
+            this.index = index;
+        }
+
+        void close() {
+            closeQuietly(log);
+            closeQuietly(index);
+        }
+    }
+
+    // queued by sync(username): open (and so repair the index of) that user's log
+    private static class IndexRequest {
+        final String username;
+
+        IndexRequest(String username) {
+            this.username = username;
+        }
+    }
+
+    private static final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static volatile boolean durable;
+
+    // writer thread only
+    private static final Map<String, StringBuilder> pending = new HashMap<>();
+    private static int pendingBytes;
+    private static long oldestPending;
+    private static final List<CountDownLatch> waiters = new ArrayList<>();
+    private static final Map<String, LogFiles> openLogs = new LinkedHashMap<String, LogFiles>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LogFiles> eldest) {
+            if (size() > MAX_OPEN_LOGS) {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    static {
+        Thread writer = new Thread(ActivityLogger::writeLoop, "activity-logger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> sync(2000)));
+    }
+
+    //fsync every batch (slower, nothing lost on power failure)
+    public static void setDurable(boolean value) {
+        durable = value;
+    }
+
+    public static void log(String username, String fileName, String action, String status, String accessType) {
+        Entry entry = new Entry(username, System.currentTimeMillis(), fileName, action, status, accessType);
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //waits until everything logged before this call is written (used before reading a log back)
+    public static void sync() {
+        sync(10_000);
+    }
+
+    //same, and makes sure username's index covers its whole log (before a page is read)
+    public static void sync(String username) {
+        try {
+            if (!queue.offer(new IndexRequest(username), 10_000, TimeUnit.MILLISECONDS)) return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        sync();
+    }
+
+    private static void sync(long timeoutMs) {
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            if (queue.offer(done, timeoutMs, TimeUnit.MILLISECONDS)) {
+                done.await(timeoutMs, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeLoop() {
+        List<Object> batch = new ArrayList<>();
+        while (true) {
+            try {
+                long wait = pendingBytes == 0 ? FLUSH_INTERVAL_MS
+                    : Math.max(1, oldestPending + FLUSH_INTERVAL_MS - System.currentTimeMillis());
+                Object first = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    for (Object item : batch) {
+                        if (item instanceof Entry) {
+                            append((Entry) item);
+                        } else if (item instanceof IndexRequest) {
+                            openIndexed(((IndexRequest) item).username);
+                        } else {
+                            waiters.add((CountDownLatch) item);
+                        }
+                    }
+                    batch.clear();
+                }
+
+                boolean due = pendingBytes > 0 && System.currentTimeMillis() - oldestPending >= FLUSH_INTERVAL_MS;
+                if (pendingBytes >= FLUSH_BYTES || due || !waiters.isEmpty()) {
+                    writePending();
+                    for (CountDownLatch waiter : waiters) {
+                        waiter.countDown();
+                    }
+                    waiters.clear();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("Error in activity logger: " + e.getMessage());
+            }
+        }
+    }
+
+    // Format: [timestamp] File: name | Action: UPLOAD | Status: SUCCESS | Access: PUBLIC
+    private static void append(Entry entry) {
+        StringBuilder text = pending.computeIfAbsent(entry.username, k -> new StringBuilder());
+        int before = text.length();
+        text.append('[').append(TIMESTAMP.format(Instant.ofEpochMilli(entry.time))).append("] File: ")
+            .append(entry.fileName).append(" | Action: ").append(entry.action)
+            .append(" | Status: ").append(entry.status).append(" | Access: ").append(entry.accessType)
+            .append(System.lineSeparator());
+        if (pendingBytes == 0) {
+            oldestPending = entry.time;
+        }
+        pendingBytes += text.length() - before;
+    }
+
+    //one write (+ optional fsync) per user with pending entries, log first, then its index
+    private static void writePending() {
+        for (Map.Entry<String, StringBuilder> user : pending.entrySet()) {
+            String username = user.getKey();
+            try {
+                LogFiles files = openLog(username);
+                byte[] text = user.getValue().toString().getBytes(StandardCharsets.UTF_8);
+                long base = files.log.size(); // only this thread appends, so writing at size() = append
+                ByteBuffer bytes = ByteBuffer.wrap(text);
+                while (bytes.hasRemaining()) {
+                    files.log.write(bytes, base + bytes.position());
+                }
+                ActivityHistory.appendOffsets(files.index, base, text);
+                if (durable) {
+                    files.log.force(false);
+                    files.index.force(false);
+                }
+            } catch (IOException e) {
+                System.err.println("Error writing to log file: " + e.getMessage());
+                LogFiles broken = openLogs.remove(username);
+                if (broken != null) {
+                    broken.close(); // reopening repairs the index
+                }
+            }
+        }
+        pending.clear();
+        pendingBytes = 0;
+    }
+
+    private static LogFiles openLog(String username) throws IOException {
+        LogFiles files = openLogs.get(username);
+        if (files == null) {
+            FileChannel log = FileChannel.open(ActivityHistory.logPath(username),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileChannel index;
+            try {
+                index = FileChannel.open(ActivityHistory.indexPath(username),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                ActivityHistory.repairIndex(log, index);
+                index.position(index.size());
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(log);
+                throw e;
+            }
+            files = new LogFiles(log, index);
+            openLogs.put(username, files);
+        }
+        return files;
+    }
+
+    private static void openIndexed(String username) {
+        try {
+            openLog(username);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error indexing activity log of " + username + ": " + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
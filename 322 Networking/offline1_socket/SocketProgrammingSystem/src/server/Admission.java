@@ -0,0 +1,239 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import utils.Protocol;
+
+// Decides which connections get served, so a burst of connections or clients that connect and
+// never send anything can't eat every thread / file handle of the server.
+//   maxSessions      connections being served at once (each connection has its own handler thread,
+//                    platform or virtual, a session slot lets it start)
+//   acceptQueue      connections waiting for a session slot; beyond that new ones get DENIED at once
+//                    instead of every session slowing down (thread/virtual mode, nio serves or denies)
+//   perAddress       connections from one IP, waiting ones included (a parallel transfer uses
+//                    1 + streams connections)
+//   handshakeTimeout a connection must log in this soon after it is accepted (queue time counts)
+//   idleTimeout      a session with no command for this long is closed (0 = never)
+// Check and count are one atomic step per limit, like BufferBudget. A denied client gets the
+// DENIED reply where the login prompt would be and the connection is closed.
+public class Admission {
+    public static final int DEFAULT_MAX_SESSIONS = 1000;
+    public static final int DEFAULT_ACCEPT_QUEUE = 100;
+    public static final int DEFAULT_PER_ADDRESS = 32;
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT_MS = 10_000;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 60 * 1000;
+
+    private int maxSessions = DEFAULT_MAX_SESSIONS;
+    private int acceptQueue = DEFAULT_ACCEPT_QUEUE;
+    private int perAddress = DEFAULT_PER_ADDRESS;
+    private long handshakeTimeoutMs = DEFAULT_HANDSHAKE_TIMEOUT_MS;
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    private final AtomicInteger admitted = new AtomicInteger(); // being served + waiting
+    private final Map<String, Integer> byAddress = new ConcurrentHashMap<>();
+    private ThreadFactory handlers; // null in nio mode
+    private Semaphore sessions;     // slots of the sessions being served
+    private final AtomicInteger queued = new AtomicInteger(); // handlers waiting for a slot
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder deniedBusy = new LongAdder();
+    private final LongAdder deniedAddress = new LongAdder();
+    private final LongAdder deniedQueueWait = new LongAdder();
+    private final LongAdder handshakeTimeouts = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final AtomicInteger peakQueue = new AtomicInteger();
+    private volatile String lastSummary = "";
+
+    // sends DENIED replies: the client's login may already be in flight, the reply has to be
+    // read before the close, or the client only sees a reset. few threads, the rest just get closed
+    private final ThreadPoolExecutor denials = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(100), daemon("admission-deny"));
+
+    // one admitted connection, released exactly once when it closes
+    public class Ticket {
+        private final String address;
+        private final long acceptedAt = System.currentTimeMillis();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Ticket(String address) {
+            this.address = address;
+        }
+
+        public long waitedMillis() {
+            return System.currentTimeMillis() - acceptedAt;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                admitted.decrementAndGet();
+                byAddress.computeIfPresent(address, (k, count) -> count <= 1 ? null : count - 1);
+            }
+        }
+    }
+
+    public void setMaxSessions(int maxSessions) { this.maxSessions = Math.max(1, maxSessions); }
+    public void setAcceptQueue(int acceptQueue) { this.acceptQueue = Math.max(0, acceptQueue); }
+    public void setPerAddress(int perAddress) { this.perAddress = Math.max(1, perAddress); }
+    public void setHandshakeTimeoutMs(long ms) { this.handshakeTimeoutMs = Math.max(1, ms); }
+    public void setIdleTimeoutMs(long ms) { this.idleTimeoutMs = Math.max(0, ms); }
+    public long getHandshakeTimeoutMs() { return handshakeTimeoutMs; }
+    public long getIdleTimeoutMs() { return idleTimeoutMs; }
+
+    //thread/virtual mode: a new handler thread per connection (a virtual thread isn't worth
+    //pooling), maxSessions of them serve at once, up to acceptQueue more wait for a slot
+    public void createWorkers(ThreadFactory threads) {
+        sessions = new Semaphore(maxSessions);
+        handlers = threads;
+    }
+
+    //counts the connection in, null if it has to be denied (the reason was sent to the client)
+    public Ticket admit(Socket socket) {
+        String address = socket.getInetAddress().getHostAddress();
+        int fromAddress = byAddress.merge(address, 1, Integer::sum);
+        if (fromAddress > perAddress) {
+            byAddress.computeIfPresent(address, (k, count) -> count <= 1 ? null : count - 1);
+            deniedAddress.increment();
+            deny(socket, "Too many connections from " + address + ", close some and try again.");
+            return null;
+        }
+        int limit = maxSessions + (handlers != null ? acceptQueue : 0);
+        if (admitted.incrementAndGet() > limit) {
+            admitted.decrementAndGet();
+            byAddress.computeIfPresent(address, (k, count) -> count <= 1 ? null : count - 1);
+            deniedBusy.increment();
+            deny(socket, "Server busy, try again later.");
+            return null;
+        }
+        accepted.increment();
+        return new Ticket(address);
+    }
+
+    //starts the connection's handler thread (thread/virtual mode), it waits for a session slot
+    //first. admit already capped the waiting ones at acceptQueue. false = denied
+    public boolean dispatch(Socket socket, Ticket ticket) {
+        ClientHandler handler = new ClientHandler(socket, ticket);
+        Thread thread = handlers.newThread(() -> {
+            peakQueue.accumulateAndGet(queued.incrementAndGet(), Math::max);
+            sessions.acquireUninterruptibly();
+            queued.decrementAndGet();
+            try {
+                handler.run();
+            } finally {
+                sessions.release();
+            }
+        });
+        try {
+            thread.start();
+        } catch (OutOfMemoryError e) {
+            // no native thread left (platform threads)
+            ticket.release();
+            deniedBusy.increment();
+            deny(socket, "Server busy, try again later.");
+            return false;
+        }
+        return true;
+    }
+
+    //a queued connection whose client has waited past the handshake timeout (the client is told,
+    //it may retry; serving it now would only start with a login that is already late)
+    public boolean waitedTooLong(Ticket ticket, Socket socket) {
+        if (ticket == null || ticket.waitedMillis() <= handshakeTimeoutMs) {
+            return false;
+        }
+        deniedQueueWait.increment();
+        deny(socket, "Server busy, try again later.");
+        return true;
+    }
+
+    public void handshakeTimedOut(String address) {
+        handshakeTimeouts.increment();
+        System.out.println("No login from " + address + " within " + handshakeTimeoutMs / 1000 + " s, closing connection");
+    }
+
+    public void idleTimedOut(String username) {
+        idleTimeouts.increment();
+        System.out.println("No command from " + username + " for " + idleTimeoutMs / 1000 + " s, closing connection");
+    }
+
+    public String summary() {
+        int waiting = queued.get();
+        return String.format("%d session(s), %d queued (peak %d), %d accepted, denied %d busy / %d per-address / %d queue wait,"
+                + " timeouts %d handshake / %d idle",
+            admitted.get() - waiting, waiting, peakQueue.get(), accepted.sum(), deniedBusy.sum(), deniedAddress.sum(),
+            deniedQueueWait.sum(), handshakeTimeouts.sum(), idleTimeouts.sum());
+    }
+
+    //prints the counters every minute, when something changed
+    public void startReporting() {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(daemon("admission-stats"));
+        reporter.scheduleWithFixedDelay(() -> {
+            String summary = summary();
+            if (!summary.equals(lastSummary)) {
+                lastSummary = summary;
+                System.out.println("Admission: " + summary);
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void printLimits() {
+        System.out.println("Max Sessions: " + maxSessions + " (accept queue " + acceptQueue + ", " + perAddress + " per address)");
+        System.out.println("Timeouts: login " + handshakeTimeoutMs / 1000 + " s, idle "
+            + (idleTimeoutMs > 0 ? idleTimeoutMs / 1000 + " s" : "none"));
+    }
+
+    //DENIED where the login prompt would be, then close once the client has had it
+    private void deny(Socket socket, String reason) {
+        System.out.println("Connection from " + socket.getInetAddress().getHostAddress() + " denied: " + reason);
+        try {
+            denials.execute(() -> {
+                try {
+                    socket.setSoTimeout(1000);
+                    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                    out.writeObject(Protocol.DENIED + Protocol.DELIMITER + reason);
+                    out.flush();
+                    socket.shutdownOutput();
+                    InputStream in = socket.getInputStream();
+                    byte[] discard = new byte[1024];
+                    while (in.read(discard) >= 0) {
+                        // until the client closes (or the timeout)
+                    }
+                } catch (IOException ignored) {
+                } finally {
+                    closeQuietly(socket);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,400 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import utils.Checksums;
+
+// Content addressed file storage. Every file is cut into BLOCK_SIZE blocks and each block is
+// stored once as .blobs/<first 2 hex>/<sha-256 hex>, however many files (of however many users)
+// contain it. server_data/<user>/<fileName> stays the per-user view of the file, but it now holds
+// a manifest: file size + the hash of every block + the sha-256 of the whole file.
+//
+// Reference counts: one per manifest that lists the block, plus one per download streaming it.
+// They are only kept in memory and rebuilt at startup from the manifests; a block is deleted when
+// its count drops to 0, and unreferenced leftovers (crash between two steps) are swept at startup.
+public class BlobStore {
+    public static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int MANIFEST_MAGIC = 0x424C4F42; // "BLOB"
+    private static final int MANIFEST_VERSION = 1;
+    private static final int HASH_BYTES = 32;
+    private static final int MANIFEST_HEADER = 4 + 4 + 8 + 4 + 4;
+
+    // size + block hashes (+ whole-file digest) of one stored file
+    public static class Manifest {
+        public final long size;
+        public final int blockSize;
+        public final String[] hashes;
+        public final String digest; // sha-256 of the whole file
+
+        Manifest(long size, int blockSize, String[] hashes, String digest) {
+            this.size = size;
+            this.blockSize = blockSize;
+            this.hashes = hashes;
+            this.digest = digest;
+        }
+
+        public int blockLength(int block) {
+            return (int) Math.min(blockSize, size - (long) block * blockSize);
+        }
+
+        //changes whenever the content changes (delta uploads check they patch the version they signed)
+        public String version() {
+            byte[] text = (size + ":" + String.join(",", hashes)).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            return Checksums.sha256(text).substring(0, 16);
+        }
+    }
+
+    private final Map<String, Integer> refCounts = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private Path blobDir;
+
+    //opens .blobs under dataDir, counts the references of every user's manifests and deletes
+    //unreferenced blocks. files in a user directory that are not manifests yet (stored before
+    //this store existed) are imported and replaced by a manifest
+    public void open(Path dataDir) throws IOException {
+        blobDir = dataDir.resolve(".blobs");
+        Files.createDirectories(blobDir);
+        int manifests = 0;
+        int imported = 0;
+
+        try (DirectoryStream<Path> users = Files.newDirectoryStream(dataDir,
+                p -> Files.isDirectory(p) && !p.getFileName().toString().startsWith("."))) {
+            for (Path userDir : users) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(userDir, BlobStore::isUserFile)) {
+                    for (Path file : files) {
+                        Manifest manifest = readManifest(file);
+                        if (manifest == null) {
+                            importFile(file);
+                            imported++;
+                        } else {
+                            retain(manifest);
+                        }
+                        manifests++;
+                    }
+                }
+            }
+        }
+        int swept = sweep();
+        System.out.println("Blob store: " + manifests + " file(s), " + refCounts.size() + " distinct block(s)"
+            + (imported > 0 ? ", imported " + imported + " old file(s)" : "")
+            + (swept > 0 ? ", removed " + swept + " unreferenced block(s)" : ""));
+    }
+
+    // everything in a user directory except hidden files (staging, temp) and the activity log
+    private static boolean isUserFile(Path path) {
+        String name = path.getFileName().toString();
+        return Files.isRegularFile(path) && !name.startsWith(".")
+            && !name.equals("activity_log.txt") && !name.equals("activity_log.idx");
+    }
+
+    private void importFile(Path file) throws IOException {
+        Manifest manifest;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            manifest = store(channel, channel.size(), null);
+        }
+        writeManifest(file, manifest);
+    }
+
+    // ---- blocks ----
+
+    private Path blockPath(String hash) {
+        return blobDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    //copies a stored block into target at position. false if there is no such block
+    //(the client then has to send those bytes itself)
+    public boolean copyBlock(String hash, FileChannel target, long position, int length) {
+        if (!isHash(hash)) return false;
+        lock.lock();
+        try {
+            if (!refCounts.containsKey(hash)) return false;
+            // counted, so it cannot be deleted while we copy
+            refCounts.merge(hash, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+        // positional read + write (transferFrom copies nothing past the target's current end,
+        // and blocks are filled in any order)
+        try (FileChannel block = FileChannel.open(blockPath(hash), StandardOpenOption.READ)) {
+            if (block.size() != length) return false;
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long copied = 0;
+            while (copied < length) {
+                buffer.clear();
+                int read = block.read(buffer, copied);
+                if (read <= 0) return false;
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    copied += target.write(buffer, position + copied);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error copying block " + hash + ": " + e.getMessage());
+            return false;
+        } finally {
+            release(hash);
+        }
+    }
+
+    private static boolean isHash(String hash) {
+        return hash.length() == HASH_BYTES * 2 && hash.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'));
+    }
+
+    //cuts size bytes of source into blocks and stores the new ones. every block of the returned
+    //manifest has one reference taken for it (the manifest's). digest = the file's sha-256 if the
+    //caller already has it (uploads build it while chunks arrive), null = computed in this same pass
+    public Manifest store(FileChannel source, long size, String digest) throws IOException {
+        int blocks = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        String[] hashes = new String[blocks];
+        MessageDigest whole = digest == null ? Checksums.sha256() : null;
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        for (int i = 0; i < blocks; i++) {
+            long position = (long) i * BLOCK_SIZE;
+            int length = (int) Math.min(BLOCK_SIZE, size - position);
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("File shorter than expected");
+                }
+            }
+            hashes[i] = Checksums.sha256(buffer.array(), 0, length);
+            addBlock(hashes[i], buffer.array(), length);
+            if (whole != null) {
+                whole.update(buffer.array(), 0, length);
+            }
+        }
+        return new Manifest(size, BLOCK_SIZE, hashes, whole != null ? Checksums.hex(whole.digest()) : digest);
+    }
+
+    private void addBlock(String hash, byte[] data, int length) throws IOException {
+        if (retainStored(hash)) return;
+        // new block: written to a temp file of our own without the lock (other commits and dedup
+        // lookups go on meanwhile), only the rename + count happen under it, so nobody sees a
+        // count for a half written file
+        Path path = blockPath(hash);
+        Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(path.getParent(), hash + ".", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                out.write(data, 0, length);
+            }
+            lock.lock();
+            try {
+                Integer count = refCounts.get(hash);
+                if (count != null) {
+                    refCounts.put(hash, count + 1); // someone else stored it meanwhile
+                    return;
+                }
+                moveIntoPlace(temp, path);
+                refCounts.put(hash, 1);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    //one more reference on a block that is already stored, false if it isn't
+    private boolean retainStored(String hash) {
+        lock.lock();
+        try {
+            Integer count = refCounts.get(hash);
+            if (count == null) return false;
+            refCounts.put(hash, count + 1);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void retain(Manifest manifest) {
+        lock.lock();
+        try {
+            for (String hash : manifest.hashes) {
+                refCounts.merge(hash, 1, Integer::sum);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(Manifest manifest) {
+        for (String hash : manifest.hashes) {
+            release(hash);
+        }
+    }
+
+    private void release(String hash) {
+        lock.lock();
+        try {
+            Integer count = refCounts.get(hash);
+            if (count == null) return;
+            if (count > 1) {
+                refCounts.put(hash, count - 1);
+                return;
+            }
+            refCounts.remove(hash);
+            Files.deleteIfExists(blockPath(hash));
+        } catch (IOException e) {
+            System.err.println("Error deleting block " + hash + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //deletes block files (and temp files) that no manifest references
+    private int sweep() throws IOException {
+        int removed = 0;
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(blobDir)) {
+            for (Path prefix : prefixes) {
+                if (!Files.isDirectory(prefix)) continue;
+                try (DirectoryStream<Path> blocks = Files.newDirectoryStream(prefix)) {
+                    for (Path block : blocks) {
+                        if (!refCounts.containsKey(block.getFileName().toString())) {
+                            Files.deleteIfExists(block);
+                            removed++;
+                        }
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    public Path blockFile(String hash) {
+        return blockPath(hash);
+    }
+
+    //hashes of the blocks of every file in userDir
+    public Set<String> blocksOf(Path userDir) {
+        Set<String> blocks = new HashSet<>();
+        if (!Files.isDirectory(userDir)) return blocks;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(userDir, BlobStore::isUserFile)) {
+            for (Path file : files) {
+                Manifest manifest = readManifest(file);
+                if (manifest != null) {
+                    blocks.addAll(Arrays.asList(manifest.hashes));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading files of " + userDir + ": " + e.getMessage());
+        }
+        return blocks;
+    }
+
+    // ---- manifests ----
+
+    //reads the manifest at path and takes a reference on its blocks (released with release()),
+    //so they stay on disk while a download streams them. null if there is no such file
+    public Manifest acquire(Path path) {
+        lock.lock(); // no replace() between reading and counting
+        try {
+            Manifest manifest = readManifest(path);
+            if (manifest != null) {
+                retain(manifest);
+            }
+            return manifest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //points path at a newly stored file, the blocks of the file it replaces lose a reference
+    public void replace(Path path, Manifest manifest) throws IOException {
+        lock.lock();
+        try {
+            Manifest old = readManifest(path);
+            writeManifest(path, manifest);
+            if (old != null) {
+                release(old);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //null if missing or not a manifest
+    public static Manifest readManifest(Path path) {
+        try {
+            if (!Files.isRegularFile(path) || Files.size(path) < MANIFEST_HEADER) return null;
+            long fileLength = Files.size(path);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path.toFile())))) {
+                if (in.readInt() != MANIFEST_MAGIC) return null;
+                if (in.readInt() != MANIFEST_VERSION) return null;
+                long size = in.readLong();
+                int blockSize = in.readInt();
+                int count = in.readInt();
+                if (size < 0 || blockSize <= 0 || count != (size + blockSize - 1) / blockSize
+                        || fileLength != MANIFEST_HEADER + (long) count * HASH_BYTES + HASH_BYTES) {
+                    return null;
+                }
+                String[] hashes = new String[count];
+                byte[] raw = new byte[HASH_BYTES];
+                for (int i = 0; i < count; i++) {
+                    in.readFully(raw);
+                    hashes[i] = Checksums.hex(raw);
+                }
+                in.readFully(raw);
+                return new Manifest(size, blockSize, hashes, Checksums.hex(raw));
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    //written to a temp file and renamed, readers see the old or the new manifest
+    private static void writeManifest(Path path, Manifest manifest) throws IOException {
+        Path temp = path.resolveSibling("." + path.getFileName() + ".manifest.tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(MANIFEST_VERSION);
+            out.writeLong(manifest.size);
+            out.writeInt(manifest.blockSize);
+            out.writeInt(manifest.hashes.length);
+            for (String hash : manifest.hashes) {
+                writeHash(out, hash);
+            }
+            writeHash(out, manifest.digest);
+            out.flush();
+        }
+        moveIntoPlace(temp, path);
+    }
+
+    private static void writeHash(DataOutputStream out, String hash) throws IOException {
+        for (int i = 0; i < HASH_BYTES; i++) {
+            out.writeByte(Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16));
+        }
+    }
+
+    private static void moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Upload staging space, reserved per upload before it starts and released exactly once when it
+// ends (complete, cancel, replaced, parked upload expired). A parked upload keeps its reservation,
+// its bytes are still on disk.
+// Check and reserve are one compare-and-set on the total, so two uploads can't both pass the
+// check and overshoot the limit (canAccommodateFile + addBufferUsage could), and no lock is taken.
+// Per-user quota (0 = none) is reserved the same way before the total and given back if the total
+// is full. Event counters are LongAdders: written by every upload, read only for the log line.
+public class BufferBudget {
+    public enum Result { RESERVED, BUFFER_FULL, QUOTA_EXCEEDED }
+
+    private static class Reservation {
+        final String owner;
+        final long size;
+
+        Reservation(String owner, long size) {
+            this.owner = owner;
+            this.size = size;
+        }
+    }
+
+    private final long limit;
+    private volatile long userQuota;
+    private final AtomicLong used = new AtomicLong();
+    private final Map<String, AtomicLong> usedByUser = new ConcurrentHashMap<>();
+    private final Map<String, Reservation> reservations = new ConcurrentHashMap<>(); // fileID -> reservation
+
+    private final LongAdder reserved = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder deniedFull = new LongAdder();
+    private final LongAdder deniedQuota = new LongAdder();
+
+    public BufferBudget(long limit) {
+        this.limit = limit;
+    }
+
+    public void setUserQuota(long userQuota) {
+        this.userQuota = userQuota;
+    }
+
+    public long getUserQuota() {
+        return userQuota;
+    }
+
+    //reserves size bytes for upload fileID of owner. an older reservation under the same fileID
+    //must have been released first (the upload it belonged to was cancelled)
+    public Result reserve(String fileID, String owner, long size) {
+        long quota = userQuota;
+        AtomicLong mine = null;
+        if (quota > 0) {
+            mine = usedByUser.computeIfAbsent(owner, u -> new AtomicLong());
+            if (!tryAdd(mine, size, quota)) {
+                deniedQuota.increment();
+                return Result.QUOTA_EXCEEDED;
+            }
+        }
+        if (!tryAdd(used, size, limit)) {
+            if (mine != null) {
+                mine.addAndGet(-size);
+            }
+            deniedFull.increment();
+            return Result.BUFFER_FULL;
+        }
+        if (quota <= 0) {
+            usedByUser.computeIfAbsent(owner, u -> new AtomicLong()).addAndGet(size); // tracked anyway, a quota may be set later
+        }
+        Reservation old = reservations.put(fileID, new Reservation(owner, size));
+        if (old != null) {
+            give(old); // shouldn't happen, but never leak it
+        }
+        reserved.increment();
+        return Result.RESERVED;
+    }
+
+    //gives back what upload fileID reserved. safe to call more than once, only the first counts
+    public void release(String fileID) {
+        Reservation reservation = reservations.remove(fileID);
+        if (reservation != null) {
+            give(reservation);
+            released.increment();
+        }
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    public long getUsedBy(String owner) {
+        AtomicLong mine = usedByUser.get(owner);
+        return mine == null ? 0 : mine.get();
+    }
+
+    public String summary() {
+        return String.format("buffer %d/%d MB in %d upload(s), %d reserved, %d released, denied %d full / %d quota",
+            used.get() / (1024 * 1024), limit / (1024 * 1024), reservations.size(),
+            reserved.sum(), released.sum(), deniedFull.sum(), deniedQuota.sum());
+    }
+
+    private void give(Reservation reservation) {
+        used.addAndGet(-reservation.size);
+        AtomicLong mine = usedByUser.get(reservation.owner);
+        if (mine != null) {
+            mine.addAndGet(-reservation.size);
+        }
+    }
+
+    //counter += size unless that goes over max. a size bigger than max on its own never fits.
+    //compared as size > max - current: current + size wraps negative for a size near Long.MAX_VALUE
+    private static boolean tryAdd(AtomicLong counter, long size, long max) {
+        while (true) {
+            long current = counter.get();
+            if (size > max - current) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + size)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package server;
+
+// Picks the upload chunk size from what the connection actually does (it used to be a random
+// size between MIN_CHUNK_SIZE and MAX_CHUNK_SIZE per upload). One per upload, shared by all
+// streams of a parallel upload.
+// Inputs:
+//   rtt, window  - reported by the client in UPLOAD_REQUEST (its idle request/response round trip
+//                  and how many chunks it keeps in flight), 0 when an old client sends none
+//   throughput   - bytes of this upload arriving per second, measured here every SAMPLE_NANOS
+//   pressure     - fraction of the heap in use (every chunk in flight is a byte[] on the heap)
+// Rules: a chunk should carry about CHUNK_TIME of data, so per-chunk costs are amortized but acks
+// still come often; window * chunk must cover the bandwidth-delay product, otherwise the link
+// idles waiting for acks (while that is the limit the measured rate grows with the chunk, so the
+// size keeps growing until it isn't); above PRESSURE_START the size shrinks towards the minimum.
+// Changes under 25% are ignored so the size doesn't flap.
+public class ChunkSizer {
+    public static final int DEFAULT_CHUNK_SIZE = 128 * 1024; // first upload of a connection
+    private static final long SAMPLE_NANOS = 100_000_000L;
+    private static final int MIN_SAMPLE_CHUNKS = 4;
+    private static final double CHUNK_TIME = 0.020;
+    private static final double BDP_HEADROOM = 1.25;
+    private static final double PRESSURE_START = 0.7;
+    private static final int ROUND_TO = 4 * 1024;
+
+    private final String fileID;
+    private final double rttSeconds;
+    private final int window;
+    private int chunkSize;
+    private double rate; // smoothed bytes/s, 0 until the first sample
+    private long sampleStart; // 0 until the first chunk (hash/delta exchange before it isn't transfer time)
+    private long sampleBytes;
+    private int sampleChunks;
+    private int changes;
+
+    //previousRate: what this connection managed on its last upload (0 = nothing known yet)
+    public ChunkSizer(String fileID, double rttSeconds, int window, double previousRate) {
+        this.fileID = fileID;
+        this.rttSeconds = rttSeconds;
+        this.window = window;
+        this.chunkSize = previousRate > 0 ? decide(previousRate, heapPressure()) : DEFAULT_CHUNK_SIZE;
+        System.out.println("Chunk size for " + fileID + ": starting at " + chunkSize / 1024 + " KB ("
+            + describe(previousRate, heapPressure()) + ")");
+    }
+
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    //a chunk of this upload arrived. returns the size the client should use from now on
+    public synchronized int onChunk(int bytes) {
+        long now = System.nanoTime();
+        if (sampleStart == 0) {
+            sampleStart = now; // the first chunk only starts the clock
+            return chunkSize;
+        }
+        sampleBytes += bytes;
+        sampleChunks++;
+        long elapsed = now - sampleStart;
+        if (elapsed < SAMPLE_NANOS || sampleChunks < MIN_SAMPLE_CHUNKS) {
+            return chunkSize;
+        }
+
+        double sample = sampleBytes * 1e9 / elapsed;
+        rate = rate == 0 ? sample : 0.5 * rate + 0.5 * sample;
+        sampleStart = now;
+        sampleBytes = 0;
+        sampleChunks = 0;
+
+        double pressure = heapPressure();
+        int next = decide(rate, pressure);
+        if (Math.abs(next - chunkSize) * 4 >= chunkSize) {
+            System.out.println("Chunk size for " + fileID + ": " + chunkSize / 1024 + " KB -> " + next / 1024
+                + " KB (" + describe(rate, pressure) + ")");
+            chunkSize = next;
+            changes++;
+        }
+        return chunkSize;
+    }
+
+    public synchronized String summary() {
+        return String.format("chunk size %d KB after %d change(s), %.2f MB/s measured", chunkSize / 1024, changes, rate / (1024 * 1024));
+    }
+
+    private int decide(double rate, double pressure) {
+        double want = rate * CHUNK_TIME;
+        if (rttSeconds > 0 && window > 0) {
+            want = Math.max(want, rate * rttSeconds * BDP_HEADROOM / window);
+        }
+        if (pressure > PRESSURE_START) {
+            want *= Math.max(0, (1 - pressure) / (1 - PRESSURE_START));
+        }
+        long size = Math.max(ServerConfig.MIN_CHUNK_SIZE, Math.min(ServerConfig.MAX_CHUNK_SIZE, (long) want));
+        size = size / ROUND_TO * ROUND_TO;
+        return (int) Math.max(size, ServerConfig.MIN_CHUNK_SIZE);
+    }
+
+    private String describe(double rate, double pressure) {
+        return String.format("rate %.2f MB/s, rtt %s, window %s, heap %.0f%%", rate / (1024 * 1024),
+            rttSeconds > 0 ? String.format("%.1f ms", rttSeconds * 1000) : "?",
+            window > 0 ? String.valueOf(window) : "?", pressure * 100);
+    }
+
+    private static double heapPressure() {
+        Runtime runtime = Runtime.getRuntime();
+        return (double) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+    }
+}
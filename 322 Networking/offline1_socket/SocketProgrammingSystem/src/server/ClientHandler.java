@@ -1,37 +1,123 @@
 package server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import models.ChunkInfo;
 import models.FileMetadata;
 import models.FileRequest;
 import models.Message;
+import utils.Checksums;
+import utils.ChunkCodec;
+import utils.Frame;
 import utils.Protocol;
+import utils.RollingChecksum;
 
-public class ClientHandler extends Thread{
+public class ClientHandler implements Runnable {
     private Socket socket;
     private ObjectInputStream in;
     private ObjectOutputStream out;
     private String username;
     private boolean isAuthenticated;
 
-    public ClientHandler(Socket socket) {
+    // binary framed protocol (negotiated at login), raw socket streams replace the object streams
+    private boolean binaryMode;
+    private DataInputStream din;
+    private DataOutputStream dout;
+    private boolean midFrame; // a frame has started arriving: a read timeout now leaves din out of step
+
+    // set when this session is driven by the NIO server instead of its own thread
+    private NioConnection nio;
+    private final Admission.Ticket ticket; // this connection's place in the session limits, released in cleanup
+    // last command or frame (of this session: transfer connections update their main connection's too,
+    // it sits idle while they carry a parallel transfer)
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    // extra transfer connection of an online session (ATTACH login): not an online client itself
+    private boolean secondary;
+    private boolean compression; // DEFLATE agreed at login: chunks may travel compressed both ways
+    private boolean multiplexed; // MUX agreed at login
+    private double lastUploadRate; // bytes/s this connection reached on its last upload, seeds the next chunk size
+
+    // NOTIFY pushes waiting for this connection. Whoever holds responseLock owns the output
+    // stream: the handler thread holds it while it answers a command, so a push goes out between
+    // two responses, or between two frames of a download (yieldToPushes), never inside a frame
+    private static final int MAX_PENDING_PUSHES = 1000; // beyond that the message is only in VIEW_MESSAGES
+    private final BlockingQueue<String> pushes = new LinkedBlockingQueue<>(MAX_PENDING_PUSHES);
+    private final ReentrantLock responseLock = new ReentrantLock();
+    // delivers pushes to idle connections, so the sender's thread never blocks on someone else's
+    // socket. At most one delivery per connection is queued (pushScheduled), it sends all its pushes
+    private static final int PUSH_THREADS = 4;
+    private static final ExecutorService pushDelivery = Executors.newFixedThreadPool(PUSH_THREADS, r -> {
+        Thread thread = new Thread(r, "push-delivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean pushScheduled = new AtomicBoolean();
+
+    // multiplexed session: mux's writer thread owns dout. A tagged command from CONCURRENT runs on
+    // requestWorkers and answers on its own stream (replyTo), so a download doesn't hold up a LIST
+    // asked for meanwhile. Everything else still runs on the handler thread, in order
+    private volatile OutboundScheduler mux;
+    private final AtomicInteger inFlight = new AtomicInteger(); // tagged commands running on workers
+    private static final int MAX_IN_FLIGHT = 16; // beyond that a tagged command runs in line (reading waits for it)
+    private static final Set<String> CONCURRENT = Set.of(Protocol.LIST_CLIENTS, Protocol.LIST_OWN_FILES,
+        Protocol.LIST_PUBLIC_FILES, Protocol.FILE_INFO, Protocol.DOWNLOAD_REQUEST, Protocol.MAKE_FILE_REQUEST,
+        Protocol.VIEW_MESSAGES, Protocol.VIEW_HISTORY);
+    private static final ThreadLocal<OutboundScheduler.Stream> replyTo = new ThreadLocal<>();
+    // a worker is a new (virtual, JDK 21+) thread per command, all sessions together run at most
+    // MAX_REQUEST_WORKERS of them; without a free slot the command runs in line like above
+    private static final int MAX_REQUEST_WORKERS = 256;
+    private static final Semaphore requestSlots = new Semaphore(MAX_REQUEST_WORKERS);
+    private static final ThreadFactory requestWorkers = requestWorkers();
+
+    public ClientHandler(Socket socket, Admission.Ticket ticket) {
         this.socket = socket;
+        this.ticket = ticket;
         this.isAuthenticated = false; // initially not logged in
     }
+
+    public ClientHandler(NioConnection connection, Admission.Ticket ticket) {
+        this.nio = connection;
+        this.ticket = ticket;
+        this.isAuthenticated = false;
+    }
     
     
     @Override
 public void run() {
+    Admission admission = ServerConfig.getAdmission();
+    if (admission.waitedTooLong(ticket, socket)) {
+        ticket.release(); // sat in the accept queue too long, the client got DENIED
+        return;
+    }
     try {
+        // a client that connects and never logs in only holds its thread this long
+        socket.setSoTimeout((int) admission.getHandshakeTimeoutMs());
+
         // Initialize input and output streams
         out = new ObjectOutputStream(socket.getOutputStream());
         in = new ObjectInputStream(socket.getInputStream());
@@ -41,10 +127,14 @@ public void run() {
             cleanup();
             return;
         }
+        socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, admission.getIdleTimeoutMs())); // 0 = no limit
 
         //main command loop
         handleClientCommands();
         
+    } catch (java.net.SocketTimeoutException e) {
+        // only reads time out, so this is the login (the command loop handles its own)
+        admission.handshakeTimedOut(socket.getInetAddress().getHostAddress());
     } catch (java.io.EOFException e) {
         // Client disconnected abruptly
         System.out.println("Client disconnected abruptly: " + username);
@@ -64,6 +154,19 @@ public void run() {
 
     //send message to client
     private void sendMessage(String message) throws Exception {
+        if (mux != null) {
+            replyStream().sendText(Frame.RESP, message);
+            return;
+        }
+        if (nio != null) {
+            nio.send(Frame.encodeText(Frame.RESP, message));
+            return;
+        }
+        if (binaryMode) {
+            Frame.writeText(dout, Frame.RESP, message);
+            dout.flush();
+            return;
+        }
         out.writeObject(message);
         out.flush(); // Ensure the message is sent immediately
     }
@@ -71,49 +174,126 @@ public void run() {
     //authenticate client by username
     private boolean authenticate() throws Exception {
         sendMessage("Enter username: ");
-        String username= (String) in.readObject();
+        String login = (String) in.readObject(); // "username" or "username:::BINARY"
+        String reply = acceptLogin(login);
+
+        // the reply still goes over the object stream, frames (if any) start after it
+        out.writeObject(reply);
+        out.flush();
+        if (!isAuthenticated) {
+            return false;
+        }
+
+        if (binaryMode) {
+            // from here on both sides talk frames on the raw socket streams
+            din = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            responseLock.lock(); // a push being delivered right now sees both or neither
+            try {
+                dout = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                if (multiplexed) {
+                    mux = new OutboundScheduler(socket, dout, MAX_PENDING_PUSHES);
+                    mux.start("mux-writer-" + username);
+                }
+            } finally {
+                responseLock.unlock();
+            }
+        }
+        return true;
+    }
+
+    //checks a login line and registers the user, returns the reply for the client
+    //shared by the thread-per-connection path and the NIO server
+    String acceptLogin(String login) {
+        String[] loginParts = login.split(Protocol.DELIMITER);
+        String username = loginParts[0];
+        boolean wantsBinary = loginParts.length > 1 && loginParts[1].equals(Protocol.BINARY);
+        boolean wantsDeflate = loginParts.length > 1 && loginParts[loginParts.length - 1].equals(Protocol.DEFLATE);
+        boolean wantsMux = wantsBinary && loginParts.length > 2 && loginParts[2].equals(Protocol.MUX);
+        String deflate = wantsDeflate ? Protocol.DELIMITER + Protocol.DEFLATE : "";
+        if (!ServerConfig.isValidUsername(username)) {
+            return Protocol.DENIED + Protocol.DELIMITER + "Username may only contain letters, digits and _.";
+        }
+
+        //extra connection of an existing session
+        if (wantsBinary && loginParts.length > 3 && loginParts[2].equals(Protocol.ATTACH)) {
+            if (!ServerConfig.isClientOnline(username) || !ServerConfig.isValidSession(username, loginParts[3])) {
+                return Protocol.DENIED + Protocol.DELIMITER + "Invalid session token.";
+            }
+            this.username = username;
+            this.isAuthenticated = true;
+            this.binaryMode = true;
+            this.secondary = true;
+            this.compression = wantsDeflate;
+            System.out.println("User " + username + " attached a transfer connection.");
+            return Protocol.SUCCESS + Protocol.DELIMITER + "attached" + Protocol.DELIMITER + Protocol.BINARY + deflate;
+        }
 
         //already online?
         if(ServerConfig.isClientOnline(username)){
-            sendMessage(Protocol.DENIED + Protocol.DELIMITER + "Username already logged in. Connection denied.");
-            return false;
+            return Protocol.DENIED + Protocol.DELIMITER + "Username already logged in. Connection denied.";
         }
 
         this.username = username;
         this.isAuthenticated = true;
+        this.binaryMode = wantsBinary;
+        this.compression = wantsDeflate;
+        this.multiplexed = wantsMux && nio == null; // the selector server answers in order
 
         ServerConfig.addOnlineClient(username, this);
 
         //create user directory if not exists
         FileManager.createUserDirectory(username); 
 
-        sendMessage(Protocol.SUCCESS + Protocol.DELIMITER + "login successful. welcome "+username +" !"); // SUCCESS:::login successful. welcome user !
-        
-        System.out.println("User "+ username +" logged in.");
-        return true;
+        System.out.println("User "+ username +" logged in." + (binaryMode ? " [binary protocol]" : " [legacy protocol]")
+            + (compression ? " [compression]" : "") + (multiplexed ? " [multiplexed]" : ""));
 
+        String welcome = Protocol.SUCCESS + Protocol.DELIMITER + "login successful. welcome "+username +" !"; // SUCCESS:::login successful. welcome user !
+        if (!wantsBinary) {
+            return welcome + deflate;
+        }
+        return welcome + Protocol.DELIMITER + Protocol.BINARY + Protocol.DELIMITER + ServerConfig.createSession(username)
+            + (multiplexed ? Protocol.DELIMITER + Protocol.MUX : "") + deflate;
     }
 
-    //cleanup resources. actions when user disconnects
-    private void cleanup() {
-        try {
-            if (username != null) {
-                //Cancel any ongoing uploads
-                List<String> toCancel = new ArrayList<>();
+    boolean isAuthenticated() {
+        return isAuthenticated;
+    }
 
+    long getLastActivity() {
+        return lastActivity;
+    }
 
-                //kon file bad jabe
-                for (String fileID : ServerConfig.getAllFileChunksMap().keySet()) {
+    private void touch() {
+        long now = System.currentTimeMillis();
+        lastActivity = now;
+        if (secondary) {
+            ClientHandler main = ServerConfig.getOnlineHandler(username);
+            if (main != null) {
+                main.lastActivity = now;
+            }
+        }
+    }
 
-                    FileMetadata metadata = ServerConfig.getFileMetadata(fileID); // metadata{fileID, fileName, fileSize, owner, accessType}
-                    if (metadata != null && metadata.getOwner().equals(username)) {
-                        toCancel.add(fileID);
-                    }
+    String getUsername() {
+        return username;
+    }
+
+    //cleanup resources. actions when user disconnects
+    void cleanup() {
+        try {
+            if (secondary) {
+                // transfer connection only, the session (and its uploads) belong to the main connection
+                System.out.println("Transfer connection of " + username + " closed");
+            } else if (username != null) {
+                if (mux != null) {
+                    mux.close(); // requests still running on workers fail on their next write
                 }
-                
+                ServerConfig.endSession(username);
+                //Keep unfinished uploads on disk for a while, the client may reconnect and resume
+                List<String> toPark = ServerConfig.getUploadsOwnedBy(username);
 
-                for (String fileID : toCancel) {
-                    ServerConfig.cancelUpload(fileID);
+                for (String fileID : toPark) {
+                    ServerConfig.parkUpload(fileID);
                 }
                 
                 ServerConfig.removeOnlineClient(username);
@@ -125,13 +305,35 @@ public void run() {
             }
         } catch (IOException e) {
             System.err.println("Error during cleanup: " + e.getMessage());
+        } finally {
+            if (ticket != null) {
+                ticket.release();
+            }
         }
     }
 
     //handle client commands
 private void handleClientCommands() throws Exception {
+    deliverPushes(); // anything pushed while logging in
     while(isAuthenticated){
         try {
+            if (mux != null) {
+                dispatch(readFrame());
+                continue;
+            }
+            if (binaryMode) {
+                Frame frame = readFrame();
+                responseLock.lock();
+                try {
+                    handleFrame(frame);
+                    writePushes(); // queued during the command, right after its response
+                } finally {
+                    responseLock.unlock();
+                }
+                deliverPushes();
+                continue;
+            }
+
             String command = (String) in.readObject();
             
             // Check for null (client disconnected)
@@ -139,6 +341,7 @@ private void handleClientCommands() throws Exception {
                 System.out.println("Received null command, client disconnected: " + username);
                 break;
             }
+            touch();
             
             // System.out.println("Received command from " + username + ": " + command);
             processCommand(command);
@@ -151,6 +354,24 @@ private void handleClientCommands() throws Exception {
             // Socket closed (network issue, Ctrl+C, etc.)
             System.out.println("Socket closed for client: " + username);
             break;
+        } catch (java.net.SocketTimeoutException e) {
+            if (midFrame) {
+                // part of a frame (or a bulk body) arrived and then nothing: there is no way back
+                // to the start of the next frame, the client reconnects
+                System.out.println("Timed out in the middle of a frame from " + username + ", closing connection");
+                break;
+            }
+            // idle timeout (no command at all, an upload in progress keeps sending frames)
+            if (System.currentTimeMillis() - lastActivity < ServerConfig.getAdmission().getIdleTimeoutMs()
+                    || inFlight.get() > 0) {
+                continue; // its transfer connections are busy, or a download of its own
+            }
+            ServerConfig.getAdmission().idleTimedOut(username);
+            break;
+        } catch (java.io.ObjectStreamException e) {
+            // bytes damaged on the way: there is no next command to resync to, the client reconnects
+            System.out.println("Corrupted stream from " + username + " (" + e.getMessage() + "), closing connection");
+            break;
         } catch (Exception e) {
             System.out.println("Error processing command from " + username + ": " + e.getMessage());
             // Don't break here - only for disconnect errors
@@ -158,6 +379,144 @@ private void handleClientCommands() throws Exception {
     }
 }
 
+    //next frame of the command loop. Waits for its first byte without taking it, so a read
+    //timeout before that is just an idle tick; from there on the frame (and whatever its command
+    //reads) is midFrame until the next call
+    private Frame readFrame() throws IOException {
+        midFrame = false;
+        din.mark(1);
+        din.readByte();
+        din.reset();
+        midFrame = true;
+        return Frame.read(din);
+    }
+
+    //server initiated notification (new message). Only binary sessions get pushes,
+    //legacy clients read strictly request/response and keep polling VIEW_MESSAGES
+    void push(String text) {
+        if (nio != null) {
+            nio.push(Frame.encodeText(Frame.NOTIFY, text));
+            return;
+        }
+        if (mux != null) {
+            mux.push(text);
+            return;
+        }
+        if (!binaryMode || !pushes.offer(text)) return;
+        if (pushScheduled.compareAndSet(false, true)) {
+            pushDelivery.execute(() -> {
+                pushScheduled.set(false); // before delivering: a push from now on schedules again
+                deliverPushes();
+            });
+        }
+    }
+
+    //writes queued pushes if nobody else is using the stream. The re-check after unlock closes the
+    //gap where a push is queued just as the lock holder finishes
+    private void deliverPushes() {
+        while (mux == null && !pushes.isEmpty() && responseLock.tryLock()) {
+            try {
+                writePushes();
+            } finally {
+                responseLock.unlock();
+            }
+        }
+        if (mux != null) {
+            // queued before the session was multiplexed, the writer thread sends them
+            String text;
+            while ((text = pushes.poll()) != null) {
+                mux.push(text);
+            }
+        }
+    }
+
+    //response lock held by this thread for a long response: gives it up between two frames, so the
+    //pushes queued meanwhile don't wait for the whole download
+    private void yieldToPushes() {
+        if (pushes.isEmpty() || !responseLock.isHeldByCurrentThread()) return;
+        responseLock.unlock();
+        try {
+            deliverPushes();
+        } finally {
+            responseLock.lock();
+        }
+    }
+
+    //responseLock held
+    private void writePushes() {
+        if (dout == null || mux != null || pushes.isEmpty()) return; // not switched to frames yet / writer thread's job
+        try {
+            String text;
+            while ((text = pushes.poll()) != null) {
+                Frame.writeText(dout, Frame.NOTIFY, text);
+            }
+            dout.flush();
+        } catch (IOException e) {
+            pushes.clear(); // connection is going away, the reader side will clean up
+        }
+    }
+
+    //one frame of the binary protocol: raw upload data or a text command
+    void handleFrame(Frame frame) throws Exception {
+        touch();
+        if (frame.getOpcode() == Frame.DATA || frame.getOpcode() == Frame.DEFLATED) {
+            handleUploadFrame(frame);
+        } else {
+            processCommand(frame.getText());
+        }
+    }
+
+    //multiplexed session: a tagged command that doesn't touch upload state runs on a worker,
+    //anything else (upload commands and frames, untagged commands, logout) right here in order
+    private void dispatch(Frame frame) throws Exception {
+        int tag = frame.getOpcode() == Frame.CMD ? frame.getSeq() : 0;
+        OutboundScheduler.Stream stream = tag != 0 ? mux.open(tag) : mux.untagged();
+        boolean concurrent = tag != 0 && CONCURRENT.contains(frame.getText().split(Protocol.DELIMITER, 2)[0]);
+        if (concurrent && inFlight.incrementAndGet() <= MAX_IN_FLIGHT && requestSlots.tryAcquire()) {
+            requestWorkers.newThread(() -> {
+                replyTo.set(stream);
+                try {
+                    handleFrame(frame);
+                } catch (Exception e) {
+                    System.out.println("Error processing command from " + username + ": " + e.getMessage());
+                } finally {
+                    replyTo.remove();
+                    requestSlots.release();
+                    inFlight.decrementAndGet();
+                }
+            }).start();
+            return;
+        }
+        if (concurrent) {
+            inFlight.decrementAndGet();
+        }
+        replyTo.set(stream);
+        try {
+            handleFrame(frame);
+        } finally {
+            replyTo.remove();
+        }
+    }
+
+    //virtual threads when the JDK has them, daemon platform threads otherwise
+    private static ThreadFactory requestWorkers() {
+        ThreadFactory virtual = server.virtualThreads();
+        if (virtual != null) {
+            return virtual;
+        }
+        return r -> {
+            Thread thread = new Thread(r, "session-request");
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    //where this thread's replies go on a multiplexed session
+    private OutboundScheduler.Stream replyStream() {
+        OutboundScheduler.Stream stream = replyTo.get();
+        return stream != null ? stream : mux.untagged();
+    }
+
     private void processCommand(String command) throws Exception {
         //process different commands here
 
@@ -188,6 +547,26 @@ private void handleClientCommands() throws Exception {
             case Protocol.UPLOAD_COMPLETE: //Protocol.UPLOAD_COMPLETE + Protocol.DELIMITER + fileID
                 handleUploadComplete(parts);
                 break;
+
+            case Protocol.UPLOAD_RESUME:
+                handleUploadResume(parts);
+                break;
+
+            case Protocol.FILE_INFO:
+                handleFileInfo(parts);
+                break;
+
+            case Protocol.UPLOAD_HASHES:
+                handleUploadHashes(parts);
+                break;
+
+            case Protocol.UPLOAD_SIGNATURES:
+                handleUploadSignatures(parts);
+                break;
+
+            case Protocol.UPLOAD_DELTA:
+                handleUploadDelta(parts);
+                break;
                 
             case Protocol.DOWNLOAD_REQUEST:
                 handleDownloadRequest(parts);
@@ -202,7 +581,7 @@ private void handleClientCommands() throws Exception {
                 break;
                 
             case Protocol.VIEW_HISTORY:
-                handleViewHistory();
+                handleViewHistory(parts);
                 break;
                 
             case Protocol.LOGOUT:
@@ -271,11 +650,19 @@ private void handleClientCommands() throws Exception {
     String fileName = parts[1];
     long fileSize = Long.parseLong(parts[2]);
     String accessType = parts[3];
-    String requestID = parts.length > 4 ? parts[4] : null;
+    long requestID = 0;
+    double rttSeconds = parts.length > 5 ? Long.parseLong(parts[5]) / 1e6 : 0; // older clients don't send these
+    int window = parts.length > 6 ? Integer.parseInt(parts[6]) : 0;
+    
+    if (!ServerConfig.isValidFileName(fileName)) {
+        sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Invalid file name: it can't start with '.', contain '/', '\\' or '..', or be activity_log.txt / activity_log.idx");
+        return;
+    }
     
     // Check if request ID provided and valid
-    if (requestID != null && !requestID.equals("null")) {
-        FileRequest request = ServerConfig.getFileRequest(requestID);
+    if (parts.length > 4 && !parts[4].equals("null")) {
+        requestID = IdAllocator.parse(IdAllocator.REQUEST_PREFIX, parts[4]);
+        FileRequest request = requestID < 0 ? null : ServerConfig.getFileRequest(requestID);
         if (request == null) {
             sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Invalid request ID");
             return;
@@ -285,89 +672,317 @@ private void handleClientCommands() throws Exception {
     }
     
     // Check if file already exists for this user
+    // (same size does not mean same content: a re-upload is always a real upload, but the
+    // client can send it as a delta against the stored version, see UPLOAD_SIGNATURES)
     String existingFileID = ServerConfig.findExistingFile(username, fileName);
-    
-    if (existingFileID != null) {
-        // File exists - update metadata instead of creating new
-        FileMetadata existingMetadata = ServerConfig.getFileMetadata(existingFileID);
-        
-        // Check if file size changed (re-upload with different content)
-        if (existingMetadata.getFileSize() != fileSize) {
-            // Size changed - need to re-upload
-            // Check buffer capacity for the NEW size
-            if (!ServerConfig.canAccommodateFile(fileSize)) {
-                sendMessage(Protocol.BUFFER_FULL + Protocol.DELIMITER + "Server buffer is full. Please try later.");
-                return;
-            }
-        } else {
-            // Same file, just updating access type
-            existingMetadata.setAccessType(accessType);
-            sendMessage(Protocol.SUCCESS + Protocol.DELIMITER + "File access type updated to " + accessType);
-            FileManager.logActivity(username, fileName, "UPDATE", "SUCCESS", accessType);
-            return;
-        }
+    long previousSize = existingFileID != null ? FileManager.fileSize(username, fileName) : -1;
+    if (fileSize < 0) {
+        sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Invalid file size");
+        return;
     }
-    
-    // Check buffer capacity for NEW uploads
-    if (!ServerConfig.canAccommodateFile(fileSize)) {
-        sendMessage(Protocol.BUFFER_FULL + Protocol.DELIMITER + "Server buffer is full. Please try later.");
+    if (fileSize > ServerConfig.MAX_BUFFER_SIZE) {
+        // could never be reserved, no need to ask the budget
+        sendMessage(Protocol.BUFFER_FULL + Protocol.DELIMITER + "File is larger than the server's upload buffer of "
+            + ServerConfig.MAX_BUFFER_SIZE / (1024 * 1024) + " MB.");
         return;
     }
     
-    // Generate random chunk size
-    Random random = new Random();
-    int chunkSize = ServerConfig.MIN_CHUNK_SIZE + random.nextInt(ServerConfig.MAX_CHUNK_SIZE - ServerConfig.MIN_CHUNK_SIZE + 1);
-    
     // Generate or reuse file ID
     String fileID;
     if (existingFileID != null) {
-        // Re-uploading existing file with new content
+        // Re-uploading existing file with new content, old entry stays until the new one commits
         fileID = existingFileID;
-        // Remove old entry before creating new one
-        ServerConfig.removeFile(existingFileID);
     } else {
         // Brand new file
         fileID = ServerConfig.generateFileID();
     }
     
-    // Create metadata
+    // a parked upload of the same file is replaced by this one
+    if (ServerConfig.getUploadInfo(fileID) != null) {
+        ServerConfig.cancelUpload(fileID);
+    }
+    
+    // Reserve buffer capacity (check and reserve in one step, released by completeUpload / cancelUpload)
+    BufferBudget.Result reserved = ServerConfig.reserveBuffer(fileID, username, fileSize);
+    if (reserved == BufferBudget.Result.BUFFER_FULL) {
+        sendMessage(Protocol.BUFFER_FULL + Protocol.DELIMITER + "Server buffer is full. Please try later.");
+        return;
+    }
+    if (reserved == BufferBudget.Result.QUOTA_EXCEEDED) {
+        long quotaMB = ServerConfig.getUserQuota() / (1024 * 1024);
+        sendMessage(Protocol.BUFFER_FULL + Protocol.DELIMITER + (fileSize > ServerConfig.getUserQuota()
+            ? "File is larger than your upload quota of " + quotaMB + " MB."
+            : "Your uploads in progress already use " + ServerConfig.getBufferUsageOf(username) / (1024 * 1024)
+                + " of your " + quotaMB + " MB. Finish or cancel one and try again."));
+        return;
+    }
+    
+    // Create metadata (registered in handleUploadComplete, so the catalog only holds finished files)
     FileMetadata metadata = new FileMetadata(fileName, fileSize, username, accessType);
     metadata.setFileID(fileID);
     metadata.setRequestID(requestID);
-    ServerConfig.registerFile(fileID, metadata);
     
-    // Initialize upload tracking
-    ChunkInfo chunkInfo = new ChunkInfo(fileID, chunkSize, fileSize);
-    ServerConfig.startUpload(fileID, chunkInfo);
-    ServerConfig.addBufferUsage(fileSize);
+    // Chunk size from what this connection has shown so far, adapted again as chunks arrive
+    ChunkSizer sizer = new ChunkSizer(fileID, rttSeconds, window, lastUploadRate);
+    int chunkSize = sizer.getChunkSize();
+    
+    // Initialize upload tracking, chunks go straight to a staging file on disk
+    ChunkInfo chunkInfo = new ChunkInfo(fileID, username, chunkSize, fileSize);
+    chunkInfo.setMetadata(metadata);
+    chunkInfo.setStartCpuNanos(threadCpuNanos());
+    FileChannel staging;
+    try {
+        staging = FileManager.openStagingFile(username, fileID);
+    } catch (IOException e) {
+        ServerConfig.cancelUpload(fileID); // gives the reservation back
+        throw e;
+    }
+    ServerConfig.startUpload(fileID, chunkInfo, staging, sizer);
     
     // Send confirmation
-    sendMessage(Protocol.UPLOAD_CONFIRMED + Protocol.DELIMITER + fileID + Protocol.DELIMITER + chunkSize);
+    sendMessage(Protocol.UPLOAD_CONFIRMED + Protocol.DELIMITER + fileID + Protocol.DELIMITER + chunkSize
+        + Protocol.DELIMITER + BlobStore.BLOCK_SIZE + Protocol.DELIMITER + previousSize);
     
     System.out.println("Upload initiated for " + fileName + " by " + username + 
                       (existingFileID != null ? " (re-upload)" : " (new file)"));
 }
     
+    //Handles UPLOAD_RESUME - reattach an upload that was cut off, client continues at committedBytes
+    //Format: UPLOAD_RESUME|||fileID
+    private void handleUploadResume(String[] parts) throws Exception {
+        String fileID = parts[1];
+        ChunkInfo info = ServerConfig.resumeUpload(fileID, username);
+        if (info == null) {
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "No resumable upload " + fileID + " (expired or unknown)");
+            return;
+        }
+        long committed = info.getCommittedBytes();
+        System.out.println("Upload " + fileID + " resumed by " + username + " at " + committed + "/" + info.getTotalSize() + " bytes");
+        sendMessage(Protocol.UPLOAD_RESUME + Protocol.DELIMITER + fileID + Protocol.DELIMITER + committed
+            + Protocol.DELIMITER + info.getChunkSize());
+    }
+
+    //Handles FILE_INFO - size of a file, so the client can split its download into ranges
+    //Format: FILE_INFO|||owner|||fileName
+    private void handleFileInfo(String[] parts) throws Exception {
+        BlobStore.Manifest file = BlobStore.readManifest(FileManager.filePath(parts[1], parts[2]));
+        if (file == null) {
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "File not found");
+            return;
+        }
+        sendMessage(Protocol.FILE_INFO + Protocol.DELIMITER + parts[2] + Protocol.DELIMITER + file.size
+            + (file.digest != null ? Protocol.DELIMITER + file.digest : ""));
+    }
+
+    //Handles UPLOAD_HASHES - the client lists the sha-256 of every block of the file, blocks of the
+    //uploader's own stored files are copied into the staging file so the client can skip them.
+    //only their own: a block of someone else's file would hand out its content for just its hash
+    //(a file up to a block long has the block hash as its file hash), and the reply would tell
+    //whether anybody stores that content. (blocks are still stored once for everybody, on commit)
+    //Format: UPLOAD_HASHES|||fileID|||hash,hash,...
+    private void handleUploadHashes(String[] parts) throws Exception {
+        String fileID = parts[1];
+        ChunkInfo info = ServerConfig.getUploadInfo(fileID);
+        FileChannel staging = ServerConfig.getStagingFile(fileID);
+        if (info == null || staging == null || !info.getOwner().equals(username)) {
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Upload data not found");
+            return;
+        }
+        String[] hashes = parts.length > 2 && !parts[2].isEmpty() ? parts[2].split(",") : new String[0];
+        long blocks = (info.getTotalSize() + BlobStore.BLOCK_SIZE - 1) / BlobStore.BLOCK_SIZE;
+        if (hashes.length != blocks) {
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Expected " + blocks + " block hashes");
+            return;
+        }
+
+        Set<String> own = FileManager.ownBlocks(username);
+        StringBuilder present = new StringBuilder(hashes.length);
+        int reused = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            long offset = (long) i * BlobStore.BLOCK_SIZE;
+            int length = (int) Math.min(BlobStore.BLOCK_SIZE, info.getTotalSize() - offset);
+            if (own.contains(hashes[i]) && ServerConfig.getBlobStore().copyBlock(hashes[i], staging, offset, length)) {
+                info.markReceived(offset, length);
+                present.append('1');
+                reused++;
+            } else {
+                present.append('0');
+            }
+        }
+        System.out.println("Upload " + fileID + ": " + reused + "/" + hashes.length + " block(s) already stored");
+        sendMessage(Protocol.UPLOAD_HASHES + Protocol.DELIMITER + fileID + Protocol.DELIMITER + info.getCommittedBytes()
+            + Protocol.DELIMITER + present);
+    }
+
+    //Handles UPLOAD_SIGNATURES - rolling + strong checksum of every block of the stored version
+    //of the file being re-uploaded, for the client to compute a delta against
+    //Format: UPLOAD_SIGNATURES|||fileID, reply blockSize 0 = no stored version
+    private void handleUploadSignatures(String[] parts) throws Exception {
+        String fileID = parts[1];
+        ChunkInfo info = ServerConfig.getUploadInfo(fileID);
+        if (info == null || !info.getOwner().equals(username)) {
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Upload data not found");
+            return;
+        }
+        BlobStore.Manifest previous = FileManager.openFile(username, info.getMetadata().getFileName());
+        if (previous == null) {
+            sendMessage(Protocol.UPLOAD_SIGNATURES + Protocol.DELIMITER + fileID + Protocol.DELIMITER + 0);
+            return;
+        }
+        try {
+            int blockSize = RollingChecksum.blockSize(previous.size);
+            StringBuilder signatures = new StringBuilder();
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            for (long offset = 0; offset < previous.size; offset += blockSize) {
+                block.clear().limit((int) Math.min(blockSize, previous.size - offset));
+                FileManager.readRange(previous, offset, block);
+                if (signatures.length() > 0) {
+                    signatures.append(',');
+                }
+                signatures.append(Integer.toHexString(RollingChecksum.weak(block.array(), 0, block.limit())))
+                    .append(':').append(RollingChecksum.strong(block.array(), 0, block.limit()));
+            }
+            sendMessage(Protocol.UPLOAD_SIGNATURES + Protocol.DELIMITER + fileID + Protocol.DELIMITER + blockSize
+                + Protocol.DELIMITER + previous.version() + Protocol.DELIMITER + signatures);
+        } finally {
+            FileManager.closeFile(previous);
+        }
+    }
+
+    //Handles UPLOAD_DELTA - copies the blocks of the stored version the client matched into the
+    //new file (newOffset:blockIndex pairs), so only the changed bytes have to be sent
+    //Format: UPLOAD_DELTA|||fileID|||version|||newOffset:block,...
+    private void handleUploadDelta(String[] parts) throws Exception {
+        String fileID = parts[1];
+        ChunkInfo info = ServerConfig.getUploadInfo(fileID);
+        FileChannel staging = ServerConfig.getStagingFile(fileID);
+        if (info == null || staging == null || !info.getOwner().equals(username)) {
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Upload data not found");
+            return;
+        }
+        BlobStore.Manifest previous = FileManager.openFile(username, info.getMetadata().getFileName());
+        if (previous == null || !previous.version().equals(parts[2])) {
+            if (previous != null) {
+                FileManager.closeFile(previous);
+            }
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Stored version changed, send the whole file");
+            return;
+        }
+        long copied = 0;
+        try {
+            int blockSize = RollingChecksum.blockSize(previous.size);
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            String[] matches = parts.length > 3 && !parts[3].isEmpty() ? parts[3].split(",") : new String[0];
+            for (String match : matches) {
+                String[] pair = match.split(":");
+                long newOffset = Long.parseLong(pair[0]);
+                long oldOffset = Long.parseLong(pair[1]) * blockSize;
+                if (oldOffset < 0 || oldOffset >= previous.size) continue;
+                int length = (int) Math.min(blockSize, previous.size - oldOffset);
+                if (newOffset < 0 || newOffset + length > info.getTotalSize()) continue;
+
+                block.clear().limit(length);
+                FileManager.readRange(previous, oldOffset, block);
+                block.flip();
+                while (block.hasRemaining()) {
+                    staging.write(block, newOffset + block.position());
+                }
+                info.markReceived(newOffset, length);
+                copied += length;
+            }
+        } finally {
+            FileManager.closeFile(previous);
+        }
+        System.out.println("Upload " + fileID + ": " + copied + "/" + info.getTotalSize() + " bytes taken from the stored version");
+        sendMessage(Protocol.UPLOAD_DELTA + Protocol.DELIMITER + fileID + Protocol.DELIMITER + info.getCommittedBytes()
+            + Protocol.DELIMITER + copied);
+    }
+
     //Handles UPLOAD_CHUNK - receives a single chunk
-    //Format: UPLOAD_CHUNK|||fileID|||chunkData(base64)
+    //Format: UPLOAD_CHUNK|||fileID|||chunkData(base64)[|||seq|||offset[|||DEFLATE]]
     private void handleUploadChunk(String[] parts) throws Exception {
         String fileID = parts[1];
         String chunkDataBase64 = parts[2];
         
         // Decode chunk data
         byte[] chunkData = Base64.getDecoder().decode(chunkDataBase64);
+        int wireLength = chunkData.length;
+        if (parts.length > 5 && parts[5].equals(Protocol.DEFLATE)) {
+            chunkData = inflateOrNull(chunkData);
+        }
+
+        // old clients send no seq/offset, their chunks are simply appended in order
+        int seq = parts.length > 4 ? Integer.parseInt(parts[3]) : -1;
+        long offset = parts.length > 4 ? Long.parseLong(parts[4]) : -1;
         
-        // Store chunk
-        ServerConfig.addChunk(fileID, chunkData);
-        
-        // Update chunk info
+        receiveChunk(fileID, seq, offset, chunkData, wireLength);
+    }
+
+    //Handles a DATA frame - same as UPLOAD_CHUNK but the bytes arrive raw (or deflated, DEFLATED frame)
+    private void handleUploadFrame(Frame frame) throws Exception {
+        byte[] chunkData = frame.getOpcode() == Frame.DEFLATED ? inflateOrNull(frame.getPayload()) : frame.getPayload();
+        receiveChunk(frame.getFileID(), frame.getSeq(), frame.getOffset(), chunkData, frame.getLength());
+    }
+
+    //null if the compressed chunk was damaged on the way (it is then acked as damaged, not dropped,
+    //so the client's window keeps moving and it sends the chunk again)
+    private byte[] inflateOrNull(byte[] payload) {
+        try {
+            return ChunkCodec.inflate(payload);
+        } catch (IOException e) {
+            System.out.println("Damaged chunk from " + username + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    //every chunk gets its own ack so the client can keep a window of chunks in flight
+    //ack format: CHUNK_ACK|||fileID|||seq|||committedBytes|||chunkSize|||bytesPerSec|||crc32c (committed =
+    //received without gaps from byte 0, chunkSize = what the client should send from now on,
+    //crc32c = of the bytes stored, the client sends the chunk again if it doesn't match)
+    //wireLength = size the chunk arrived in (smaller than chunkData when it came compressed),
+    //chunkData = null for a chunk that could not be decompressed: nothing is stored, crc32c is -1
+    private void receiveChunk(String fileID, int seq, long offset, byte[] chunkData, int wireLength) throws Exception {
         ChunkInfo info = ServerConfig.getUploadInfo(fileID);
-        if (info != null) {
-            info.incrementReceivedChunks(); // new chunk add hoise so count++ for tracking 
+        long committed = 0;
+        int nextChunkSize = 0;
+        long rate = 0;
+        if (info != null && !info.getOwner().equals(username)) {
+            info = null; // not this user's upload
+        }
+        if (info != null && chunkData == null) {
+            committed = info.getCommittedBytes();
+            nextChunkSize = info.getChunkSize();
+        } else if (info != null) {
+            if (seq < 0) {
+                seq = info.getReceivedChunks();
+            }
+            if (offset < 0) {
+                offset = info.getReceivedBytes();
+            }
+            if (offset + chunkData.length > info.getTotalSize()) {
+                sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Chunk beyond end of file");
+                return;
+            }
+            FileChannel staging = ServerConfig.getStagingFile(fileID);
+            if (staging != null) {
+                FileManager.writeChunk(staging, offset, chunkData);
+                info.markReceived(offset, chunkData.length);
+                info.addWireBytes(chunkData.length, wireLength);
+                info.hashCommitted(offset, chunkData, staging);
+            }
+            committed = info.getCommittedBytes();
+            ChunkSizer sizer = ServerConfig.getChunkSizer(fileID);
+            if (sizer != null) {
+                info.setChunkSize(sizer.onChunk(chunkData.length));
+                rate = (long) sizer.getRate();
+            }
+            nextChunkSize = info.getChunkSize();
         }
         
         // Send acknowledgment
-        sendMessage(Protocol.CHUNK_ACK + Protocol.DELIMITER + fileID);
+        sendMessage(Protocol.CHUNK_ACK + Protocol.DELIMITER + fileID + Protocol.DELIMITER + seq + Protocol.DELIMITER + committed
+            + Protocol.DELIMITER + nextChunkSize + Protocol.DELIMITER + rate
+            + Protocol.DELIMITER + (chunkData != null ? Checksums.crc32c(chunkData, 0, chunkData.length) : -1));
     }
     
      //Handles UPLOAD_COMPLETE - finalizes upload
@@ -376,55 +991,100 @@ private void handleClientCommands() throws Exception {
     private void handleUploadComplete(String[] parts) throws Exception {
         String fileID = parts[1];
         
-        FileMetadata metadata = ServerConfig.getFileMetadata(fileID);
-        List<byte[]> chunks = ServerConfig.getFileChunks(fileID);
+        ChunkInfo info = ServerConfig.getUploadInfo(fileID);
+        FileMetadata metadata = info == null ? null : info.getMetadata();
         
-        if (metadata == null || chunks == null) {
+        if (metadata == null) {
             sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Upload data not found");
             return;
         }
         
-        // Verify file size
-        long totalSize = 0;
-        for (byte[] chunk : chunks) {
-            totalSize += chunk.length;
-        }
+        // Verify file size: every byte from 0 to fileSize must have arrived
+        long totalSize = info.getCommittedBytes();
         
-        if (totalSize != metadata.getFileSize()) {
+        if (totalSize != metadata.getFileSize() || info.getReceivedBytes() != totalSize) {
             sendMessage(Protocol.ERROR + Protocol.DELIMITER + "File size mismatch. Upload failed.");
             FileManager.logActivity(username, metadata.getFileName(), "UPLOAD", "FAILED", metadata.getAccessType());
             ServerConfig.cancelUpload(fileID);
             return;
         }
         
-        // Save file to disk
-        boolean saved = FileManager.saveFile(username, metadata, chunks);
+        FileChannel staging = ServerConfig.getStagingFile(fileID);
+        if (staging == null) {
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Upload is not attached to this session, resume it first");
+            return;
+        }
+        
+        // Verify content: the digest built while chunks arrived against the client's
+        info.finishHashing(staging); // ranges filled in after the last chunk
+        String expected = parts.length > 2 ? parts[2] : null;
+        if (expected != null && !expected.equals(info.getSha256())) {
+            // a chunk sent again after a bad crc leaves its damaged first copy in the running
+            // digest, one pass over the staged file decides
+            System.out.println("Upload " + fileID + ": digest differs from the client's, hashing the staged file again");
+            info.rehash(staging);
+            if (!expected.equals(info.getSha256())) {
+                sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Checksum mismatch. Upload failed.");
+                FileManager.logActivity(username, metadata.getFileName(), "UPLOAD", "FAILED", metadata.getAccessType());
+                ServerConfig.cancelUpload(fileID);
+                return;
+            }
+        }
+        metadata.setSha256(info.getSha256());
+        
+        // Move staged file into place
+        staging.close();
+        boolean saved = FileManager.commitStagedFile(username, metadata);
         
         if (saved) {
+            ServerConfig.registerFile(fileID, metadata);
+            ChunkSizer sizer = ServerConfig.getChunkSizer(fileID);
+            if (sizer != null) {
+                if (sizer.getRate() > 0) {
+                    lastUploadRate = sizer.getRate();
+                }
+                System.out.println("Upload " + fileID + ": " + sizer.summary());
+            }
+            if (info.getWireBytes() < info.getChunkBytes()) {
+                logCompression("Upload", metadata.getFileName(), info.getChunkBytes(), info.getWireBytes());
+            }
             sendMessage(Protocol.SUCCESS + Protocol.DELIMITER + "Upload successful!");
+            logTransfer("Upload", metadata.getFileName(), totalSize, info.getStartNanos(), info.getStartCpuNanos());
             FileManager.logActivity(username, metadata.getFileName(), "UPLOAD", "SUCCESS", metadata.getAccessType());
             
             // If this was in response to a request, notify requester
-            if (metadata.getRequestID() != null) {
+            if (metadata.getRequestID() != 0) {
                 notifyFileRequestFulfilled(metadata);
             }
         } else {
             sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Failed to save file");
             FileManager.logActivity(username, metadata.getFileName(), "UPLOAD", "FAILED", metadata.getAccessType());
+            FileManager.discardStagedFile(username, fileID);
         }
         
         // Cleanup
         ServerConfig.completeUpload(fileID);
-        ServerConfig.removeBufferUsage(metadata.getFileSize());
     }
     
     /**
      * Handles DOWNLOAD_REQUEST
-     * Format: DOWNLOAD_REQUEST|||owner|||fileName
+     * Format: DOWNLOAD_REQUEST|||owner|||fileName[|||offset[|||length]]
+     * offset/length select a byte range (resuming a download), default is the whole file
      */
     private void handleDownloadRequest(String[] parts) throws Exception {
         String owner = parts[1];
         String fileName = parts[2];
+        long rangeStart = parts.length > 3 ? Long.parseLong(parts[3]) : 0;
+        long rangeLength = parts.length > 4 ? Long.parseLong(parts[4]) : -1; // -1 = to the end
+        if (rangeStart < 0) {
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Invalid download offset");
+            return;
+        }
+
+        if (binaryMode) {
+            sendFileZeroCopy(owner, fileName, rangeStart, rangeLength);
+            return;
+        }
         
         // Read file from disk
         byte[] fileData = FileManager.readFile(owner, fileName);
@@ -434,63 +1094,242 @@ private void handleClientCommands() throws Exception {
             FileManager.logActivity(username, fileName, "DOWNLOAD", "FAILED","N/A");
             return;
         }
+        if (rangeStart > fileData.length) {
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Offset beyond end of file");
+            return;
+        }
+        int end = (int) (rangeLength < 0 ? fileData.length : Math.min(fileData.length, rangeStart + rangeLength));
         
+        long startNanos = System.nanoTime();
+        long startCpu = threadCpuNanos();
+
         // Send download start
-        sendMessage(Protocol.DOWNLOAD_START + Protocol.DELIMITER + fileName + Protocol.DELIMITER + fileData.length);
+        String digest = FileManager.fileDigest(owner, fileName);
+        sendMessage(Protocol.DOWNLOAD_START + Protocol.DELIMITER + fileName + Protocol.DELIMITER + fileData.length
+            + Protocol.DELIMITER + rangeStart + Protocol.DELIMITER + (end - rangeStart)
+            + (digest != null ? Protocol.DELIMITER + digest : ""));
         
         // Send file in chunks
         int chunkSize = ServerConfig.MAX_CHUNK_SIZE; // use max chunk size for download
-        int offset = 0;
+        int offset = (int) rangeStart;
         
-        while (offset < fileData.length) {
-            int length = Math.min(chunkSize, fileData.length - offset);
+        if (compression && ChunkCodec.worthCompressing(fileData, offset, Math.min(chunkSize, end - offset))) {
+            long wire = sendCompressedChunks(fileName, (position, chunk) -> System.arraycopy(fileData, (int) position, chunk, 0, chunk.length), offset, end);
+            logCompression("Download", fileName, end - offset, wire);
+            offset = end;
+        }
+        while (offset < end) {
+            int length = Math.min(chunkSize, end - offset);
             byte[] chunk = Arrays.copyOfRange(fileData, offset, offset + length);
             String chunkBase64 = Base64.getEncoder().encodeToString(chunk);
-            
             sendMessage(chunkBase64);
             offset += length;
         }
         
         // Send completion
         sendMessage(Protocol.DOWNLOAD_COMPLETE + Protocol.DELIMITER + fileName);
-        FileManager.logActivity(username, fileName, "DOWNLOAD", "SUCCESS","N/A");
+        if (end == fileData.length) { // one log line per download, not per range
+            FileManager.logActivity(username, fileName, "DOWNLOAD", "SUCCESS","N/A");
+        }
+        logTransfer("Download", fileName, end - rangeStart, startNanos, startCpu);
+        
+        System.out.println("Download completed: " + fileName + " for " + username);
+    }
+
+    //binary protocol download: DOWNLOAD_START, then the file body after BULK headers via sendfile
+    //the file is never loaded into heap, so size is only limited by the disk (no 2 GB byte[] limit)
+    private void sendFileZeroCopy(String owner, String fileName, long rangeStart, long rangeLength) throws Exception {
+        BlobStore.Manifest file = FileManager.openFile(owner, fileName);
+        if (file == null) {
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "File not found");
+            FileManager.logActivity(username, fileName, "DOWNLOAD", "FAILED","N/A");
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        long startCpu = threadCpuNanos();
+        long size;
+
+        long fileSize = file.size;
+        if (rangeStart > fileSize) {
+            FileManager.closeFile(file);
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Offset beyond end of file");
+            return;
+        }
+        size = rangeLength < 0 ? fileSize - rangeStart : Math.min(rangeLength, fileSize - rangeStart);
+        String start = Protocol.DOWNLOAD_START + Protocol.DELIMITER + fileName + Protocol.DELIMITER + fileSize
+            + Protocol.DELIMITER + rangeStart + Protocol.DELIMITER + size
+            + (file.digest != null ? Protocol.DELIMITER + file.digest : "");
+
+        if (nio == null && compression && compresses(file, rangeStart, size)) {
+            // compressible content: DEFLATED frames instead of the zero-copy body. (NIO mode always
+            // stays zero-copy, its output queue has no limit and would hold the whole compressed file)
+            try {
+                sendMessage(start);
+                long wire = sendCompressedChunks(fileName, (position, chunk) -> FileManager.readRange(file, position, ByteBuffer.wrap(chunk)),
+                    rangeStart, rangeStart + size);
+                logCompression("Download", fileName, size, wire);
+            } finally {
+                FileManager.closeFile(file);
+            }
+        } else if (mux != null) {
+            // one BULK per slice, every slice is a turn of its own on the socket: whatever else the
+            // session asked for is answered in between
+            OutboundScheduler.Stream stream = replyStream();
+            try {
+                sendMessage(start);
+                for (long sent = 0; sent < size; sent += OutboundScheduler.SLICE) {
+                    long position = rangeStart + sent;
+                    long length = Math.min(OutboundScheduler.SLICE, size - sent);
+                    stream.add(out -> {
+                        Frame.writeBulkHeader(out, fileName, stream.tag(), position, length);
+                        out.flush();
+                        FileManager.sendFileRegion(file, position, length, socket);
+                    });
+                }
+                stream.finish(); // the slices read the file until they are on the wire
+            } finally {
+                FileManager.closeFile(file);
+            }
+        } else if (nio != null) {
+            // queued, the selector thread streams the blocks with transferTo as the socket drains
+            // (and releases them when done)
+            sendMessage(start);
+            nio.send(Frame.encodeBulkHeader(fileName, rangeStart, size));
+            FileManager.forEachBlockRegion(file, rangeStart, size, nio::sendFile);
+            nio.whenSent(() -> FileManager.closeFile(file));
+        } else {
+            try {
+                sendMessage(start);
+                // sliced like above: pushes can go out between two slices
+                for (long sent = 0; sent < size; sent += OutboundScheduler.SLICE) {
+                    long position = rangeStart + sent;
+                    long length = Math.min(OutboundScheduler.SLICE, size - sent);
+                    Frame.writeBulkHeader(dout, fileName, position, length);
+                    dout.flush();
+                    FileManager.sendFileRegion(file, position, length, socket);
+                    yieldToPushes();
+                }
+            } finally {
+                FileManager.closeFile(file);
+            }
+        }
+
+        sendMessage(Protocol.DOWNLOAD_COMPLETE + Protocol.DELIMITER + fileName);
+        // resumed / parallel downloads come in several ranges, log once (the range with the end of the file)
+        if (rangeStart + size == fileSize) {
+            FileManager.logActivity(username, fileName, "DOWNLOAD", "SUCCESS","N/A");
+        }
+        logTransfer("Download", fileName, size, startNanos, startCpu);
         
         System.out.println("Download completed: " + fileName + " for " + username);
     }
     
     
+    //reads [position, position + chunk.length) of the file being downloaded into chunk
+    private interface ChunkReader {
+        void read(long position, byte[] chunk) throws IOException;
+    }
+
+    //content sniffing on the first chunk of a range (only its first 64 KB are read)
+    private static boolean compresses(BlobStore.Manifest file, long position, long size) throws IOException {
+        byte[] sample = new byte[(int) Math.min(size, 64 * 1024)];
+        FileManager.readRange(file, position, ByteBuffer.wrap(sample));
+        return ChunkCodec.worthCompressing(sample, 0, sample.length);
+    }
+
+    //download body [position, end) as compressed chunks: read in order, deflated on the shared pool
+    //a few chunks ahead of the socket, sent as DEFLATED frames / "DEFLATE:::base64" strings (plain
+    //DATA / base64 for a chunk that didn't shrink). returns the bytes that went on the wire
+    private long sendCompressedChunks(String fileName, ChunkReader reader, long position, long end) throws Exception {
+        int chunkSize = ServerConfig.MAX_CHUNK_SIZE;
+        ChunkCodec.Pipeline pipeline = new ChunkCodec.Pipeline();
+        ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        long next = position;
+        long wire = 0;
+        try {
+            while (position < end) {
+                while (next < end && chunks.size() < ChunkCodec.lookahead()) {
+                    byte[] chunk = new byte[(int) Math.min(chunkSize, end - next)];
+                    reader.read(next, chunk);
+                    pipeline.add(chunk, 0, chunk.length);
+                    chunks.add(chunk);
+                    next += chunk.length;
+                }
+                byte[] chunk = chunks.poll();
+                byte[] deflated = pipeline.take();
+                if (binaryMode) {
+                    if (deflated != null) {
+                        sendChunkFrame(Frame.DEFLATED, fileName, position, deflated);
+                    } else {
+                        sendChunkFrame(Frame.DATA, fileName, position, chunk);
+                    }
+                } else if (deflated != null) {
+                    sendMessage(Protocol.DEFLATE + Protocol.DELIMITER + Base64.getEncoder().encodeToString(deflated));
+                } else {
+                    sendMessage(Base64.getEncoder().encodeToString(chunk));
+                }
+                wire += deflated != null ? deflated.length : chunk.length;
+                position += chunk.length;
+            }
+        } finally {
+            pipeline.cancel();
+        }
+        if (binaryMode && mux == null) {
+            dout.flush();
+        }
+        return wire;
+    }
+
+    //one download chunk: straight onto dout, or its request's stream on a multiplexed session
+    private void sendChunkFrame(byte opcode, String fileName, long position, byte[] data) throws IOException {
+        if (mux != null) {
+            OutboundScheduler.Stream stream = replyStream();
+            stream.add(out -> Frame.write(out, opcode, fileName, stream.tag(), position, data, 0, data.length));
+            return;
+        }
+        Frame.write(dout, opcode, fileName, 0, position, data, 0, data.length);
+        yieldToPushes();
+    }
+
+    //bytes = chunk bytes of the transfer, wire = what they took on the wire
+    private void logCompression(String what, String fileName, long bytes, long wire) {
+        System.out.println(String.format("%s %s for %s: %d bytes sent as %d (compressed %.1fx)",
+            what, fileName, username, bytes, wire, (double) bytes / Math.max(1, wire)));
+    }
+    
      //Format: MAKE_FILE_REQUEST|||description|||recipient
      
     private void handleMakeFileRequest(String[] parts) throws Exception {
         String description = parts[1];
         String recipient = parts[2];
+        if (!recipient.equals("ALL") && !ServerConfig.isRegistered(recipient)) {
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "No such user: " + recipient);
+            return;
+        }
         
-        String requestID = ServerConfig.generateRequestID();
+        long requestID = ServerConfig.generateRequestID();
         FileRequest request = new FileRequest(requestID, username, recipient, description);
         ServerConfig.addFileRequest(requestID, request);
+        String requestName = IdAllocator.format(IdAllocator.REQUEST_PREFIX, requestID); // what users type
         
         // Send request to recipient(s)
         if (recipient.equals("ALL")) {
-            // Broadcast to all clients
-            Set<String> allClients = ServerConfig.getAllClients();
-            for (String client : allClients) {
-                if (!client.equals(username)) {
-                    String msgContent = "File request from " + username + 
-                                      ": " + description + " [Request ID: " + requestID + "]";
-                    Message msg = new Message(ServerConfig.generateMessageID(), client, msgContent);
-                    ServerConfig.addMessage(client, msg);
-                }
-            }
+            // Broadcast to all clients: stored once, merged into everyone else's messages
+            String msgContent = "File request from " + username + 
+                              ": " + description + " [Request ID: " + requestName + "]";
+            Message msg = new Message(ServerConfig.generateMessageID(), "ALL", msgContent);
+            ServerConfig.addBroadcast(username, msg);
             sendMessage(Protocol.SUCCESS + Protocol.DELIMITER + 
-                       "Request broadcast to all users. Request ID: " + requestID);
+                       "Request broadcast to all users. Request ID: " + requestName);
         } else {
             // Send to specific user
             String msgContent = "File request from " + username + 
-                              ": " + description + " [Request ID: " + requestID + "]";
+                              ": " + description + " [Request ID: " + requestName + "]";
             Message msg = new Message(ServerConfig.generateMessageID(), recipient, msgContent);
             ServerConfig.addMessage(recipient, msg);
             sendMessage(Protocol.SUCCESS + Protocol.DELIMITER + 
-                       "Request sent to " + recipient + ". Request ID: " + requestID);
+                       "Request sent to " + recipient + ". Request ID: " + requestName);
         }
     }
     
@@ -508,32 +1347,60 @@ private void handleViewMessages() throws Exception {
         for (Message msg : allMessages) {
             String indicator = msg.isRead() ? "   " : " * "; // Star for unread
             response.append(indicator).append(msg.getContent()).append("\n");
-            
-            // Mark as read after viewing
-            if (!msg.isRead()) {
-                msg.setRead(true);
-            }
         }
         response.append("\n(* = unread messages)\n");
+        // Mark as read after viewing (persisted as a watermark)
+        ServerConfig.markMessagesRead(username, allMessages);
     }
     
     sendMessage(response.toString());
 }
     
     
-    private void handleViewHistory() throws Exception {
-        String history = FileManager.readActivityLog(username);
-        sendMessage(Protocol.SUCCESS + Protocol.DELIMITER + history);
+    // VIEW_HISTORY[:::limit[:::cursor[:::action[:::status]]]]  (empty field = default / no filter)
+    // reply: SUCCESS:::page text:::next cursor (-1 = no older entries)
+    private void handleViewHistory(String[] parts) throws Exception {
+        int limit = ActivityHistory.DEFAULT_PAGE;
+        long cursor = -1;
+        String action = null;
+        String status = null;
+        try {
+            if (parts.length > 1 && !parts[1].isEmpty()) limit = Integer.parseInt(parts[1]);
+            if (parts.length > 2 && !parts[2].isEmpty()) cursor = Long.parseLong(parts[2]);
+        } catch (NumberFormatException e) {
+            sendMessage(Protocol.ERROR + Protocol.DELIMITER + "Invalid history page or cursor");
+            return;
+        }
+        if (parts.length > 3 && !parts[3].isEmpty()) action = parts[3].toUpperCase();
+        if (parts.length > 4 && !parts[4].isEmpty()) status = parts[4].toUpperCase();
+        limit = Math.max(1, Math.min(limit, ActivityHistory.MAX_PAGE));
+
+        ActivityHistory.Page page = FileManager.readActivityLog(username, limit, cursor, action, status);
+        sendMessage(Protocol.SUCCESS + Protocol.DELIMITER + page.text + Protocol.DELIMITER + page.nextCursor);
     }
     
     
+    //per transfer throughput + cpu cost, to compare binary vs legacy protocol
+    private void logTransfer(String what, String fileName, long bytes, long startNanos, long startCpu) {
+        double seconds = Math.max(System.nanoTime() - startNanos, 1) / 1e9;
+        double mbPerSec = bytes / (1024.0 * 1024.0) / seconds;
+        double cpuSecPerGB = bytes == 0 ? 0 : (threadCpuNanos() - startCpu) / 1e9 / (bytes / (1024.0 * 1024.0 * 1024.0));
+        System.out.println(String.format("%s %s for %s: %d bytes in %.3f s, %.2f MB/s, %.2f cpu-s/GB [%s]",
+            what, fileName, username, bytes, seconds, mbPerSec, cpuSecPerGB, binaryMode ? "binary" : "legacy"));
+    }
+
+    static long threadCpuNanos() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : 0;
+    }
+
     private void notifyFileRequestFulfilled(FileMetadata metadata) {
         FileRequest request = ServerConfig.getFileRequest(metadata.getRequestID());
         if (request == null) return;
         
         String requester = request.getRequester();
         String msgContent = username + " has uploaded a file in response to your request: " +
-                          metadata.getFileName() + " [Request ID: " + request.getRequestID() + "]";
+                          metadata.getFileName() + " [Request ID: " + IdAllocator.format(IdAllocator.REQUEST_PREFIX, request.getRequestID()) + "]";
         
         Message msg = new Message(ServerConfig.generateMessageID(), requester, msgContent);
         ServerConfig.addMessage(requester, msg);
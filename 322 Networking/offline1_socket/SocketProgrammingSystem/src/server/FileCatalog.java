@@ -0,0 +1,425 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import models.FileMetadata;
+import utils.Protocol;
+
+// All registered files plus the secondary indexes the commands need, so LIST_OWN_FILES,
+// LIST_PUBLIC_FILES and UPLOAD_REQUEST cost O(result) instead of a scan of every file.
+//   byOwner        owner -> fileIDs
+//   publicFiles    fileIDs with PUBLIC access
+//   byOwnerAndName owner + fileName -> fileID
+// Writers take one lock so the maps always change together, readers never lock.
+// Inside, a fileID is its number from IdAllocator (the "FILE_..." string is only the API/wire form).
+//
+// Persistence: catalog.snapshot (every live entry, binary) + catalog.journal (append-only
+// REGISTER records written under the same lock, a re-upload registers the file again). Startup = read snapshot +
+// replay journal, so it is proportional to the live catalog, not to the activity log history.
+// When the journal gets long it is folded into a new snapshot (written to a temp file, renamed).
+// A change returns once its journal record is on disk. The fsync is a group commit: one caller
+// forces the journal for every record written so far, the ones arriving meanwhile wait for the next.
+public class FileCatalog {
+    private static final int SNAPSHOT_MAGIC = 0x46434154; // "FCAT"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final byte REC_REGISTER = 1;
+    private static final int COMPACT_AFTER_RECORDS = 10_000;
+
+    private final Map<Long, FileMetadata> files = new ConcurrentHashMap<>();
+    private final Map<String, Set<Long>> byOwner = new ConcurrentHashMap<>();
+    private final Set<Long> publicFiles = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> byOwnerAndName = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final IdAllocator ids;
+
+    public FileCatalog(IdAllocator ids) {
+        this.ids = ids;
+    }
+
+    private static long idOf(String fileID) {
+        return IdAllocator.parse(IdAllocator.FILE_PREFIX, fileID);
+    }
+
+    private Path snapshotPath;
+    private Path journalPath;
+    private DataOutputStream journal; // null until open(), nothing is persisted before that
+    private FileOutputStream journalFile;
+    private int journalRecords;
+    private long journalWritten; // records written since open(), never reset
+    // group commit: records up to journalSynced are on disk, syncing = someone is forcing right now
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+    private long journalSynced;
+    private boolean syncing;
+
+    private static String nameKey(String owner, String fileName) {
+        return owner + '\u0000' + fileName; // \0 cannot appear in a username or file name
+    }
+
+    public FileMetadata get(String fileID) {
+        return files.get(idOf(fileID));
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    public List<FileMetadata> getAll() {
+        return new ArrayList<>(files.values());
+    }
+
+    //registers (or replaces) a file. an older entry for the same owner + name is dropped,
+    //both would point at the same path on disk
+    public void register(String fileID, FileMetadata metadata) {
+        long id = idOf(fileID);
+        if (id < 0) {
+            throw new IllegalArgumentException("Not a file ID: " + fileID);
+        }
+        long record = 0;
+        writeLock.lock();
+        try {
+            removeLocked(id);
+            String key = nameKey(metadata.getOwner(), metadata.getFileName());
+            Long previous = byOwnerAndName.get(key);
+            if (previous != null) {
+                removeLocked(previous);
+            }
+
+            addLocked(id, metadata);
+            if (journal != null) {
+                journal.writeByte(REC_REGISTER);
+                writeEntry(journal, id, metadata);
+                record = journaled();
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing catalog journal: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+        awaitSynced(record);
+    }
+
+    private void addLocked(long fileID, FileMetadata metadata) {
+        files.put(fileID, metadata);
+        byOwner.computeIfAbsent(metadata.getOwner(), k -> ConcurrentHashMap.newKeySet()).add(fileID);
+        byOwnerAndName.put(nameKey(metadata.getOwner(), metadata.getFileName()), fileID);
+        if (Protocol.PUBLIC.equals(metadata.getAccessType())) {
+            publicFiles.add(fileID);
+        }
+    }
+
+    private void removeLocked(long fileID) {
+        FileMetadata metadata = files.remove(fileID);
+        if (metadata == null) return;
+        // an owner with no files left drops out of the index (else every user who ever uploaded stays)
+        byOwner.computeIfPresent(metadata.getOwner(), (owner, owned) -> {
+            owned.remove(fileID);
+            return owned.isEmpty() ? null : owned;
+        });
+        byOwnerAndName.remove(nameKey(metadata.getOwner(), metadata.getFileName()), fileID);
+        publicFiles.remove(fileID);
+    }
+
+    public List<FileMetadata> getFilesOwnedBy(String owner) {
+        Set<Long> owned = byOwner.getOrDefault(owner, Collections.emptySet());
+        List<FileMetadata> result = new ArrayList<>(owned.size());
+        for (Long fileID : owned) {
+            FileMetadata metadata = files.get(fileID);
+            if (metadata != null) {
+                result.add(metadata);
+            }
+        }
+        return result;
+    }
+
+    public List<FileMetadata> getPublicFilesNotOwnedBy(String username) {
+        List<FileMetadata> result = new ArrayList<>();
+        for (Long fileID : publicFiles) {
+            FileMetadata metadata = files.get(fileID);
+            if (metadata != null && !metadata.getOwner().equals(username)) {
+                result.add(metadata);
+            }
+        }
+        return result;
+    }
+
+    public String find(String owner, String fileName) {
+        Long id = byOwnerAndName.get(nameKey(owner, fileName));
+        return id == null ? null : IdAllocator.format(IdAllocator.FILE_PREFIX, id);
+    }
+
+    // ---- persistence ----
+
+    //loads snapshot + journal from dir and starts journaling.
+    //returns false when there was no saved catalog yet (caller rebuilds it another way)
+    public boolean open(Path dir) throws IOException {
+        writeLock.lock();
+        try {
+            snapshotPath = dir.resolve("catalog.snapshot");
+            journalPath = dir.resolve("catalog.journal");
+            boolean existed = Files.exists(snapshotPath) || Files.exists(journalPath);
+
+            if (Files.exists(snapshotPath)) {
+                readSnapshot();
+            }
+            if (Files.exists(journalPath)) {
+                replayJournal();
+            }
+            journalFile = new FileOutputStream(journalPath.toFile(), true);
+            journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+            if (journalRecords > 0) {
+                compactLocked(); // start every run from a clean snapshot
+            }
+            return existed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //writes every live entry to a new snapshot and empties the journal
+    public void compact() {
+        writeLock.lock();
+        try {
+            compactLocked();
+        } catch (IOException e) {
+            System.err.println("Error compacting catalog: " + e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void compactLocked() throws IOException {
+        if (journal == null) return;
+        Path temp = snapshotPath.resolveSibling("catalog.snapshot.tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(files.size());
+            for (Map.Entry<Long, FileMetadata> entry : files.entrySet()) {
+                writeEntry(out, entry.getKey(), entry.getValue());
+            }
+            out.flush();
+            fos.getFD().sync(); // snapshot must be on disk before the journal is dropped
+        }
+        try {
+            Files.move(temp, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        journal.close();
+        journalFile = new FileOutputStream(journalPath.toFile(), false); // truncate
+        journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+        journalRecords = 0;
+        markSynced(journalWritten); // all in the synced snapshot now
+    }
+
+    //record just written: counts it, returns its number for awaitSynced
+    private long journaled() throws IOException {
+        journal.flush();
+        journalRecords++;
+        long record = ++journalWritten;
+        if (journalRecords >= COMPACT_AFTER_RECORDS) {
+            compactLocked();
+        }
+        return record;
+    }
+
+    //returns once journal record number record (0 = none) is on disk
+    private void awaitSynced(long record) {
+        if (record == 0) return;
+        syncLock.lock();
+        try {
+            while (journalSynced < record) {
+                if (syncing) {
+                    synced.awaitUninterruptibly(); // that force may not cover record, check again
+                    continue;
+                }
+                syncing = true;
+                syncLock.unlock();
+                long upTo = 0;
+                try {
+                    upTo = forceJournal();
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    journalSynced = Math.max(journalSynced, upTo);
+                    synced.signalAll();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    //forces the journal, returns the number of the last record it covers
+    private long forceJournal() {
+        FileChannel channel;
+        long upTo;
+        writeLock.lock();
+        try {
+            channel = journalFile.getChannel();
+            upTo = journalWritten;
+        } finally {
+            writeLock.unlock();
+        }
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // compacted meanwhile: the snapshot holds these records and was synced
+        } catch (IOException e) {
+            System.err.println("Error syncing catalog journal: " + e.getMessage()); // not retried, like the activity log
+        }
+        return upTo;
+    }
+
+    private void markSynced(long record) {
+        syncLock.lock();
+        try {
+            journalSynced = Math.max(journalSynced, record);
+            synced.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotPath.toFile())))) {
+            int version = in.readInt() == SNAPSHOT_MAGIC ? in.readInt() : -1;
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("Unknown catalog snapshot format: " + snapshotPath);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                FileMetadata metadata = readEntry(in);
+                addLocked(loadedID(metadata), metadata);
+            }
+        }
+    }
+
+    //applies journal records in order. a torn last record (crash mid-write) is cut off
+    private void replayJournal() throws IOException {
+        long goodLength = 0;
+        long fileLength = Files.size(journalPath);
+        CountingInputStream counted = new CountingInputStream(new BufferedInputStream(new FileInputStream(journalPath.toFile())));
+        try (DataInputStream in = new DataInputStream(counted)) {
+            while (true) {
+                int type = in.read();
+                if (type < 0) break;
+                if (type == REC_REGISTER) {
+                    FileMetadata metadata = readEntry(in);
+                    Long previous = byOwnerAndName.get(nameKey(metadata.getOwner(), metadata.getFileName()));
+                    if (previous != null) {
+                        removeLocked(previous);
+                    }
+                    long id = loadedID(metadata);
+                    removeLocked(id);
+                    addLocked(id, metadata);
+                } else {
+                    break; // garbage, treat like a torn tail
+                }
+                journalRecords++;
+                goodLength = counted.count; // end of the last whole record
+            }
+        } catch (EOFException e) {
+            // torn record at the end
+        }
+        if (goodLength < fileLength) {
+            try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+                channel.truncate(goodLength);
+            }
+        }
+    }
+
+    // bytes read through it so far (available() of the stream below says nothing about the file)
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    //ID of an entry read from disk, passed to the allocator (with the request ID) so neither is
+    //handed out again
+    private long loadedID(FileMetadata metadata) {
+        long id = idOf(metadata.getFileID());
+        ids.observe(id);
+        if (metadata.getRequestID() != 0) {
+            ids.observe(metadata.getRequestID()); // same allocator, a request ID must not come round again either
+        }
+        return id;
+    }
+
+    private static void writeEntry(DataOutputStream out, long id, FileMetadata metadata) throws IOException {
+        out.writeLong(id);
+        out.writeUTF(metadata.getFileName());
+        out.writeLong(metadata.getFileSize());
+        out.writeUTF(metadata.getOwner());
+        out.writeUTF(metadata.getAccessType());
+        out.writeLong(metadata.getRequestID()); // 0 = not for a request
+        out.writeLong(metadata.getUploadDate().getTime());
+    }
+
+    private static FileMetadata readEntry(DataInputStream in) throws IOException {
+        String fileID = IdAllocator.format(IdAllocator.FILE_PREFIX, in.readLong());
+        String fileName = in.readUTF();
+        long fileSize = in.readLong();
+        String owner = in.readUTF();
+        String accessType = in.readUTF();
+        long requestID = in.readLong();
+        long uploadDate = in.readLong();
+
+        FileMetadata metadata = new FileMetadata(fileName, fileSize, owner, accessType);
+        metadata.setFileID(fileID);
+        metadata.setRequestID(requestID);
+        metadata.setUploadDate(new Date(uploadDate));
+        return metadata;
+    }
+}
@@ -1,18 +1,21 @@
 package server;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.List;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import models.ChunkInfo;
 import models.FileMetadata;
 
 public class FileManager {
@@ -32,81 +35,285 @@ public class FileManager {
     }
 
      //Logs upload/download activity to user's log file
+     //only queues the entry, ActivityLogger writes it in the background
      
     public static void logActivity(String username, String fileName, String action, String status, String accessType) {
-    try {
-        String logPath = ServerConfig.SERVER_DATA_DIR + username + "/activity_log.txt";
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String timestamp = sdf.format(new Date());
-        
-        String logEntry = String.format("[%s] File: %s | Action: %s | Status: %s | Access: %s%n", timestamp, fileName, action, status, accessType);
-        
-        // Append to log file
-        try (FileWriter fw = new FileWriter(logPath, true);
-             BufferedWriter bw = new BufferedWriter(fw)) {
-            bw.write(logEntry);
+        ActivityLogger.log(username, fileName, action, status, accessType);
+    }
+
+    // Uploads are written chunk by chunk into a hidden temp file in the user's directory,
+    // then cut into blocks for the blob store once complete. Nothing is kept in heap.
+    private static final String STAGING_PREFIX = ".upload_";
+    private static final String STAGING_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".state"; // a parked upload's ChunkInfo, next to its staging file
+
+    public static Path stagingPath(String username, String fileID) {
+        return Paths.get(ServerConfig.SERVER_DATA_DIR, username, STAGING_PREFIX + fileID + STAGING_SUFFIX);
+    }
+
+    public static FileChannel openStagingFile(String username, String fileID) throws IOException {
+        return FileChannel.open(stagingPath(username, fileID),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // same staging file again after a reconnect, keeps the bytes already received
+    public static FileChannel reopenStagingFile(String username, String fileID) throws IOException {
+        return FileChannel.open(stagingPath(username, fileID), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // positional write, so chunks may arrive in any order
+    public static void writeChunk(FileChannel staging, long offset, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            offset += staging.write(buffer, offset);
         }
-    } catch (IOException e) {
-        System.err.println("Error writing to log file: " + e.getMessage());
     }
-}
 
-    // Saves uploaded file chunks to disk
-    public static boolean saveFile(String username, FileMetadata metadata, List<byte[]> chunks) {
+    // Stores a finished staging file in the blob store (only blocks it doesn't have yet are
+    // written) and points <user>/<fileName> at it
+    public static boolean commitStagedFile(String username, FileMetadata metadata) {
+        Path staged = stagingPath(username, metadata.getFileID());
+        Path target = filePath(username, metadata.getFileName());
+        BlobStore blobs = ServerConfig.getBlobStore();
+        BlobStore.Manifest manifest = null;
         try {
-            String filePath = ServerConfig.SERVER_DATA_DIR + username + "/" + metadata.getFileName();
-            
-            // Write all chunks to file
-            try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                for (byte[] chunk : chunks) {
-                    fos.write(chunk);
-                }
+            try (FileChannel source = FileChannel.open(staged, StandardOpenOption.READ)) {
+                manifest = blobs.store(source, metadata.getFileSize(), metadata.getSha256());
             }
-            
-            System.out.println("File saved successfully: " + filePath);
+            blobs.replace(target, manifest);
+            Files.deleteIfExists(staged);
+            System.out.println("File saved successfully: " + target);
             return true;
         } catch (IOException e) {
+            if (manifest != null) {
+                blobs.release(manifest);
+            }
             System.err.println("Error saving file: " + e.getMessage());
             return false;
         }
     }
 
+    public static void discardStagedFile(String username, String fileID) {
+        discardUploadState(username, fileID);
+        try {
+            Files.deleteIfExists(stagingPath(username, fileID));
+        } catch (IOException e) {
+            System.err.println("Error deleting staging file: " + e.getMessage());
+        }
+    }
+
+    // leftovers from uploads that were running when the server stopped. A parked upload (its
+    // state was saved) stays resumable until its TTL runs out, everything else is deleted
+    public static void cleanStagingFiles(String username) {
+        Path userDir = Paths.get(ServerConfig.SERVER_DATA_DIR, username);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(userDir, STAGING_PREFIX + "*" + STAGING_SUFFIX)) {
+            for (Path staged : stream) {
+                String name = staged.getFileName().toString();
+                String fileID = name.substring(STAGING_PREFIX.length(), name.length() - STAGING_SUFFIX.length());
+                ChunkInfo info = readUploadState(username, fileID);
+                if (info != null && ServerConfig.restoreParkedUpload(info)) {
+                    System.out.println("Upload " + fileID + " of " + username + " can still be resumed ("
+                        + info.getCommittedBytes() + "/" + info.getTotalSize() + " bytes)");
+                    continue;
+                }
+                Files.deleteIfExists(staged);
+                discardUploadState(username, fileID);
+            }
+        } catch (IOException e) {
+            System.err.println("Error cleaning staging files for " + username + ": " + e.getMessage());
+        }
+        // state without a staging file
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(userDir, STAGING_PREFIX + "*" + STATE_SUFFIX)) {
+            for (Path state : stream) {
+                String name = state.getFileName().toString();
+                if (!Files.exists(state.resolveSibling(name.substring(0, name.length() - STATE_SUFFIX.length()) + STAGING_SUFFIX))) {
+                    Files.deleteIfExists(state);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error cleaning staging files for " + username + ": " + e.getMessage());
+        }
+    }
+
+    private static Path uploadStatePath(String username, String fileID) {
+        return Paths.get(ServerConfig.SERVER_DATA_DIR, username, STAGING_PREFIX + fileID + STATE_SUFFIX);
+    }
+
+    //parked upload: what it has received, so it survives a server restart too
+    public static void saveUploadState(ChunkInfo info) {
+        Path state = uploadStatePath(info.getOwner(), info.getFileID());
+        Path temp = state.resolveSibling(state.getFileName() + ".tmp");
+        try {
+            try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(temp))) {
+                out.writeObject(info);
+            }
+            Files.move(temp, state, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Error saving upload state: " + e.getMessage());
+        }
+    }
+
+    public static void discardUploadState(String username, String fileID) {
+        try {
+            Files.deleteIfExists(uploadStatePath(username, fileID));
+        } catch (IOException e) {
+            System.err.println("Error deleting upload state: " + e.getMessage());
+        }
+    }
+
+    //null if missing, unreadable or not this user's upload
+    private static ChunkInfo readUploadState(String username, String fileID) {
+        Path state = uploadStatePath(username, fileID);
+        if (!Files.exists(state)) return null;
+        try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(state))) {
+            ChunkInfo info = (ChunkInfo) in.readObject();
+            return info.getOwner().equals(username) && info.getFileID().equals(fileID) && info.isParked() ? info : null;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            System.err.println("Unreadable upload state " + state + ": " + e.getMessage());
+            return null;
+        }
+    }
+
      
-    //Reads a file from disk for download
+    // the per-user view of a file: its manifest in the blob store
+    public static Path filePath(String username, String fileName) {
+        return Paths.get(ServerConfig.SERVER_DATA_DIR, username, fileName);
+    }
+
+    //size of a stored file, -1 if there is none
+    public static long fileSize(String username, String fileName) {
+        BlobStore.Manifest manifest = BlobStore.readManifest(filePath(username, fileName));
+        return manifest == null ? -1 : manifest.size;
+    }
+
+    //block hashes of every file username has stored
+    public static Set<String> ownBlocks(String username) {
+        return ServerConfig.getBlobStore().blocksOf(Paths.get(ServerConfig.SERVER_DATA_DIR, username));
+    }
+
+    //sha-256 of a stored file, null if there is none or it was stored before digests were kept
+    public static String fileDigest(String username, String fileName) {
+        BlobStore.Manifest manifest = BlobStore.readManifest(filePath(username, fileName));
+        return manifest == null ? null : manifest.digest;
+    }
+
+    //opens a stored file for reading: its blocks stay on disk until closeFile, even if the file
+    //is replaced meanwhile. null if there is no such file
+    public static BlobStore.Manifest openFile(String username, String fileName) {
+        return ServerConfig.getBlobStore().acquire(filePath(username, fileName));
+    }
+
+    public static void closeFile(BlobStore.Manifest file) {
+        ServerConfig.getBlobStore().release(file);
+    }
+
+    public interface BlockRegion {
+        void accept(Path block, long position, long length) throws IOException;
+    }
+
+    //splits [position, position + length) of a stored file into the block files that hold it
+    public static void forEachBlockRegion(BlobStore.Manifest file, long position, long length, BlockRegion region) throws IOException {
+        BlobStore blobs = ServerConfig.getBlobStore();
+        while (length > 0) {
+            int block = (int) (position / file.blockSize);
+            long inBlock = position - (long) block * file.blockSize;
+            long n = Math.min(length, file.blockLength(block) - inBlock);
+            region.accept(blobs.blockFile(file.hashes[block]), inBlock, n);
+            position += n;
+            length -= n;
+        }
+    }
+
+    //fills dst (up to its limit) with the stored file's bytes from position on
+    public static void readRange(BlobStore.Manifest file, long position, ByteBuffer dst) throws IOException {
+        forEachBlockRegion(file, position, dst.remaining(), (block, blockPosition, n) -> {
+            try (FileChannel channel = FileChannel.open(block, StandardOpenOption.READ)) {
+                int limit = dst.limit();
+                int regionStart = dst.position();
+                dst.limit((int) (regionStart + n));
+                while (dst.hasRemaining()) {
+                    if (channel.read(dst, blockPosition + dst.position() - regionStart) < 0) {
+                        throw new IOException("Block shorter than expected");
+                    }
+                }
+                dst.limit(limit);
+            }
+        });
+    }
+
+    // sendFileRegion for a stored file, block by block
+    public static void sendFileRegion(BlobStore.Manifest file, long position, long length, Socket socket) throws IOException {
+        forEachBlockRegion(file, position, length, (block, blockPosition, n) -> {
+            try (FileChannel channel = FileChannel.open(block, StandardOpenOption.READ)) {
+                sendFileRegion(channel, blockPosition, n, socket);
+            }
+        });
+    }
+
+    // Sends length bytes of a file starting at position straight to the socket.
+    // With a channel-backed socket this is transferTo (sendfile): page cache -> socket, no heap copy.
+    // Caller must flush anything it buffered on the socket's stream first.
+    public static void sendFileRegion(FileChannel file, long position, long length, Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            while (length > 0) {
+                long sent = file.transferTo(position, length, channel);
+                if (sent <= 0 && position >= file.size()) {
+                    throw new IOException("File shrank during transfer");
+                }
+                position += sent;
+                length -= sent;
+            }
+            return;
+        }
+        // plain socket, copy through a small buffer
+        OutputStream out = socket.getOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (length > 0) {
+            buffer.clear();
+            if (length < buffer.capacity()) {
+                buffer.limit((int) length);
+            }
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File shrank during transfer");
+            }
+            out.write(buffer.array(), 0, read);
+            position += read;
+            length -= read;
+        }
+        out.flush();
+    }
+
+    //Reads a file from disk for download (legacy protocol only, whole file in heap)
      
     public static byte[] readFile(String username, String fileName) {
+        BlobStore.Manifest file = openFile(username, fileName);
+        if (file == null) {
+            return null;
+        }
         try {
-            String filePath = ServerConfig.SERVER_DATA_DIR + username + "/" + fileName;
-            return Files.readAllBytes(Paths.get(filePath));
+            ByteBuffer data = ByteBuffer.allocate((int) file.size);
+            readRange(file, 0, data);
+            return data.array();
         } catch (IOException e) {
             System.err.println("Error reading file: " + e.getMessage());
             return null;
+        } finally {
+            closeFile(file);
         }
     }
 
     
-     //Reads the activity log for a user
+     //Reads one page of a user's activity log, newest first (cursor -1 = latest entries)
      
-    public static String readActivityLog(String username) {
+    public static ActivityHistory.Page readActivityLog(String username, int limit, long cursor, String action, String status) {
         try {
-            String logPath = ServerConfig.SERVER_DATA_DIR + username + "/activity_log.txt";
-            File logFile = new File(logPath);
-            
-            if (!logFile.exists()) {
-                return "No activity log found.";
-            }
-            
-            StringBuilder content = new StringBuilder();
-            try (BufferedReader br = new BufferedReader(new FileReader(logFile))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    content.append(line).append("\n");
-                }
-            }
-            
-            return content.toString();
+            ActivityLogger.sync(username); // queued entries on disk + index up to date
+            return ActivityHistory.readPage(username, limit, cursor, action, status);
         } catch (IOException e) {
-            return "Error reading log file: " + e.getMessage();
+            return new ActivityHistory.Page("Error reading log file: " + e.getMessage(), -1);
         }
     }
 }
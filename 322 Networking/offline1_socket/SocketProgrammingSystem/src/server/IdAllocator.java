@@ -0,0 +1,87 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// IDs for files, requests and messages (they used to be millis + "_" + an unsynchronized
+// counter, two handlers could get the same one and overwrite each other's entry).
+// 64 bits: milliseconds since EPOCH (41, lasts until 2093) | node (10) | sequence (12).
+// One compare-and-set per ID, no lock. IDs only go up: when a millisecond's 4096 sequence
+// numbers are used up, or the clock steps back, the next one borrows the following millisecond
+// instead of waiting. Across restarts the clock has moved on; IDs loaded from disk are passed
+// to observe() as well, so a clock set back since the last run can't hand one out again.
+// node= lets several servers share a data directory without colliding (0 by default).
+// On the wire and on disk an ID is the prefix + its decimal value, e.g. FILE_7263849384751104.
+public class IdAllocator {
+    public static final String FILE_PREFIX = "FILE_";
+    public static final String REQUEST_PREFIX = "REQ_";
+    public static final String MESSAGE_PREFIX = "MSG_";
+
+    public static final long EPOCH = 1704067200000L; // 2024-01-01 UTC
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int TIME_SHIFT = NODE_BITS + SEQUENCE_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+
+    private final AtomicLong last = new AtomicLong(); // last ID handed out (or observed)
+    private volatile long node;
+
+    public void setNode(int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node must be 0.." + MAX_NODE + ": " + node);
+        }
+        this.node = node;
+    }
+
+    public long next() {
+        while (true) {
+            long previous = last.get();
+            long previousTime = previous >>> TIME_SHIFT;
+            long now = System.currentTimeMillis() - EPOCH;
+            long time;
+            long sequence;
+            if (now > previousTime) {
+                time = now;
+                sequence = 0;
+            } else {
+                sequence = (previous & SEQUENCE_MASK) + 1;
+                time = previousTime;
+                if (sequence > SEQUENCE_MASK) {
+                    time++;
+                    sequence = 0;
+                }
+            }
+            long id = (time << TIME_SHIFT) | (node << SEQUENCE_BITS) | sequence;
+            if (last.compareAndSet(previous, id)) {
+                return id;
+            }
+        }
+    }
+
+    //an ID that already exists (loaded from disk): everything handed out from now on is bigger
+    public void observe(long id) {
+        last.accumulateAndGet(id, Math::max);
+    }
+
+    public String next(String prefix) {
+        return format(prefix, next());
+    }
+
+    public static String format(String prefix, long id) {
+        return prefix + id;
+    }
+
+    //the number in prefix + digits, -1 for anything else (IDs from before this format, typos)
+    public static long parse(String prefix, String text) {
+        if (text == null || !text.startsWith(prefix) || text.length() == prefix.length()
+                || !Character.isDigit(text.charAt(prefix.length()))) {
+            return -1;
+        }
+        try {
+            long id = Long.parseLong(text, prefix.length(), text.length(), 10);
+            return id >= 0 ? id : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,827 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import models.Message;
+
+// Message storage, replaces the one line per message message_history.txt.
+//
+//   .messages/segment-000001.log ...  append-only records, a new segment every SEGMENT_BYTES
+//   .messages/<user>.idx              8 byte address (segment << 40 | offset) of each of the user's records
+//   .messages/.broadcast.idx          same, for the broadcast channel
+//
+// Record: length(4) | crc32(4) | type(1) | body
+//   MESSAGE         recipient, position, messageID (long), timestamp, content
+//   READ            recipient, watermark (the first `watermark` messages of the mailbox are read)
+//   BROADCAST       sender, position, messageID (long), timestamp, content - stored once for every user
+//   BROADCAST_READ  recipient, watermark (the first `watermark` broadcasts are read)
+// A user's view is their own messages merged (by time) with the broadcasts of everybody else,
+// so a broadcast costs one record no matter how many users there are.
+// A mailbox is only read (through its index) the first time it is used, not at startup.
+// Every message ID on disk is passed to the IdAllocator when the store opens (one pass over the
+// segments), so a clock set back since the last run can't hand one out again.
+//
+// Concurrency: many handlers deliver into a mailbox, one user reads it, nobody takes a store
+// wide lock for it. In memory a mailbox is an append log: a delivery reserves its position with
+// a compare-and-set, fills it, and the volatile `published` watermark moves over it once every
+// position before it is filled too, so getAll never locks and sees a gap-free prefix. The
+// position goes into the record, a mailbox loaded after a restart puts every message back where
+// it was (the read watermarks count positions). Disk writes are group committed: a delivery
+// queues its records and whoever holds the log lock writes everything queued in one segment
+// write; a delivery never waits for the lock, only for its own records to be written.
+// Stored Message objects are never changed; getAll hands out copies with the read flag set.
+public class MessageStore {
+    private static final byte REC_MESSAGE = 1;
+    private static final byte REC_READ = 2;
+    private static final byte REC_BROADCAST = 3;
+    private static final byte REC_BROADCAST_READ = 4;
+    private static final String BROADCAST_KEY = ".broadcast"; // index name, can't clash with a user
+    private static final long SEGMENT_BYTES = 8L * 1024 * 1024;
+    private static final int OFFSET_BITS = 40;
+    private static final int MAX_OPEN_INDEXES = 256;
+    private static final int MAX_OPEN_SEGMENTS = 8; // read only ones, besides the active segment
+
+    // append-only list, any number of writers, readers never lock. A writer reserves a position
+    // with a compare-and-set, fills it and moves `published` over every filled position in a row
+    // (its own and any later ones filled before it); readers see the prefix below `published`.
+    // Positions live in chunks of CHUNK slots, linked as they are needed
+    static class AppendLog<T> {
+        private static final int CHUNK = 256;
+
+        private static class Chunk<T> {
+            final AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(CHUNK);
+            final AtomicReference<Chunk<T>> next = new AtomicReference<>();
+        }
+
+        private final Chunk<T> head = new Chunk<>();
+        private final AtomicInteger reserved = new AtomicInteger();
+        private final AtomicInteger published = new AtomicInteger();
+
+        //the position of the next value, set() must follow (the log stalls at an unfilled one)
+        int reserve() {
+            return reserved.getAndIncrement();
+        }
+
+        void set(int position, T value) {
+            chunk(position).slots.set(position % CHUNK, value);
+            while (true) {
+                int last = published.get();
+                if (last >= reserved.get() || chunk(last).slots.get(last % CHUNK) == null) {
+                    return; // a writer still filling `last` publishes from there when it is done
+                }
+                published.compareAndSet(last, last + 1);
+            }
+        }
+
+        int add(T value) {
+            int position = reserve();
+            set(position, value);
+            return position;
+        }
+
+        int size() {
+            return published.get();
+        }
+
+        List<T> snapshot() {
+            int size = published.get();
+            List<T> values = new ArrayList<>(size);
+            Chunk<T> chunk = head;
+            for (int i = 0; i < size; i++) {
+                if (i > 0 && i % CHUNK == 0) {
+                    chunk = chunk.next.get();
+                }
+                values.add(chunk.slots.get(i % CHUNK));
+            }
+            return values;
+        }
+
+        private Chunk<T> chunk(int position) {
+            Chunk<T> chunk = head;
+            for (int i = position / CHUNK; i > 0; i--) {
+                Chunk<T> next = chunk.next.get();
+                if (next == null) {
+                    chunk.next.compareAndSet(null, new Chunk<>());
+                    next = chunk.next.get();
+                }
+                chunk = next;
+            }
+            return chunk;
+        }
+    }
+
+    // one user's messages, in position order, + how many of them are read
+    private static class Mailbox {
+        final AppendLog<Message> messages = new AppendLog<>();
+        volatile int readWatermark;      // only raised, by markRead (synchronized on the mailbox)
+        volatile int broadcastWatermark;
+        volatile boolean loaded;         // read from disk, set once under the mailbox's monitor
+    }
+
+    // a broadcast and who sent it (the sender doesn't see it in their own view)
+    private static class Broadcast {
+        final String sender;
+        final Message message;
+
+        Broadcast(String sender, Message message) {
+            this.sender = sender;
+            this.message = message;
+        }
+    }
+
+    // every broadcast in order, loaded on first use
+    private static class BroadcastChannel {
+        final AppendLog<Broadcast> broadcasts = new AppendLog<>();
+        final Map<Long, Integer> positions = new ConcurrentHashMap<>(); // messageID -> position
+    }
+
+    // records of one delivery (or markRead), waiting for the log writer
+    private static class PendingWrite {
+        final List<byte[]> records;
+        final List<String> indexes; // the index each record goes into
+        final CountDownLatch written = new CountDownLatch(1);
+        IOException error;
+
+        PendingWrite(List<byte[]> records, List<String> indexes) {
+            this.records = records;
+            this.indexes = indexes;
+        }
+    }
+
+    private final IdAllocator ids;
+    private final ReentrantLock lock = new ReentrantLock(); // log writer: segment + index writes, open
+    private final ConcurrentLinkedQueue<PendingWrite> pending = new ConcurrentLinkedQueue<>();
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>(); // loaded ones only
+    private final BroadcastChannel broadcasts = new BroadcastChannel(); // loaded on first use
+    private volatile boolean broadcastsLoaded;
+
+    private Path dir;
+    private volatile int activeSegment;
+    private volatile FileChannel active;
+    private long activeSize;
+    // older segments are only read when a mailbox is loaded, the least recently used get closed.
+    // readRecord holds this map's monitor while it reads (loads run in parallel with the writer)
+    private final Map<Integer, FileChannel> readers = new LinkedHashMap<Integer, FileChannel>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, FileChannel> eldest) {
+            if (size() > MAX_OPEN_SEGMENTS) {
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+    private final Map<String, FileChannel> indexes = new LinkedHashMap<String, FileChannel>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileChannel> eldest) {
+            if (size() > MAX_OPEN_INDEXES) {
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    public MessageStore(IdAllocator ids) {
+        this.ids = ids;
+    }
+
+    // ---- mailbox operations ----
+
+    public void add(Message message) {
+        List<Message> batch = new ArrayList<>(1);
+        batch.add(message);
+        addAll(batch);
+    }
+
+    //all messages in one batch (one segment write, broadcast to many users). each one takes
+    //its position in its mailbox first, the mailbox shows it once it is written
+    public void addAll(List<Message> messages) {
+        List<byte[]> records = new ArrayList<>(messages.size());
+        List<String> names = new ArrayList<>(messages.size());
+        Mailbox[] targets = new Mailbox[messages.size()];
+        int[] positions = new int[messages.size()];
+        for (Message message : messages) {
+            checkMailboxName(message.getRecipient()); // before any position is taken
+        }
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                Message message = messages.get(i);
+                targets[i] = load(message.getRecipient());
+                positions[i] = targets[i].messages.reserve();
+                records.add(encodeMessage(message, positions[i]));
+                names.add(message.getRecipient());
+            }
+            write(records, names);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error storing message: " + e.getMessage());
+        } finally {
+            // reserved positions are always filled, a failed write can't stall the mailbox (the
+            // message then only lasts until a restart)
+            for (int i = 0; i < messages.size() && targets[i] != null; i++) {
+                targets[i].messages.set(positions[i], messages.get(i));
+            }
+        }
+    }
+
+    //one record for all users (recipient of the message is ignored)
+    public void addBroadcast(String sender, Message message) {
+        BroadcastChannel channel = loadBroadcasts();
+        int position = channel.broadcasts.reserve();
+        try {
+            List<byte[]> records = new ArrayList<>(1);
+            records.add(encodeBroadcast(sender, message, position));
+            List<String> names = new ArrayList<>(1);
+            names.add(BROADCAST_KEY);
+            write(records, names);
+        } catch (IOException e) {
+            System.err.println("Error storing broadcast: " + e.getMessage());
+        } finally {
+            channel.positions.put(message.getMessageID(), position);
+            channel.broadcasts.set(position, new Broadcast(sender, message));
+        }
+    }
+
+    //the user's messages merged with other users' broadcasts, oldest first, read flags set
+    //from the watermarks. Broadcast entries have recipient "ALL". No lock once loaded
+    public List<Message> getAll(String username) {
+        Mailbox mailbox = load(username);
+        BroadcastChannel channel = loadBroadcasts();
+        int readWatermark = mailbox.readWatermark;
+        int broadcastWatermark = mailbox.broadcastWatermark;
+        List<Message> own = mailbox.messages.snapshot();
+        List<Broadcast> shared = channel.broadcasts.snapshot();
+
+        List<Message> view = new ArrayList<>(own.size() + shared.size());
+        int p = 0;
+        int b = 0;
+        while (p < own.size() || b < shared.size()) {
+            if (b < shared.size() && shared.get(b).sender.equals(username)) {
+                b++; // own broadcast
+                continue;
+            }
+            boolean takeOwn = b >= shared.size() || (p < own.size()
+                && !own.get(p).getTimestamp().after(shared.get(b).message.getTimestamp()));
+            if (takeOwn) {
+                view.add(copy(own.get(p), p < readWatermark));
+                p++;
+            } else {
+                view.add(copy(shared.get(b).message, b < broadcastWatermark));
+                b++;
+            }
+        }
+        return view;
+    }
+
+    //the stored message is shared (with other readers, with broadcasts' other recipients), the
+    //read flag only goes on the copy
+    private static Message copy(Message stored, boolean read) {
+        Message message = new Message(stored.getMessageID(), stored.getRecipient(), stored.getContent());
+        message.setTimestamp(stored.getTimestamp());
+        message.setRead(read);
+        return message;
+    }
+
+    //marks what getAll returned (and the user was just shown) as read, one record per watermark moved
+    public void markRead(String username, List<Message> shown) {
+        Mailbox mailbox = load(username);
+        BroadcastChannel channel = loadBroadcasts();
+        int own = 0;
+        int broadcastWatermark = 0;
+        for (Message message : shown) {
+            Integer position = channel.positions.get(message.getMessageID());
+            if (position != null && !username.equals(message.getRecipient())) {
+                broadcastWatermark = Math.max(broadcastWatermark, position + 1);
+            } else {
+                own++;
+            }
+        }
+        try {
+            markRead(username, mailbox, own, broadcastWatermark);
+        } catch (IOException e) {
+            System.err.println("Error storing read state: " + e.getMessage());
+        }
+    }
+
+    //raises the watermarks (never lowers them) and stores the ones that moved
+    private void markRead(String username, Mailbox mailbox, int own, int broadcastWatermark) throws IOException {
+        List<byte[]> records = new ArrayList<>(2);
+        List<String> names = new ArrayList<>(2);
+        synchronized (mailbox) { // the user's own sessions, nobody else marks this mailbox
+            own = Math.min(own, mailbox.messages.size());
+            if (own > mailbox.readWatermark) {
+                mailbox.readWatermark = own;
+                records.add(encodeRead(REC_READ, username, own));
+                names.add(username);
+            }
+            if (broadcastWatermark > mailbox.broadcastWatermark) {
+                mailbox.broadcastWatermark = broadcastWatermark;
+                records.add(encodeRead(REC_BROADCAST_READ, username, broadcastWatermark));
+                names.add(username);
+            }
+        }
+        if (!records.isEmpty()) {
+            write(records, names);
+        }
+    }
+
+    //the user's mailbox, read through its index the first time it is needed (a delivery needs it
+    //too, for the next position). only that mailbox's monitor is held while it loads
+    private Mailbox load(String username) {
+        Mailbox mailbox = mailboxes.computeIfAbsent(username, name -> new Mailbox());
+        if (mailbox.loaded) return mailbox;
+        synchronized (mailbox) {
+            if (!mailbox.loaded) {
+                loadMailbox(username, mailbox);
+                mailbox.loaded = true;
+            }
+        }
+        return mailbox;
+    }
+
+    //messages go back in by their position; a position lost in a crash (reserved, never written)
+    //closes up
+    private void loadMailbox(String username, Mailbox mailbox) {
+        Path indexPath = indexPath(username);
+        if (!Files.exists(indexPath)) return;
+        TreeMap<Integer, Message> numbered = new TreeMap<>();
+        try {
+            byte[] index = Files.readAllBytes(indexPath);
+            ByteBuffer addresses = ByteBuffer.wrap(index, 0, index.length - index.length % 8);
+            while (addresses.hasRemaining()) {
+                DataInputStream in = readRecord(addresses.getLong());
+                if (in == null) continue;
+                byte type = in.readByte();
+                if (type == REC_MESSAGE) {
+                    String recipient = in.readUTF();
+                    int position = in.readInt();
+                    numbered.put(position, decodeMessage(recipient, in));
+                } else if (type == REC_READ) {
+                    in.readUTF();
+                    mailbox.readWatermark = Math.max(mailbox.readWatermark, in.readInt());
+                } else if (type == REC_BROADCAST_READ) {
+                    in.readUTF();
+                    mailbox.broadcastWatermark = Math.max(mailbox.broadcastWatermark, in.readInt());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error loading messages of " + username + ": " + e.getMessage());
+        }
+        for (Message message : numbered.values()) {
+            mailbox.messages.add(message);
+        }
+    }
+
+    //the broadcast channel, read through its index the first time it is needed (same as load)
+    private BroadcastChannel loadBroadcasts() {
+        BroadcastChannel channel = broadcasts;
+        if (broadcastsLoaded) return channel;
+        synchronized (channel) {
+            if (broadcastsLoaded) return channel;
+            Path indexPath = indexPath(BROADCAST_KEY);
+            TreeMap<Integer, Broadcast> numbered = new TreeMap<>();
+            if (Files.exists(indexPath)) {
+                try {
+                    byte[] index = Files.readAllBytes(indexPath);
+                    ByteBuffer addresses = ByteBuffer.wrap(index, 0, index.length - index.length % 8);
+                    while (addresses.hasRemaining()) {
+                        DataInputStream in = readRecord(addresses.getLong());
+                        if (in == null) continue;
+                        byte type = in.readByte();
+                        if (type == REC_BROADCAST) {
+                            String sender = in.readUTF();
+                            int position = in.readInt();
+                            numbered.put(position, new Broadcast(sender, decodeMessage("ALL", in)));
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error loading broadcasts: " + e.getMessage());
+                }
+            }
+            for (Broadcast broadcast : numbered.values()) {
+                channel.positions.put(broadcast.message.getMessageID(), channel.broadcasts.add(broadcast));
+            }
+            broadcastsLoaded = true;
+        }
+        return channel;
+    }
+
+    // ---- log writer ----
+
+    //queues records (record i into index names[i]) and returns once they are written. whoever
+    //gets the log lock writes everything queued so far in one go; a delivery that finds it taken
+    //just waits for its own records, the holder checks the queue again after unlocking
+    private void write(List<byte[]> records, List<String> names) throws IOException {
+        PendingWrite batch = new PendingWrite(records, names);
+        pending.add(batch);
+        do {
+            if (!lock.tryLock()) break;
+            try {
+                writePending();
+            } finally {
+                lock.unlock();
+            }
+        } while (!pending.isEmpty());
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                batch.written.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (batch.error != null) {
+            throw batch.error;
+        }
+    }
+
+    //lock held: every queued batch in one segment write, then their index entries in the same order
+    private void writePending() {
+        List<PendingWrite> batches = new ArrayList<>();
+        List<byte[]> records = new ArrayList<>();
+        PendingWrite batch;
+        while ((batch = pending.poll()) != null) {
+            batches.add(batch);
+            records.addAll(batch.records);
+        }
+        if (batches.isEmpty()) return;
+        try {
+            long[] addresses = append(records);
+            int i = 0;
+            for (PendingWrite written : batches) {
+                for (String name : written.indexes) {
+                    appendIndex(name, addresses[i++]);
+                }
+            }
+        } catch (IOException e) {
+            for (PendingWrite failed : batches) {
+                failed.error = e;
+            }
+        } finally {
+            for (PendingWrite done : batches) {
+                done.written.countDown();
+            }
+        }
+    }
+
+    // ---- segments ----
+
+    //opens the store in dir. The active segment's torn tail (crash mid-write) is cut off and
+    //its records are checked against the user indexes, so a crash between the segment write
+    //and the index write loses nothing. Returns false when the store did not exist yet.
+    public boolean open(Path dir) throws IOException {
+        lock.lock();
+        try {
+            this.dir = dir;
+            boolean existed = Files.isDirectory(dir);
+            Files.createDirectories(dir);
+
+            activeSegment = 1;
+            try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, "segment-*.log")) {
+                for (Path segment : segments) {
+                    activeSegment = Math.max(activeSegment, segmentNumber(segment));
+                }
+            }
+            openActive();
+            recoverActive();
+            observeIDs();
+            return existed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //imports the old message_history.txt (username|||messageID|||content|||read), in one batch
+    public int importLegacy(Path historyFile) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        Map<String, Integer> readPrefix = new LinkedHashMap<>();
+        Map<String, Boolean> unreadSeen = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(historyFile.toFile()))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split("\\|\\|\\|");
+                if (parts.length != 4) continue;
+                String username = parts[0];
+                long id = IdAllocator.parse(IdAllocator.MESSAGE_PREFIX, parts[1]);
+                Message message = new Message(id >= 0 ? id : ids.next(), username, parts[2].replace("<NEWLINE>", "\n"));
+                messages.add(message);
+                // the new format only has a read watermark, keep the leading read messages read
+                boolean read = Boolean.parseBoolean(parts[3]);
+                if (read && !unreadSeen.getOrDefault(username, false)) {
+                    readPrefix.merge(username, 1, Integer::sum);
+                } else {
+                    unreadSeen.put(username, true);
+                }
+            }
+        }
+        addAll(messages);
+        for (Map.Entry<String, Integer> user : readPrefix.entrySet()) {
+            markRead(user.getKey(), load(user.getKey()), user.getValue(), 0);
+        }
+        mailboxes.clear(); // loaded lazily like everything else
+        return messages.size();
+    }
+
+    //writes the records back to back with one write, returns their addresses (lock held)
+    private long[] append(List<byte[]> records) throws IOException {
+        int total = 0;
+        for (byte[] record : records) {
+            total += record.length;
+        }
+        if (activeSize > 0 && activeSize + total > SEGMENT_BYTES) {
+            rollSegment();
+        }
+
+        long[] addresses = new long[records.size()];
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        for (int i = 0; i < records.size(); i++) {
+            addresses[i] = ((long) activeSegment << OFFSET_BITS) | (activeSize + buffer.position());
+            buffer.put(records.get(i));
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            active.write(buffer, activeSize + buffer.position());
+        }
+        activeSize += total;
+        return addresses;
+    }
+
+    private void appendIndex(String username, long address) throws IOException {
+        FileChannel index = indexes.get(username);
+        if (index == null) {
+            index = FileChannel.open(indexPath(username),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            indexes.put(username, index);
+        }
+        ByteBuffer entry = ByteBuffer.allocate(8).putLong(0, address);
+        while (entry.hasRemaining()) {
+            index.write(entry);
+        }
+    }
+
+    //the old active segment stays open, as a reader (loads may be reading it right now)
+    private void rollSegment() throws IOException {
+        FileChannel next = FileChannel.open(segmentPath(activeSegment + 1),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        synchronized (readers) {
+            readers.put(activeSegment, active);
+            activeSegment++;
+            active = next;
+        }
+        activeSize = next.size();
+    }
+
+    private void openActive() throws IOException {
+        active = FileChannel.open(segmentPath(activeSegment),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        activeSize = active.size();
+    }
+
+    //validates the active segment and re-indexes records whose index entry is missing
+    private void recoverActive() throws IOException {
+        long position = 0;
+        Map<String, Long> lastIndexed = new HashMap<>();
+        while (position < activeSize) {
+            long address = ((long) activeSegment << OFFSET_BITS) | position;
+            DataInputStream in = readRecord(address);
+            if (in == null) break; // torn or corrupt tail
+            byte type = in.readByte();
+            String username = in.readUTF();
+            if (type == REC_BROADCAST) {
+                username = BROADCAST_KEY; // first field is the sender
+            }
+
+            Long last = lastIndexed.get(username);
+            if (last == null) {
+                last = lastIndexEntry(username);
+            }
+            if (last < address) {
+                appendIndex(username, address);
+                last = address;
+            }
+            lastIndexed.put(username, last);
+            position += recordLength(position);
+        }
+        if (position < activeSize) {
+            System.out.println("Message store: dropping " + (activeSize - position) + " torn byte(s) at the end of " + segmentPath(activeSegment));
+            active.truncate(position);
+            activeSize = position;
+        }
+    }
+
+    //feeds the ID of every message and broadcast record to the allocator, segment by segment
+    //(sequential reads, nothing is kept; the active segment's torn tail is already cut off)
+    private void observeIDs() throws IOException {
+        int records = 0;
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, "segment-*.log")) {
+            for (Path segment : segments) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment), 64 * 1024))) {
+                    while (true) {
+                        int length;
+                        try {
+                            length = in.readInt();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        if (length <= 0 || length > SEGMENT_BYTES) break;
+                        in.readInt(); // crc, the records are checked when a mailbox is loaded
+                        byte[] body = new byte[length];
+                        in.readFully(body);
+                        DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                        byte type = record.readByte();
+                        if (type == REC_MESSAGE || type == REC_BROADCAST) {
+                            record.readUTF(); // recipient / sender
+                            record.readInt(); // position
+                            ids.observe(record.readLong());
+                            records++;
+                        }
+                    }
+                } catch (EOFException e) {
+                    // torn record at the end of an old segment, nothing after it
+                }
+            }
+        }
+        System.out.println("Message store: " + records + " message ID(s) on disk");
+    }
+
+    private long lastIndexEntry(String username) throws IOException {
+        Path indexPath = indexPath(username);
+        if (!Files.exists(indexPath)) return -1;
+        try (FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long entries = index.size() / 8;
+            index.truncate(entries * 8); // torn entry
+            if (entries == 0) return -1;
+            ByteBuffer entry = ByteBuffer.allocate(8);
+            index.read(entry, (entries - 1) * 8);
+            return entry.getLong(0);
+        }
+    }
+
+    private long recordLength(long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        active.read(header, position);
+        return 8 + header.getInt(0);
+    }
+
+    //the record's type + body, or null if it is incomplete / fails its checksum. Mailboxes load
+    //in parallel, the readers map (and which segment is active) is only touched under its monitor
+    private DataInputStream readRecord(long address) throws IOException {
+        synchronized (readers) {
+            return readRecord((int) (address >>> OFFSET_BITS), address & ((1L << OFFSET_BITS) - 1));
+        }
+    }
+
+    private DataInputStream readRecord(int segment, long offset) throws IOException {
+        FileChannel channel = segment == activeSegment ? active : readers.get(segment);
+        if (channel == null) {
+            Path path = segmentPath(segment);
+            if (!Files.exists(path)) return null;
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            readers.put(segment, channel);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        if (readFully(channel, header, offset) < 8) return null;
+        int length = header.getInt(0);
+        if (length <= 0 || length > SEGMENT_BYTES) return null;
+        ByteBuffer body = ByteBuffer.allocate(length);
+        if (readFully(channel, body, offset + 8) < length) return null;
+
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, length);
+        if ((int) crc.getValue() != header.getInt(4)) return null;
+        return new DataInputStream(new ByteArrayInputStream(body.array()));
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) break;
+        }
+        return buffer.position();
+    }
+
+    // ---- record encoding ----
+
+    private static byte[] encodeMessage(Message message, int position) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REC_MESSAGE);
+        out.writeUTF(message.getRecipient());
+        out.writeInt(position);
+        out.writeLong(message.getMessageID());
+        out.writeLong(message.getTimestamp().getTime());
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(content.length);
+        out.write(content);
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] encodeBroadcast(String sender, Message message, int position) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REC_BROADCAST);
+        out.writeUTF(sender);
+        out.writeInt(position);
+        out.writeLong(message.getMessageID());
+        out.writeLong(message.getTimestamp().getTime());
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(content.length);
+        out.write(content);
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] encodeRead(byte type, String username, int watermark) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeUTF(username);
+        out.writeInt(watermark);
+        return frame(bytes.toByteArray());
+    }
+
+    //messageID, timestamp, content (the recipient / sender field and the position are already read)
+    private static Message decodeMessage(String recipient, DataInputStream in) throws IOException {
+        long messageID = in.readLong();
+        long timestamp = in.readLong();
+        byte[] content = new byte[in.readInt()];
+        in.readFully(content);
+        Message message = new Message(messageID, recipient, new String(content, StandardCharsets.UTF_8));
+        message.setTimestamp(new Date(timestamp));
+        return message;
+    }
+
+    private static byte[] frame(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return ByteBuffer.allocate(8 + body.length)
+            .putInt(body.length).putInt((int) crc.getValue()).put(body).array();
+    }
+
+    //name is BROADCAST_KEY or a username; anything else (a recipient straight from a command)
+    //could resolve outside dir or onto the broadcast index
+    private static void checkMailboxName(String name) {
+        if (!name.equals(BROADCAST_KEY) && !ServerConfig.isValidUsername(name)) {
+            throw new IllegalArgumentException("Not a mailbox: " + name);
+        }
+    }
+
+    private Path indexPath(String name) {
+        checkMailboxName(name);
+        return dir.resolve(name + ".idx");
+    }
+
+    private Path segmentPath(int segment) {
+        return dir.resolve(String.format("segment-%06d.log", segment));
+    }
+
+    private static int segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import utils.Frame;
+import utils.Protocol;
+
+// One client connection of the NIO server. The socket belongs to a single selector thread, which
+// only reads, decodes frames and writes. The login and the commands (most of them touch the disk)
+// run on the server's command threads, one at a time per connection and in the order they came in;
+// their output is queued and written by the selector thread.
+//
+// State machine:
+//   HANDSHAKE - the client's ObjectOutputStream header + serialized login String are decoded by hand
+//               (the client code is unchanged), and the prompt/reply are sent the same way
+//   LOGIN     - login line decoded, waiting for the command thread's reply. Nothing more is decoded
+//   COMMANDS  - binary frames: text commands, upload DATA frames. Downloads are queued as file
+//               regions and streamed with transferTo while the socket is writable
+//   CLOSING   - after LOGOUT or a denied login: nothing more is read, queued output is flushed
+//   CLOSED
+// Only binary protocol clients are accepted here, legacy clients get DENIED at login.
+// A client that sends faster than its commands run is not read from while MAX_QUEUED_TASKS are waiting.
+public class NioConnection {
+    private enum State { HANDSHAKE, LOGIN, COMMANDS, CLOSING, CLOSED }
+
+    // java serialization: stream magic + version, and the TC_STRING tag
+    private static final byte[] STREAM_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+    private static final byte TC_STRING = 0x74;
+
+    private static final int INITIAL_READ_BUFFER = 64 * 1024;
+    private static final int MAX_READ_BUFFER = Frame.MAX_PAYLOAD + 64 * 1024;
+    private static final int MAX_QUEUED_TASKS = 32;
+
+    private final SocketChannel channel;
+    private final ClientHandler handler;
+    private SelectionKey key;
+    private volatile State state = State.HANDSHAKE; // changed by the command threads too
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private volatile boolean readPaused; // too many tasks waiting, OP_READ is off
+
+    // outbound queue: ByteBuffers, FileRegions and Runnables, written in order by the selector thread
+    private final Queue<Object> outbound = new ConcurrentLinkedQueue<>();
+    // NOTIFY frames from other threads, moved to outbound between two commands
+    private final Queue<ByteBuffer> pushes = new ConcurrentLinkedQueue<>();
+    // login / decoded frames waiting for a command thread, and whether one is on them right now
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean cleanedUp = new AtomicBoolean();
+    private final NioServer.IoWorker worker;
+    private volatile boolean closeWhenFlushed;
+    private final long acceptedAt = System.currentTimeMillis();
+
+    // part of a file still to be sent with transferTo. opened when it reaches the head of the
+    // queue, so a download of many blocks holds one file handle at a time
+    private static class FileRegion {
+        final Path path;
+        FileChannel file;
+        long position;
+        long remaining;
+
+        FileRegion(Path path, long position, long remaining) {
+            this.path = path;
+            this.position = position;
+            this.remaining = remaining;
+        }
+    }
+
+    public NioConnection(SocketChannel channel, NioServer.IoWorker worker, Admission.Ticket ticket) {
+        this.channel = channel;
+        this.worker = worker;
+        this.handler = new ClientHandler(this, ticket);
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    void register(SelectionKey key) {
+        this.key = key;
+        // prompt exactly like ObjectOutputStream would: stream header, then the String
+        ByteArrayOutputStream prompt = new ByteArrayOutputStream();
+        prompt.write(STREAM_HEADER, 0, STREAM_HEADER.length);
+        writeSerializedString(prompt, "Enter username: ");
+        send(ByteBuffer.wrap(prompt.toByteArray()));
+    }
+
+    public String getRemoteAddress() {
+        return channel.socket().getInetAddress().getHostAddress();
+    }
+
+    // ---- outbound (any thread queues, the selector thread writes) ----
+
+    public void send(ByteBuffer buffer) {
+        outbound.add(buffer);
+        requestFlush();
+    }
+
+    //any thread: queue a push, it goes out between two commands (never inside a response)
+    public void push(ByteBuffer frame) {
+        if (state == State.CLOSED) return;
+        pushes.add(frame);
+        schedule();
+    }
+
+    //command thread, between two tasks
+    private void sendPushes() {
+        if (state != State.COMMANDS || pushes.isEmpty()) return;
+        ByteBuffer frame;
+        while ((frame = pushes.poll()) != null) {
+            outbound.add(frame);
+        }
+        requestFlush();
+    }
+
+    public void sendFile(Path path, long position, long length) {
+        outbound.add(new FileRegion(path, position, length));
+        requestFlush();
+    }
+
+    //runs done on the selector thread once everything queued before it has been written (or the connection closed)
+    public void whenSent(Runnable done) {
+        outbound.add(done);
+        requestFlush();
+    }
+
+    private void requestFlush() {
+        if (worker.onSelectorThread()) {
+            flush();
+        } else {
+            worker.wake(this);
+        }
+    }
+
+    //selector thread, after a command thread asked for it: write what was queued, read again if reading was paused
+    void onWake() {
+        if (state == State.CLOSED) return;
+        flush();
+        if (readPaused && state == State.COMMANDS && tasks.size() < MAX_QUEUED_TASKS) {
+            readPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+        if (!readPaused && state == State.COMMANDS) {
+            try {
+                decodeFrames(); // may have arrived while logging in or while paused
+            } catch (IOException e) {
+                System.err.println("IO error with client " + handler.getUsername() + ": " + e.getMessage());
+                close();
+            }
+        }
+    }
+
+    //selector thread: writes as much as the socket takes now, asks for OP_WRITE for the rest
+    private void flush() {
+        if (state == State.CLOSED) return;
+        try {
+            while (!outbound.isEmpty()) {
+                Object next = outbound.peek();
+                if (next instanceof ByteBuffer) {
+                    ByteBuffer buffer = (ByteBuffer) next;
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) break;
+                } else if (next instanceof Runnable) {
+                    ((Runnable) next).run();
+                } else {
+                    FileRegion region = (FileRegion) next;
+                    if (region.file == null) {
+                        region.file = FileChannel.open(region.path, StandardOpenOption.READ);
+                    }
+                    long sent = region.file.transferTo(region.position, region.remaining, channel);
+                    region.position += sent;
+                    region.remaining -= sent;
+                    if (region.remaining > 0) {
+                        if (sent == 0 && region.position >= region.file.size()) {
+                            throw new IOException("File shrank during transfer");
+                        }
+                        break;
+                    }
+                    region.file.close();
+                }
+                outbound.poll();
+            }
+        } catch (IOException e) {
+            System.err.println("Write error for " + handler.getUsername() + ": " + e.getMessage());
+            close();
+            return;
+        }
+
+        if (outbound.isEmpty()) {
+            if (closeWhenFlushed) {
+                close();
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    // ---- inbound ----
+
+    void onReadable() {
+        try {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                System.out.println("Client disconnected: " + handler.getUsername());
+                close();
+                return;
+            }
+            decodeFrames();
+
+            // a frame bigger than the buffer is still arriving, grow
+            if (!readPaused && !readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= MAX_READ_BUFFER) {
+                    throw new IOException("Frame too large");
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_READ_BUFFER));
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+        } catch (IOException e) {
+            System.err.println("IO error with client " + handler.getUsername() + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    //selector thread: complete frames in the read buffer go to the command threads
+    private void decodeFrames() throws IOException {
+        readBuffer.flip();
+        try {
+            if (state == State.HANDSHAKE) {
+                readHandshake();
+            }
+            while (state == State.COMMANDS) {
+                if (tasks.size() >= MAX_QUEUED_TASKS) {
+                    // the rest stays in the buffer (and in the socket) until the commands catch up
+                    readPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    break;
+                }
+                Frame frame = Frame.decode(readBuffer);
+                if (frame == null) break;
+                submit(() -> dispatch(frame));
+            }
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    private void submit(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    //one command thread at a time per connection: starts a drain unless one is running
+    private void schedule() {
+        if (running.compareAndSet(false, true)) {
+            try {
+                worker.commands().execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                running.set(false);
+                close();
+            }
+        }
+    }
+
+    //command thread: runs the queued tasks in order, pushes go out between them
+    private void drain() {
+        try {
+            Runnable task;
+            while (state != State.CLOSED) {
+                sendPushes();
+                if ((task = tasks.poll()) == null) break;
+                if (readPaused) {
+                    worker.wake(this); // room again, the selector can go on reading
+                }
+                task.run();
+            }
+        } finally {
+            running.set(false);
+        }
+        if (state == State.CLOSED) {
+            cleanup(); // close() didn't, a command was still running
+        } else if (!tasks.isEmpty() || (state == State.COMMANDS && !pushes.isEmpty())) {
+            schedule(); // added after the last poll
+        }
+    }
+
+    //same semantics as the blocking handler: a failing command is reported and the session goes on
+    private void dispatch(Frame frame) {
+        try {
+            handler.handleFrame(frame);
+        } catch (Exception e) {
+            System.out.println("Error processing command from " + handler.getUsername() + ": " + e.getMessage());
+        }
+        if (!handler.isAuthenticated()) {
+            // LOGOUT
+            closeAfterFlush();
+        }
+    }
+
+    //stream header (4 bytes) + TC_STRING + modified UTF-8 login line
+    private void readHandshake() throws IOException {
+        if (readBuffer.remaining() < STREAM_HEADER.length + 3) return;
+        int start = readBuffer.position();
+        for (int i = 0; i < STREAM_HEADER.length; i++) {
+            if (readBuffer.get(start + i) != STREAM_HEADER[i]) {
+                throw new IOException("Not a java object stream");
+            }
+        }
+        if (readBuffer.get(start + 4) != TC_STRING) {
+            throw new IOException("Expected login string");
+        }
+        int utfLength = readBuffer.getShort(start + 5) & 0xFFFF;
+        if (readBuffer.remaining() < STREAM_HEADER.length + 1 + 2 + utfLength) return;
+
+        byte[] utf = new byte[2 + utfLength];
+        readBuffer.position(start + 5);
+        readBuffer.get(utf);
+        String login = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+        state = State.LOGIN;
+        submit(() -> login(login));
+    }
+
+    //command thread: logging in reads and creates the user's directories
+    private void login(String login) {
+        String reply;
+        String[] loginParts = login.split(Protocol.DELIMITER);
+        boolean binary = loginParts.length > 1 && loginParts[1].equals(Protocol.BINARY); // plain or ATTACH login
+        if (!binary) {
+            reply = Protocol.DENIED + Protocol.DELIMITER + "This server only speaks the binary protocol.";
+        } else {
+            reply = handler.acceptLogin(login);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeSerializedString(out, reply);
+        send(ByteBuffer.wrap(out.toByteArray()));
+
+        if (handler.isAuthenticated() && moveTo(State.COMMANDS)) {
+            worker.wake(this); // frames sent right after the login are waiting in the read buffer
+        } else {
+            closeAfterFlush();
+        }
+    }
+
+    private void closeAfterFlush() {
+        if (!moveTo(State.CLOSING)) return;
+        closeWhenFlushed = true;
+        requestFlush();
+    }
+
+    //state changes that can race with close() on the selector thread: CLOSED is final
+    private synchronized boolean moveTo(State next) {
+        if (state == State.CLOSED) return false;
+        state = next;
+        return true;
+    }
+
+    private static void writeSerializedString(ByteArrayOutputStream out, String text) {
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeByte(TC_STRING);
+            data.writeUTF(text); // login prompts/replies are short, no TC_LONGSTRING needed
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ---- shutdown ----
+
+    //selector thread: login not done in time, or a session with nothing to send that hasn't
+    //sent a command for the idle timeout
+    void closeIfTimedOut(long now) {
+        Admission admission = ServerConfig.getAdmission();
+        if (state == State.HANDSHAKE && now - acceptedAt > admission.getHandshakeTimeoutMs()) {
+            admission.handshakeTimedOut(getRemoteAddress());
+            close();
+        } else if (state == State.COMMANDS && admission.getIdleTimeoutMs() > 0 && outbound.isEmpty() && !running.get()
+                && now - handler.getLastActivity() > admission.getIdleTimeoutMs()) {
+            admission.idleTimedOut(handler.getUsername());
+            close();
+        }
+    }
+
+    //selector thread
+    void close() {
+        synchronized (this) {
+            if (state == State.CLOSED) return;
+            state = State.CLOSED;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing connection: " + e.getMessage());
+        }
+        discardOutbound();
+        pushes.clear();
+        tasks.clear();
+        if (!running.get()) {
+            cleanup(); // else the command thread does it when its command returns
+        }
+    }
+
+    //after close: the command that was running may have queued more output since
+    private void cleanup() {
+        if (cleanedUp.compareAndSet(false, true)) {
+            discardOutbound();
+            handler.cleanup();
+        }
+    }
+
+    private void discardOutbound() {
+        Object pending;
+        while ((pending = outbound.poll()) != null) {
+            if (pending instanceof FileRegion && ((FileRegion) pending).file != null) {
+                try {
+                    ((FileRegion) pending).file.close();
+                } catch (IOException ignored) {
+                }
+            } else if (pending instanceof Runnable) {
+                ((Runnable) pending).run();
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Event driven server mode: one acceptor + a few selector threads instead of a thread per client.
+// Each accepted channel is pinned to one IoWorker, which does the socket reads and writes. The
+// commands (same ClientHandler code as the thread-per-connection mode) block on disk, so they run on
+// a shared pool of command threads, one at a time per connection and in order (see NioConnection).
+// Connection limits are the same as in thread mode (Admission), minus the accept queue: a connection
+// costs no thread here, it is served or denied. Each worker checks its connections for the login
+// and idle timeouts every SWEEP_MS.
+public class NioServer {
+    private static final long SWEEP_MS = 1000;
+
+    public static void run(int port, int ioThreads, int commandThreads) throws IOException {
+        AtomicInteger commandThreadNumber = new AtomicInteger();
+        ExecutorService commands = Executors.newFixedThreadPool(commandThreads, task -> {
+            Thread thread = new Thread(task, "nio-command-" + commandThreadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        IoWorker[] workers = new IoWorker[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            workers[i] = new IoWorker(commands);
+            Thread thread = new Thread(workers[i], "nio-io-" + i);
+            thread.setDaemon(true);
+            workers[i].thread = thread;
+            thread.start();
+        }
+
+        Admission admission = ServerConfig.getAdmission();
+        admission.startReporting();
+        try (ServerSocketChannel welcomeSocket = ServerSocketChannel.open()) {
+            welcomeSocket.bind(new InetSocketAddress(port));
+            System.out.println("Server is listening on port " + port + " (NIO, " + ioThreads + " I/O threads, "
+                + commandThreads + " command threads)...");
+
+            int next = 0;
+            while (true) {
+                try {
+                    SocketChannel channel = welcomeSocket.accept(); // blocking accept, the workers never block
+                    Admission.Ticket ticket = admission.admit(channel.socket());
+                    if (ticket == null) {
+                        continue; // denied, the client has been told
+                    }
+                    System.out.println("Connection established from: " + channel.socket().getInetAddress().getHostAddress());
+                    workers[next].add(new NioConnection(channel, workers[next], ticket));
+                    next = (next + 1) % workers.length;
+                } catch (IOException e) {
+                    System.err.println("Error accepting client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // one selector thread, serving many connections
+    static class IoWorker implements Runnable {
+        private final Selector selector;
+        private final ExecutorService commands;
+        private final Queue<NioConnection> newConnections = new ConcurrentLinkedQueue<>();
+        private long lastSweep = System.currentTimeMillis();
+        private final Queue<NioConnection> woken = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+
+        IoWorker(ExecutorService commands) throws IOException {
+            this.selector = Selector.open();
+            this.commands = commands;
+        }
+
+        ExecutorService commands() {
+            return commands;
+        }
+
+        boolean onSelectorThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        void add(NioConnection connection) {
+            newConnections.add(connection);
+            selector.wakeup();
+        }
+
+        //a command thread queued output for a connection of this worker, or made room to read again
+        void wake(NioConnection connection) {
+            woken.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(SWEEP_MS);
+                    registerNewChannels();
+                    NioConnection woke;
+                    while ((woke = woken.poll()) != null) {
+                        woke.onWake();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                    sweep();
+                } catch (Exception e) {
+                    System.err.println("Selector error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerNewChannels() {
+            NioConnection connection;
+            while ((connection = newConnections.poll()) != null) {
+                try {
+                    SocketChannel channel = connection.channel();
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.register(key);
+                } catch (IOException e) {
+                    System.err.println("Error registering connection: " + e.getMessage());
+                    connection.close();
+                }
+            }
+        }
+
+        //closes connections past their login / idle timeout
+        private void sweep() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < SWEEP_MS) return;
+            lastSweep = now;
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.isValid()) {
+                    ((NioConnection) key.attachment()).closeIfTimedOut(now);
+                }
+            }
+        }
+    }
+}
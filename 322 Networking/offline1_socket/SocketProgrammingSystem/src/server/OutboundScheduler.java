@@ -0,0 +1,208 @@
+package server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import utils.Frame;
+
+// Output side of a multiplexed connection (MUX at login). Every request in flight writes into its
+// own Stream, one writer thread owns the socket and takes one item from each stream that has
+// something, in turn. A download goes out as BULK slices of at most SLICE bytes, so the reply to a
+// LIST asked for in the middle of it waits for one slice, not for the whole file.
+// Untagged replies (uploads, old style commands) and NOTIFY pushes are two more streams in the
+// rotation. A stream holds at most its capacity items: a download is never more than a few slices
+// ahead of the socket, pushes beyond MAX_PENDING_PUSHES are dropped (they are in VIEW_MESSAGES anyway).
+// Within one stream the order is kept, between streams there is no order.
+public class OutboundScheduler {
+    public static final int SLICE = 256 * 1024; // body bytes one request sends before the next one gets a turn
+    private static final int STREAM_CAPACITY = 8;
+
+    // one thing the writer sends in one go: a frame, or a BULK header and its slice of the body
+    public interface Item {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // replies of one request. Not registered anywhere: it is in the rotation only while it has items
+    public class Stream {
+        private final int tag;
+        private final int capacity;
+        private final ArrayDeque<Item> items = new ArrayDeque<>();
+        private boolean writing; // writer has taken an item and not finished it yet
+
+        private Stream(int tag, int capacity) {
+            this.tag = tag;
+            this.capacity = capacity;
+        }
+
+        public int tag() {
+            return tag;
+        }
+
+        //queues an item, waits while the stream is full. IOException once the connection is gone
+        public void add(Item item) throws IOException {
+            lock.lock();
+            try {
+                while (open && items.size() >= capacity) {
+                    space.awaitUninterruptibly();
+                }
+                enqueue(item);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //queues an item unless the stream is full (never waits)
+        public boolean offer(Item item) {
+            lock.lock();
+            try {
+                if (!open || items.size() >= capacity) {
+                    return false;
+                }
+                enqueue(item);
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void sendText(byte opcode, String text) throws IOException {
+            add(out -> Frame.writeText(out, opcode, tag, text));
+        }
+
+        //waits until everything queued so far is on the wire (a download keeps its file open until then)
+        public void finish() throws IOException {
+            lock.lock();
+            try {
+                while (open && (!items.isEmpty() || writing)) {
+                    space.awaitUninterruptibly();
+                }
+                if (!open) {
+                    throw new IOException("Connection closed");
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //lock held
+        private void enqueue(Item item) throws IOException {
+            if (!open) {
+                throw new IOException("Connection closed");
+            }
+            if (items.isEmpty()) {
+                ready.add(this);
+                work.signal();
+            }
+            items.add(item);
+        }
+    }
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition work = lock.newCondition();  // writer waits for items
+    private final Condition space = lock.newCondition(); // producers wait for room / for their items to go out
+    private final ArrayDeque<Stream> ready = new ArrayDeque<>(); // streams with items, in turn order
+    private final Stream untagged = new Stream(0, STREAM_CAPACITY);
+    private final Stream pushes;
+    private boolean open = true;
+
+    public OutboundScheduler(Socket socket, DataOutputStream out, int maxPendingPushes) {
+        this.socket = socket;
+        this.out = out;
+        this.pushes = new Stream(0, maxPendingPushes);
+    }
+
+    public void start(String name) {
+        Thread writer = new Thread(this::writeLoop, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    //replies of one tagged request
+    public Stream open(int tag) {
+        return new Stream(tag, STREAM_CAPACITY);
+    }
+
+    //replies without a tag, in the order they are sent (upload acks, untagged commands)
+    public Stream untagged() {
+        return untagged;
+    }
+
+    //NOTIFY push, false if too many are waiting
+    public boolean push(String text) {
+        return pushes.offer(out -> Frame.writeText(out, Frame.NOTIFY, text));
+    }
+
+    //connection is going away: queued items are dropped, waiting producers get an IOException
+    public void close() {
+        lock.lock();
+        try {
+            open = false;
+            ready.clear();
+            work.signalAll();
+            space.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Stream stream;
+                Item item;
+                boolean idle;
+                lock.lock();
+                try {
+                    while (open && ready.isEmpty()) {
+                        work.awaitUninterruptibly();
+                    }
+                    if (!open) {
+                        return;
+                    }
+                    stream = ready.poll();
+                    item = stream.items.poll();
+                    if (!stream.items.isEmpty()) {
+                        ready.add(stream); // back of the line, the others go first
+                    }
+                    stream.writing = true;
+                    space.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+
+                item.write(out);
+                lock.lock();
+                try {
+                    idle = ready.isEmpty();
+                } finally {
+                    lock.unlock();
+                }
+                if (idle) {
+                    out.flush(); // nothing else waiting, don't sit on a half full buffer
+                }
+
+                lock.lock();
+                try {
+                    stream.writing = false;
+                    space.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the client is gone: the handler's read fails too and cleans up
+            close();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
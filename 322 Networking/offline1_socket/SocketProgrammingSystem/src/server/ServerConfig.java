@@ -1,40 +1,59 @@
 package server;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import models.ChunkInfo;
 import models.FileMetadata;
 import models.FileRequest;
 import models.Message;
 
 public class ServerConfig {
-    public static final long MAX_BUFFER_SIZE = 1500 * 1024 * 1024; // 1500 MB
+    public static final long MAX_BUFFER_SIZE = 1500 * 1024 * 1024; // 1500 MB of upload staging on disk (not heap)
     public static final int MIN_CHUNK_SIZE = 50*1024;
     public static final int MAX_CHUNK_SIZE = 500*1024;
     public static final int SERVER_PORT = 6666;
-    private static long currentBufferUsage = 0;
+    // a half finished upload survives its owner's disconnect this long, so it can be resumed
+    public static final long UPLOAD_RESUME_TTL_MS = 30 * 60 * 1000;
+    // staging space per upload, reserved with a compare-and-set (no monitor, virtual threads would pin on it)
+    private static final BufferBudget bufferBudget = new BufferBudget(MAX_BUFFER_SIZE);
+    // connection limits and timeouts (configured from the server's startup options)
+    private static final Admission admission = new Admission();
 
     public static final String SERVER_DATA_DIR = "server_data/";
 
 
     private static Map<String,ClientHandler> onlineClients = new ConcurrentHashMap<>(); //concurrent for thread safety
+    // session token of each online binary client, lets its extra transfer connections ATTACH
+    private static Map<String, String> sessionTokens = new ConcurrentHashMap<>();
+    private static final java.security.SecureRandom tokenRandom = new java.security.SecureRandom();
 
     //all registered client ever connnected
     public static Set<String> allClients = ConcurrentHashMap.newKeySet();
-    // File metadata: fileID -> FileMetadata
-    private static Map<String, FileMetadata> fileRegistry = new ConcurrentHashMap<>();
-    // File requests: requestID -> FileRequest
-    private static Map<String, FileRequest> fileRequests = new ConcurrentHashMap<>();
+    // IDs for files, requests and messages (time ordered longs, see IdAllocator)
+    private static final IdAllocator ids = new IdAllocator();
+    // File metadata: fileID -> FileMetadata, with owner / public / (owner, name) indexes
+    private static FileCatalog fileRegistry = new FileCatalog(ids);
+    // File requests: requestID (the number) -> FileRequest
+    private static Map<Long, FileRequest> fileRequests = new ConcurrentHashMap<>();
     // Ongoing uploads: fileID -> ChunkInfo
     private static Map<String, ChunkInfo> ongoingUploads = new ConcurrentHashMap<>(); //upload progress track korar jonne
-    // File chunks buffer: fileID -> List of byte arrays
-    private static Map<String, List<byte[]>> fileChunksBuffer = new ConcurrentHashMap<>(); //upload temp storage
-    // Messages: username -> List<Message>
-    private static Map<String, List<Message>> userMessages = new ConcurrentHashMap<>();
+    // Upload staging: fileID -> open temp file the chunks are written into at their offsets
+    private static Map<String, FileChannel> stagingFiles = new ConcurrentHashMap<>(); //upload temp storage
+    // Chunk sizing: fileID -> controller that adapts the chunk size while the upload runs
+    private static Map<String, ChunkSizer> chunkSizers = new ConcurrentHashMap<>();
+    // Messages: segmented append-only store, mailboxes loaded on first use
+    private static MessageStore messageStore = new MessageStore(ids);
+    // uploaded file contents, deduplicated by block (user paths hold manifests)
+    private static BlobStore blobStore = new BlobStore();
     
 
     //check if client is online
@@ -42,6 +61,56 @@ public class ServerConfig {
         return onlineClients.containsKey(username); 
     }
 
+    //new random token for username's session (replaces any old one)
+    public static String createSession(String username) {
+        byte[] bytes = new byte[16];
+        tokenRandom.nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        sessionTokens.put(username, token.toString());
+        return token.toString();
+    }
+
+    public static boolean isValidSession(String username, String token) {
+        String expected = sessionTokens.get(username);
+        return expected != null && java.security.MessageDigest.isEqual(
+            expected.getBytes(java.nio.charset.StandardCharsets.UTF_8), token.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    public static void endSession(String username) {
+        sessionTokens.remove(username);
+    }
+
+    //handler of username's main connection, null if offline
+    public static ClientHandler getOnlineHandler(String username) {
+        return onlineClients.get(username);
+    }
+
+    //letters, digits and _ : a username names the user's directory and message index, so no
+    //"..", "/" or leading "." (server data) may get in
+    private static final java.util.regex.Pattern USERNAME = java.util.regex.Pattern.compile("[A-Za-z0-9_]{1,64}");
+
+    public static boolean isValidUsername(String username) {
+        return username != null && USERNAME.matcher(username).matches();
+    }
+
+    //an uploaded file is stored under its name in the user's directory, next to the server's own
+    //files there: hidden ones (staging, upload state, temp) and the activity log. None of those
+    //names, and nothing that leaves the directory
+    public static boolean isValidFileName(String fileName) {
+        return fileName != null && !fileName.isEmpty() && fileName.length() <= 255
+            && !fileName.startsWith(".") && !fileName.contains("/") && !fileName.contains("\\")
+            && !fileName.contains("..") && fileName.indexOf('\0') < 0
+            && !fileName.equals("activity_log.txt") && !fileName.equals("activity_log.idx");
+    }
+
+    //has logged in at some point (has a directory)
+    public static boolean isRegistered(String username) {
+        return allClients.contains(username);
+    }
+
     //add online client
     public static void addOnlineClient(String username, ClientHandler handler){
         onlineClients.put(username, handler);
@@ -59,42 +128,53 @@ public class ServerConfig {
         return new HashSet<>(onlineClients.keySet());
     }
     public static List<FileMetadata> getFilesOwnedBy(String username) {
-        List<FileMetadata> files = new ArrayList<>();
-        for (FileMetadata metadata : fileRegistry.values()) {
-            if (metadata.getOwner().equals(username)) {
-                files.add(metadata);
-            }
-        }
-        return files;
+        return fileRegistry.getFilesOwnedBy(username);
     }
     public static List<FileMetadata> getPublicFilesNotOwnedBy(String username) {
-        List<FileMetadata> files = new ArrayList<>();
-        for (FileMetadata metadata : fileRegistry.values()) {
-            if (!metadata.getOwner().equals(username) && 
-                metadata.getAccessType().equals(utils.Protocol.PUBLIC)) {
-                files.add(metadata);
-            }
-        }
-        return files;
+        return fileRegistry.getPublicFilesNotOwnedBy(username);
     }
-    public static FileRequest getFileRequest(String requestID) {
+    public static FileRequest getFileRequest(long requestID) {
         return fileRequests.get(requestID);
     }
 
-    public static synchronized void addBufferUsage(long size) {
-        currentBufferUsage += size;
+    //staging space for upload fileID, held until completeUpload / cancelUpload
+    public static BufferBudget.Result reserveBuffer(String fileID, String username, long size) {
+        BufferBudget.Result result = bufferBudget.reserve(fileID, username, size);
+        if (result != BufferBudget.Result.RESERVED) {
+            System.out.println("Upload of " + size + " bytes by " + username + " denied (" + result + "): " + bufferBudget.summary());
+        }
+        return result;
     }
-    
-    public static synchronized void removeBufferUsage(long size) {
-        currentBufferUsage -= size;
+
+    public static Admission getAdmission() {
+        return admission;
     }
-    
-    public static synchronized long getCurrentBufferUsage() {
-        return currentBufferUsage;
+
+    public static long getCurrentBufferUsage() {
+        return bufferBudget.getUsed();
     }
-    // Add this method to ServerConfig.java
-    public static Map<String, List<byte[]>> getAllFileChunksMap() {
-        return fileChunksBuffer;
+
+    public static long getBufferUsageOf(String username) {
+        return bufferBudget.getUsedBy(username);
+    }
+
+    //limit on one user's uploads in progress at a time (0 = only MAX_BUFFER_SIZE applies)
+    public static void setUserQuota(long bytes) {
+        bufferBudget.setUserQuota(bytes);
+    }
+
+    public static long getUserQuota() {
+        return bufferBudget.getUserQuota();
+    }
+    //uploads still in progress for one user (used when the user disconnects)
+    public static List<String> getUploadsOwnedBy(String username) {
+        List<String> fileIDs = new ArrayList<>();
+        for (ChunkInfo info : ongoingUploads.values()) {
+            if (info.getOwner().equals(username)) {
+                fileIDs.add(info.getFileID());
+            }
+        }
+        return fileIDs;
     }
 
     public static void removeOnlineClient(String username) {
@@ -106,94 +186,186 @@ public class ServerConfig {
 
 
 
-    public static synchronized boolean canAccommodateFile(long fileSize) {
-        System.out.println("DEBUGGGGGG=============  current buffer usage : "+ currentBufferUsage + " , requested file size: " + fileSize + " , max buffer size: " + MAX_BUFFER_SIZE);
-        return (currentBufferUsage + fileSize) <= MAX_BUFFER_SIZE;
-    }
-
-    // Generate unique IDs
-    public static int counter1 = 0, counter2 = 0, counter3 = 0;
+    // Generate unique IDs (safe from any number of handler threads)
     public static String generateFileID() {
-        return "FILE_" + System.currentTimeMillis() + "_" + counter1++;
-
+        return ids.next(IdAllocator.FILE_PREFIX);
     }
     
-    public static String generateRequestID() {
-        return "REQ_" + System.currentTimeMillis() + "_" + counter2++;
+    public static long generateRequestID() {
+        return ids.next();
     }
     
-    public static String generateMessageID() {
-        return "MSG_" + System.currentTimeMillis() + "_" + counter3++;
+    public static long generateMessageID() {
+        return ids.next();
+    }
+
+    //set before anything is allocated (server startup)
+    public static void setNodeID(int node) {
+        ids.setNode(node);
     }
 
 
 
     public static void registerFile(String fileID, FileMetadata metadata) {
-        fileRegistry.put(fileID, metadata);
+        fileRegistry.register(fileID, metadata);
     }
 
     //upload
-    public static void startUpload(String fileID, ChunkInfo chunkInfo) {
+    public static void startUpload(String fileID, ChunkInfo chunkInfo, FileChannel staging, ChunkSizer sizer) {
         ongoingUploads.put(fileID, chunkInfo);
-        fileChunksBuffer.put(fileID, new ArrayList<>());
-    }
-     public static void addChunk(String fileID, byte[] chunk) {
-        List<byte[]> chunks = fileChunksBuffer.get(fileID);
-        if (chunks != null) {
-            chunks.add(chunk);
-        }
+        stagingFiles.put(fileID, staging);
+        chunkSizers.put(fileID, sizer);
     }
     public static ChunkInfo getUploadInfo(String fileID) {
         return ongoingUploads.get(fileID);
     }
     
-    public static List<byte[]> getFileChunks(String fileID) {
-        return fileChunksBuffer.get(fileID);
+    public static FileChannel getStagingFile(String fileID) {
+        return stagingFiles.get(fileID);
+    }
+
+    public static ChunkSizer getChunkSizer(String fileID) {
+        return chunkSizers.get(fileID);
     }
     
+    //staged file has already been stored by FileManager.commitStagedFile
     public static void completeUpload(String fileID) {
-        ongoingUploads.remove(fileID);
-        fileChunksBuffer.remove(fileID);
+        ChunkInfo info = ongoingUploads.remove(fileID);
+        if (info != null) {
+            info.end();
+        }
+        chunkSizers.remove(fileID);
+        closeQuietly(stagingFiles.remove(fileID));
+        bufferBudget.release(fileID);
     }
     
+    //owner disconnected: keep what was received on disk (and its buffer reservation) for
+    //UPLOAD_RESUME_TTL_MS, only the file handle is released
+    public static void parkUpload(String fileID) {
+        ChunkInfo info = ongoingUploads.get(fileID);
+        if (info == null) return;
+        synchronized (info) {
+            if (info.isEnded()) return;
+            info.park();
+            closeQuietly(stagingFiles.remove(fileID));
+            FileManager.saveUploadState(info);
+        }
+        System.out.println("Upload " + fileID + " parked at " + info.getCommittedBytes() + "/" + info.getTotalSize() + " bytes");
+    }
+
+    //reattaches a parked upload to a new session of its owner. null if unknown / expired / not theirs
+    public static ChunkInfo resumeUpload(String fileID, String username) throws IOException {
+        ChunkInfo info = ongoingUploads.get(fileID);
+        if (info == null || !info.getOwner().equals(username)) return null;
+        synchronized (info) {
+            if (info.isEnded()) return null; // expired / cancelled since the lookup
+            if (info.isParked()) {
+                stagingFiles.put(fileID, FileManager.reopenStagingFile(username, fileID));
+                info.unpark();
+                FileManager.discardUploadState(username, fileID);
+            }
+        }
+        return info;
+    }
+
+    //parked upload saved before the last shutdown (startup, see FileManager.cleanStagingFiles):
+    //resumable again. false if it has expired or its staging space can't be reserved anymore
+    static boolean restoreParkedUpload(ChunkInfo info) {
+        if (System.currentTimeMillis() - info.getParkedAt() > UPLOAD_RESUME_TTL_MS) return false;
+        if (reserveBuffer(info.getFileID(), info.getOwner(), info.getTotalSize()) != BufferBudget.Result.RESERVED) return false;
+        ids.observe(IdAllocator.parse(IdAllocator.FILE_PREFIX, info.getFileID()));
+        ongoingUploads.put(info.getFileID(), info);
+        return true;
+    }
+
+    //drops parked uploads older than the TTL (runs every minute)
+    static void expireParkedUploads() {
+        for (ChunkInfo info : new ArrayList<>(ongoingUploads.values())) {
+            if (info.expire(UPLOAD_RESUME_TTL_MS)) {
+                System.out.println("Parked upload " + info.getFileID() + " expired");
+                cancelUpload(info.getFileID());
+            }
+        }
+    }
+
+    static {
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "upload-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(ServerConfig::expireParkedUploads, 1, 1, TimeUnit.MINUTES);
+    }
+
+    //also releases a reservation whose upload never got to startUpload
     public static void cancelUpload(String fileID) {
         ChunkInfo info = ongoingUploads.remove(fileID);
-        fileChunksBuffer.remove(fileID);
         if (info != null) {
-            removeBufferUsage(info.getTotalSize());
+            info.end(); // before the staging file goes, a resume waiting on the monitor then gets null
+        }
+        chunkSizers.remove(fileID);
+        closeQuietly(stagingFiles.remove(fileID));
+        if (info != null) {
+            FileManager.discardStagedFile(info.getOwner(), fileID);
+        }
+        bufferBudget.release(fileID);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing staging file: " + e.getMessage());
         }
     }
 
     // Request management
-    public static void addFileRequest(String requestID, FileRequest request) {
+    public static void addFileRequest(long requestID, FileRequest request) {
         fileRequests.put(requestID, request);
     }
     
   
     
-    // Message management
     // Message management
 public static void addMessage(String username, Message message) {
-    userMessages.computeIfAbsent(username, k -> new ArrayList<>()).add(message);
-    
-    // Immediately append to file
-    appendMessageToFile(username, message);
+    messageStore.add(message); // message.getRecipient() == username
+
+    ClientHandler recipient = onlineClients.get(username);
+    if (recipient != null) {
+        recipient.push(message.getContent()); // stays unread until VIEW_MESSAGES
+    }
+}
+
+//stored once, shows up in every other user's messages
+public static void addBroadcast(String sender, Message message) {
+    messageStore.addBroadcast(sender, message);
+
+    for (Map.Entry<String, ClientHandler> online : onlineClients.entrySet()) {
+        if (!online.getKey().equals(sender)) {
+            online.getValue().push(message.getContent());
+        }
+    }
 }
     
     public static List<Message> getUnreadMessages(String username) {
-        List<Message> messages = userMessages.get(username);
-        if (messages == null) return new ArrayList<>();
+        List<Message> messages = messageStore.getAll(username);
         
         List<Message> unread = new ArrayList<>();
         for (Message msg : messages) {
             if (!msg.isRead()) {
                 unread.add(msg);
-                msg.setRead(true);
             }
         }
+        messageStore.markRead(username, messages);
         return unread;
     }
 
+//messages (from getAllMessages) have been shown to the user
+public static void markMessagesRead(String username, List<Message> shown) {
+    messageStore.markRead(username, shown);
+}
+
      // shob directory er name gulo allClients e add korbe
     public static void loadExistingUsers() {
         try {
@@ -206,7 +378,8 @@ public static void addMessage(String username, Message message) {
             }
             
             // Get all subdirectories (each represents a user)
-            java.io.File[] userDirs = dataDir.listFiles(java.io.File::isDirectory); // listfiles( file -> file.isDirectory() )     
+            // (dot directories like .messages are server data, not users)
+            java.io.File[] userDirs = dataDir.listFiles(f -> f.isDirectory() && !f.getName().startsWith("."));
             
             if (userDirs == null || userDirs.length == 0) {
                 System.out.println("No existing users found. Starting fresh.");
@@ -218,6 +391,7 @@ public static void addMessage(String username, Message message) {
             for (java.io.File userDir : userDirs) {
                 String username = userDir.getName();
                 allClients.add(username);
+                FileManager.cleanStagingFiles(username);
                 count++;
             }
             
@@ -229,9 +403,41 @@ public static void addMessage(String username, Message message) {
         }
     }
 
-// file list er jonne activity log theke read korbe
-// age user name er list load kore nite hobe
+public static BlobStore getBlobStore() {
+    return blobStore;
+}
+
+// opens the block store under server_data/.blobs. files stored before it existed are
+// imported (and replaced by their manifest) here, so this runs before the catalog is loaded
+public static void loadBlobStore() {
+    try {
+        blobStore.open(java.nio.file.Paths.get(SERVER_DATA_DIR));
+    } catch (Exception e) {
+        System.err.println("Error opening blob store: " + e.getMessage());
+        e.printStackTrace();
+    }
+}
+
+// file list: snapshot + journal in server_data (fast path). only when there is no saved
+// catalog yet (first start after upgrading) it is rebuilt once from the activity logs
 public static void loadExistingFiles() {
+    try {
+        long start = System.nanoTime();
+        if (fileRegistry.open(java.nio.file.Paths.get(SERVER_DATA_DIR))) {
+            System.out.println("Loaded " + fileRegistry.size() + " file(s) from catalog in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms.");
+            return;
+        }
+        loadFilesFromActivityLogs();
+        fileRegistry.compact();
+    } catch (Exception e) {
+        System.err.println("Error loading file catalog: " + e.getMessage());
+        e.printStackTrace();
+    }
+}
+
+// age user name er list load kore nite hobe
+private static void loadFilesFromActivityLogs() {
     try {
         int fileCount = 0;
         
@@ -258,14 +464,14 @@ public static void loadExistingFiles() {
                         
                         if (fileName != null && accessType != null) {
                             // Check if file still exists on disk jeta log e pailam. dlt implement korle pore lagbe
-                            String filePath = SERVER_DATA_DIR + username + "/" + fileName;
-                            java.io.File file = new java.io.File(filePath);
+                            long fileSize = FileManager.fileSize(username, fileName);
                             
-                            if (file.exists()) {
+                            if (fileSize >= 0) {
                                 // Create metadata and register
                                 String fileID = generateFileID();
-                                FileMetadata metadata = new FileMetadata(fileName, file.length(), username, accessType.trim());
+                                FileMetadata metadata = new FileMetadata(fileName, fileSize, username, accessType.trim());
                                 metadata.setFileID(fileID);
+                                metadata.setSha256(FileManager.fileDigest(username, fileName));
                                 registerFile(fileID, metadata);
                                 fileCount++;
                             }
@@ -308,66 +514,20 @@ private static String extractValue(String line, String startMarker, String endMa
 }
 
 
- //Appends a single message to the file immediately when created
- //format: username|||messageID|||content|||read
-public static void appendMessageToFile(String username, Message msg) {
-    try {
-        String messagePath = SERVER_DATA_DIR + "message_history.txt";
-        
-        try (java.io.FileWriter fw = new java.io.FileWriter(messagePath, true); // true = append mode
-             java.io.BufferedWriter bw = new java.io.BufferedWriter(fw)) {
-            
-            // Format: username|||messageID|||content|||read
-            String line = String.format("%s|||%s|||%s|||%s%n",
-                username,
-                msg.getMessageID(),
-                msg.getContent().replace("\n", "<NEWLINE>"), // Escape newlines
-                msg.isRead()
-            );
-            bw.write(line);
-        }
-    } catch (Exception e) {
-        System.err.println("Error appending message to file: " + e.getMessage());
-    }
-}
-
-// Load messages from file during server startup
+// Open the message store during server startup. mailboxes are read later, on first use.
+// the first run imports the old message_history.txt (left in place, no longer written)
 public static void loadMessagesFromFile() {
     try {
-        String messagePath = SERVER_DATA_DIR + "message_history.txt";
-        java.io.File msgFile = new java.io.File(messagePath);
-        
-        if (!msgFile.exists()) {
-            System.out.println("No message history found. Starting fresh.");
-            return;
-        }
-        
-        int messageCount = 0;
-        
-        try (java.io.BufferedReader br = new java.io.BufferedReader(new java.io.FileReader(msgFile))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split("\\|\\|\\|");
-                
-                if (parts.length == 4) {
-                    String username = parts[0];
-                    String messageID = parts[1];
-                    String content = parts[2].replace("<NEWLINE>", "\n");
-                    boolean read = Boolean.parseBoolean(parts[3]);
-                    
-                    // Reconstruct Message object
-                    Message msg = new Message(messageID, username, content);
-                    msg.setRead(read);
-                    
-                    // Add to userMessages
-                    userMessages.computeIfAbsent(username, k -> new ArrayList<>()).add(msg); //cpmputeIfAbsent = jodi username er jonne list na thake tahole notun list create kore dibe, jodi thake tahole existing list ta return korbe
-                    messageCount++;
-                }
-            }
+        boolean existed = messageStore.open(java.nio.file.Paths.get(SERVER_DATA_DIR, ".messages"));
+        java.io.File legacyFile = new java.io.File(SERVER_DATA_DIR + "message_history.txt");
+
+        if (!existed && legacyFile.exists()) {
+            int messageCount = messageStore.importLegacy(legacyFile.toPath());
+            System.out.println("Imported " + messageCount + " message(s) from message_history.txt.");
+        } else {
+            System.out.println("Message store ready.");
         }
         
-        System.out.println("Loaded " + messageCount + " message(s) from history.");
-        
     } catch (Exception e) {
         System.err.println("Error loading messages: " + e.getMessage());
         e.printStackTrace();
@@ -380,29 +540,16 @@ public static void loadMessagesFromFile() {
 //Get ALL messages (read and unread) for a user
 
 public static List<Message> getAllMessages(String username) {
-    List<Message> messages = userMessages.get(username);
-    if (messages == null) return new ArrayList<>();
-    return new ArrayList<>(messages); // Return a copy
+    return messageStore.getAll(username); // a copy, read flags from the stored watermark
 }
 
 
 // Find existing file by owner and file name
 
 public static String findExistingFile(String username, String fileName) {
-    for (Map.Entry<String, FileMetadata> entry : fileRegistry.entrySet()) {
-        FileMetadata metadata = entry.getValue();
-        if (metadata.getOwner().equals(username) && 
-            metadata.getFileName().equals(fileName)) {
-            return entry.getKey(); // Return the fileID
-        }
-    }
-    return null; // File not found
+    return fileRegistry.find(username, fileName); // null if not found
 }
 
-// Remove file from registry
-public static void removeFile(String fileID) {
-    fileRegistry.remove(fileID);
-}
 
 
 }
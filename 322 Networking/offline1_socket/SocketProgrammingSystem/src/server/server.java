@@ -1,13 +1,60 @@
 package server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
 public class server {
     public static void main(String[] args) {
+        // startup options:
+        //   mode=thread (default) -> one platform thread per connection
+        //   mode=virtual          -> one virtual thread per connection (JDK 21+, else falls back to platform)
+        //   mode=nio              -> selector based server (binary protocol clients only)
+        //   io-threads=N          -> selector threads for mode=nio
+        //   command-threads=N     -> threads running the commands for mode=nio (they block on disk)
+        //   durable-log           -> fsync every batch of activity log entries
+        //   user-quota=MB         -> max size of one user's uploads in progress at a time (default: no limit)
+        //   node=N                -> 0..1023, part of every ID, for servers sharing a data directory
+        //   max-sessions=N        -> connections served at once (default 1000)
+        //   accept-queue=N        -> connections waiting for a free handler before new ones are DENIED (default 100)
+        //   per-ip=N              -> connections from one address (default 32)
+        //   login-timeout=S       -> seconds a new connection has to log in (default 10)
+        //   idle-timeout=S        -> seconds without a command before a session is closed, 0 = never (default 1800)
+        String mode = "thread";
+        int ioThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        int commandThreads = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+        Admission admission = ServerConfig.getAdmission();
+        for (String arg : args) {
+            if (arg.startsWith("mode=")) {
+                mode = arg.substring("mode=".length());
+            } else if (arg.startsWith("io-threads=")) {
+                ioThreads = Integer.parseInt(arg.substring("io-threads=".length()));
+            } else if (arg.startsWith("command-threads=")) {
+                commandThreads = Integer.parseInt(arg.substring("command-threads=".length()));
+            } else if (arg.equals("durable-log")) {
+                ActivityLogger.setDurable(true);
+            } else if (arg.startsWith("max-sessions=")) {
+                admission.setMaxSessions(Integer.parseInt(arg.substring("max-sessions=".length())));
+            } else if (arg.startsWith("accept-queue=")) {
+                admission.setAcceptQueue(Integer.parseInt(arg.substring("accept-queue=".length())));
+            } else if (arg.startsWith("per-ip=")) {
+                admission.setPerAddress(Integer.parseInt(arg.substring("per-ip=".length())));
+            } else if (arg.startsWith("login-timeout=")) {
+                admission.setHandshakeTimeoutMs(Long.parseLong(arg.substring("login-timeout=".length())) * 1000);
+            } else if (arg.startsWith("idle-timeout=")) {
+                admission.setIdleTimeoutMs(Long.parseLong(arg.substring("idle-timeout=".length())) * 1000);
+            } else if (arg.startsWith("node=")) {
+                ServerConfig.setNodeID(Integer.parseInt(arg.substring("node=".length())));
+            } else if (arg.startsWith("user-quota=")) {
+                ServerConfig.setUserQuota(Long.parseLong(arg.substring("user-quota=".length())) * 1024 * 1024);
+            }
+        }
+
         ////////////////create server data directory if not exist
         try {
             Files.createDirectories(Paths.get(ServerConfig.SERVER_DATA_DIR));
@@ -21,8 +68,11 @@ public class server {
         System.out.println("-----FILE SERVER STARTED------");
         System.out.println("Port: " + ServerConfig.SERVER_PORT);
         System.out.println("Max Buffer Size: " + (ServerConfig.MAX_BUFFER_SIZE / (1024 * 1024)) + " MB");
+        System.out.println("Per-user Quota: " + (ServerConfig.getUserQuota() > 0 ? ServerConfig.getUserQuota() / (1024 * 1024) + " MB" : "none"));
         System.out.println("Min Chunk Size: " + (ServerConfig.MIN_CHUNK_SIZE / 1024) + " KB");
         System.out.println("Max Chunk Size: " + (ServerConfig.MAX_CHUNK_SIZE / 1024) + " KB");
+        admission.printLimits();
+        System.out.println("Mode: " + mode);
         System.out.println("===========================");
 
 
@@ -32,6 +82,8 @@ public class server {
         // Load existing users from directory
         System.out.println("\nLoading existing users...");
         ServerConfig.loadExistingUsers();
+        System.out.println("Opening file store...");
+        ServerConfig.loadBlobStore();
         // Load existing files from activity logs
         System.out.println("Loading existing files...");
         ServerConfig.loadExistingFiles();
@@ -40,22 +92,39 @@ public class server {
         ServerConfig.loadMessagesFromFile();
     
  
+        if (mode.equals("nio")) {
+            try {
+                NioServer.run(ServerConfig.SERVER_PORT, ioThreads, commandThreads);
+            } catch (Exception e) {
+                System.err.println("Server error: " + e.getMessage());
+            }
+            return;
+        }
         
 
+        // bounded: at most max-sessions handlers, accept-queue connections wait, the rest are DENIED
+        admission.createWorkers(handlerThreads(mode.equals("virtual")));
+        admission.startReporting();
+
         //crearte server socket
-        try(ServerSocket welcomeSocket = new ServerSocket(ServerConfig.SERVER_PORT)) { //6666
+        //opened as a channel so accepted sockets have a SocketChannel (needed for zero-copy downloads)
+        try(ServerSocketChannel welcomeSocket = ServerSocketChannel.open()) {
+            welcomeSocket.bind(new InetSocketAddress(ServerConfig.SERVER_PORT)); //6666
             System.out.println("Server is listening on port " + ServerConfig.SERVER_PORT + "...");
 
             while (true) {
                 try {
                     // Wait for client connection
                     System.out.println("Waiting for connection...");
-                    Socket socket = welcomeSocket.accept(); // ekhane block kore thakbe joto khon na kono client connect korche
+                    Socket socket = welcomeSocket.accept().socket(); // ekhane block kore thakbe joto khon na kono client connect korche
+                    Admission.Ticket ticket = admission.admit(socket);
+                    if (ticket == null) {
+                        continue; // denied (limits), the client has been told
+                    }
                     System.out.println("Connection established from: " + socket.getInetAddress().getHostAddress()); // client er IP ta dekhabe
                     
-                    // Create and start client handler thread
-                    ClientHandler handler = new ClientHandler(socket);
-                    handler.start(); // new thread e client handle korbe
+                    // Create and start client handler (platform or virtual thread, see handlerThreads)
+                    admission.dispatch(socket, ticket); // worker thread e client handle korbe
                     
                 } catch (IOException e) {
                     System.err.println("Error accepting client connection: " + e.getMessage());
@@ -65,4 +134,29 @@ public class server {
             System.err.println("Server error: " + e.getMessage());
         }
     }
+
+    // Virtual threads: cheap to park in blocking socket reads, so thousands of idle sessions cost
+    // little memory.
+    private static ThreadFactory handlerThreads(boolean virtual) {
+        if (virtual) {
+            ThreadFactory factory = virtualThreads();
+            if (factory != null) {
+                System.out.println("Client handlers run on virtual threads.");
+                return factory;
+            }
+            System.out.println("Virtual threads need JDK 21+, using platform threads.");
+        }
+        return Executors.defaultThreadFactory();
+    }
+
+    //Thread.ofVirtual().factory(), null before JDK 21. Looked up reflectively so the server still
+    //builds and runs on JDK 17
+    static ThreadFactory virtualThreads() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,46 @@
+package utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+// Integrity checks for transfers.
+// crc32c per chunk: the server returns the crc of what it stored in every CHUNK_ACK, the sender
+// compares it with its own and sends a damaged chunk again (the JDK's CRC32C uses the cpu's crc
+// instructions, it costs next to nothing per chunk).
+// sha-256 of the whole file: the server builds it while chunks arrive and keeps it with the file;
+// uploads are checked against the client's digest, downloads are checked by the client.
+public class Checksums {
+
+    public static long crc32c(byte[] data, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JDK has SHA-256
+        }
+    }
+
+    public static String sha256(byte[] data) {
+        return sha256(data, 0, data.length);
+    }
+
+    public static String sha256(byte[] data, int offset, int length) {
+        MessageDigest digest = sha256();
+        digest.update(data, offset, length);
+        return hex(digest.digest());
+    }
+
+    public static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
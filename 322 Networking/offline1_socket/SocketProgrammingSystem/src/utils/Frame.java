@@ -0,0 +1,167 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Frame is one message of the binary wire protocol (used after BINARY is negotiated at login)
+// Layout: opcode(1) | fileID(UTF) | seq(4) | offset(8) | length(4) | payload(length bytes)
+// Text commands/responses travel as CMD/RESP frames, file bytes travel raw in DATA frames (no Base64)
+// BULK is the one exception: its header is followed by bodyLength(8) and then that many raw bytes,
+// so a whole file (even > 2 GB) can be streamed with sendfile instead of being cut into frames
+// On a multiplexed session (MUX at login) seq carries the request tag: a CMD with seq != 0 is
+// answered by RESP / DATA / DEFLATED / BULK frames with the same seq (upload DATA keeps its chunk seq)
+public class Frame {
+    public static final byte CMD = 1;   // client -> server text command
+    public static final byte RESP = 2;  // server -> client text response
+    public static final byte DATA = 3;  // raw file bytes (upload or download chunk)
+    public static final byte BULK = 4;  // header only, raw body of bulkLength bytes follows
+    public static final byte NOTIFY = 5; // server -> client text pushed without a request (new message)
+    public static final byte DEFLATED = 6; // a DATA chunk compressed with ChunkCodec (only after DEFLATE was negotiated)
+
+    // one frame never carries more than this, protects against garbage length fields
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    private final byte opcode;
+    private final String fileID;
+    private final int seq;
+    private final long offset;
+    private final byte[] payload;
+    private long bulkLength;
+
+    public Frame(byte opcode, String fileID, int seq, long offset, byte[] payload) {
+        this.opcode = opcode;
+        this.fileID = fileID;
+        this.seq = seq;
+        this.offset = offset;
+        this.payload = payload;
+    }
+
+    public byte getOpcode() { return opcode; }
+    public String getFileID() { return fileID; }
+    public int getSeq() { return seq; }
+    public long getOffset() { return offset; }
+    public byte[] getPayload() { return payload; }
+    public int getLength() { return payload.length; }
+    public long getBulkLength() { return bulkLength; }
+
+    public String getText() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    //writes header + payload slice, caller decides when to flush
+    public static void write(DataOutputStream out, byte opcode, String fileID, int seq, long offset,
+                             byte[] buf, int off, int len) throws IOException {
+        out.writeByte(opcode);
+        out.writeUTF(fileID == null ? "" : fileID);
+        out.writeInt(seq);
+        out.writeLong(offset);
+        out.writeInt(len);
+        out.write(buf, off, len);
+    }
+
+    public static void writeText(DataOutputStream out, byte opcode, String text) throws IOException {
+        writeText(out, opcode, 0, text);
+    }
+
+    //seq of a CMD / RESP frame is its request tag on a multiplexed session (0 = untagged)
+    public static void writeText(DataOutputStream out, byte opcode, int seq, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        write(out, opcode, "", seq, 0, bytes, 0, bytes.length);
+    }
+
+    //header of a BULK frame. caller flushes and then writes exactly bodyLength raw bytes
+    public static void writeBulkHeader(DataOutputStream out, String fileID, long offset, long bodyLength) throws IOException {
+        writeBulkHeader(out, fileID, 0, offset, bodyLength);
+    }
+
+    public static void writeBulkHeader(DataOutputStream out, String fileID, int seq, long offset, long bodyLength) throws IOException {
+        write(out, BULK, fileID, seq, offset, new byte[0], 0, 0);
+        out.writeLong(bodyLength);
+    }
+
+    //blocks until one whole frame is read (only the header for BULK, the caller reads the body). EOFException when the peer closed the socket
+    public static Frame read(DataInputStream in) throws IOException {
+        byte opcode = in.readByte();
+        String fileID = in.readUTF();
+        int seq = in.readInt();
+        long offset = in.readLong();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        Frame frame = new Frame(opcode, fileID, seq, offset, payload);
+        if (opcode == BULK) {
+            frame.bulkLength = in.readLong();
+        }
+        return frame;
+    }
+
+    // ---- ByteBuffer versions for the non-blocking (selector) server ----
+
+    //same bytes as write(), ready to be written to a channel
+    public static ByteBuffer encode(byte opcode, String fileID, int seq, long offset, byte[] buf, int off, int len) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(len + 32);
+        try {
+            write(new DataOutputStream(bytes), opcode, fileID, seq, offset, buf, off, len);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // cannot happen for an in-memory stream
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    public static ByteBuffer encodeText(byte opcode, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return encode(opcode, "", 0, 0, bytes, 0, bytes.length);
+    }
+
+    public static ByteBuffer encodeBulkHeader(String fileID, long offset, long bodyLength) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            writeBulkHeader(new DataOutputStream(bytes), fileID, offset, bodyLength);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    //decodes one frame from a buffer in read mode. returns null (position untouched) if the frame
+    //has not fully arrived yet. BULK frames are not accepted here, clients never send them
+    public static Frame decode(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        if (buf.remaining() < 3) {
+            return null;
+        }
+        byte opcode = buf.get(start);
+        int utfLength = buf.getShort(start + 1) & 0xFFFF;
+        int headerLength = 1 + 2 + utfLength + 4 + 8 + 4;
+        if (buf.remaining() < headerLength) {
+            return null;
+        }
+        int length = buf.getInt(start + headerLength - 4);
+        if (length < 0 || length > MAX_PAYLOAD || opcode == BULK) {
+            throw new IOException("Invalid frame (opcode " + opcode + ", length " + length + ")");
+        }
+        if (buf.remaining() < headerLength + length) {
+            return null;
+        }
+
+        byte[] utf = new byte[2 + utfLength];
+        buf.position(start + 1);
+        buf.get(utf);
+        String fileID = new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+        int seq = buf.getInt();
+        long offset = buf.getLong();
+        buf.getInt(); // length, already read
+        byte[] payload = new byte[length];
+        buf.get(payload);
+        return new Frame(opcode, fileID, seq, offset, payload);
+    }
+}
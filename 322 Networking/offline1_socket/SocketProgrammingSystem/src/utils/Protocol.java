@@ -8,9 +8,27 @@ public class Protocol {
     public static final String LIST_CLIENTS = "LIST_CLIENTS";
     public static final String LIST_OWN_FILES = "LIST_OWN_FILES";
     public static final String LIST_PUBLIC_FILES = "LIST_PUBLIC_FILES";
+    //UPLOAD_REQUEST:::fileName:::size:::access:::requestID[:::rttMicros:::window]
+    //(rtt/window are the client's measured round trip and chunks in flight, they seed the chunk size)
     public static final String UPLOAD_REQUEST = "UPLOAD_REQUEST";
     public static final String UPLOAD_CHUNK = "UPLOAD_CHUNK";
+    //UPLOAD_COMPLETE:::fileID[:::sha256] (with the digest, an upload whose bytes hash differently fails)
     public static final String UPLOAD_COMPLETE = "UPLOAD_COMPLETE";
+    //UPLOAD_RESUME:::fileID -> UPLOAD_RESUME:::fileID:::committedBytes:::chunkSize (after a reconnect)
+    public static final String UPLOAD_RESUME = "UPLOAD_RESUME";
+    //UPLOAD_CONFIRMED:::fileID:::chunkSize:::blockSize, then optionally
+    //UPLOAD_HASHES:::fileID:::sha256,sha256,... (one per blockSize block) -> UPLOAD_HASHES:::fileID:::committed:::present
+    //present has a '1' for every block the server already had, those bytes need not be sent
+    public static final String UPLOAD_HASHES = "UPLOAD_HASHES";
+    //re-uploads (UPLOAD_CONFIRMED has a 5th field, the size of the stored version, -1 if none):
+    //UPLOAD_SIGNATURES:::fileID -> UPLOAD_SIGNATURES:::fileID:::blockSize:::version:::weak:strong,...
+    //UPLOAD_DELTA:::fileID:::version:::newOffset:block,... -> UPLOAD_DELTA:::fileID:::committed:::copiedBytes
+    //(the listed old blocks are copied into the new file server side, the rest is sent as usual)
+    public static final String UPLOAD_SIGNATURES = "UPLOAD_SIGNATURES";
+    public static final String UPLOAD_DELTA = "UPLOAD_DELTA";
+    //FILE_INFO:::owner:::fileName -> FILE_INFO:::fileName:::size[:::sha256] (to split a download into ranges)
+    public static final String FILE_INFO = "FILE_INFO";
+    //DOWNLOAD_REQUEST:::owner:::fileName[:::offset[:::length]]
     public static final String DOWNLOAD_REQUEST = "DOWNLOAD_REQUEST";
     public static final String MAKE_FILE_REQUEST = "MAKE_FILE_REQUEST";
     public static final String VIEW_MESSAGES = "VIEW_MESSAGES";
@@ -24,9 +42,35 @@ public class Protocol {
     public static final String BUFFER_FULL = "BUFFER_FULL";
     public static final String UPLOAD_CONFIRMED = "UPLOAD_CONFIRMED";
     public static final String DOWNLOAD_COMPLETE = "DOWNLOAD_COMPLETE";
+    //DOWNLOAD_START:::fileName:::fileSize:::offset:::length[:::sha256] (length bytes follow, starting at
+    //offset. sha256 = digest of the whole file, for the client to check, missing for old files)
     public static final String DOWNLOAD_START = "DOWNLOAD_START";
+    //CHUNK_ACK:::fileID:::seq:::committedBytes:::chunkSize:::bytesPerSec:::crc32c
+    //chunkSize = size to use for the chunks still to send (adapted while the upload runs),
+    //bytesPerSec = upload rate the server measured (0 until it has a sample),
+    //crc32c = of the chunk as the server stored it (acks come in send order, the sender matches them up)
     public static final String CHUNK_ACK = "CHUNK_ACK";
 
+    //wire format negotiated at login: "username:::BINARY" -> "SUCCESS:::welcome:::BINARY"
+    //without it both sides keep the old Base64-in-String object stream
+    public static final String BINARY = "BINARY";
+    //a binary login also returns a session token: "SUCCESS:::welcome:::BINARY:::token".
+    //extra connections of that session log in with "username:::BINARY:::ATTACH:::token" and only
+    //carry transfer ranges (parallel upload / download streams)
+    public static final String ATTACH = "ATTACH";
+    //chunk compression: a login line ending in ":::DEFLATE" asks for it, a reply ending in ":::DEFLATE"
+    //means the server agreed. Either side may then send any chunk compressed (ChunkCodec):
+    //binary = DEFLATED frame instead of DATA, legacy = UPLOAD_CHUNK:::...:::offset:::DEFLATE upload
+    //chunks and "DEFLATE:::base64" download chunks
+    public static final String DEFLATE = "DEFLATE";
+    //multiplexed session: "username:::BINARY:::MUX[:::DEFLATE]" asks for it, the reply has ":::MUX"
+    //after the token if the server agreed. The client may then tag a CMD frame (its seq, != 0) and
+    //send more commands before it is answered. Lists, messages, history, file info, file requests and
+    //downloads with a tag run side by side, their frames carry the same tag and take turns on the
+    //socket (a download in BULK slices). Untagged commands and everything of an upload are handled
+    //in order as before. Thread mode main connections only (not NIO, not ATTACH connections)
+    public static final String MUX = "MUX";
+
 
 
     //server responses
@@ -0,0 +1,47 @@
+package utils;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// rsync style block signatures for delta uploads.
+// weak = adler-like sum that can be rolled one byte forward in O(1), strong = sha-256 (first 16
+// bytes) to confirm a weak match. The server signs the blocks of the stored version, the client
+// slides a window over the new file and looks every position up by its weak sum.
+public class RollingChecksum {
+    public static final int MIN_BLOCK = 2 * 1024;
+    public static final int MAX_BLOCK = 128 * 1024;
+
+    //signature block size for a file, ~sqrt(size) like rsync (so the signature list stays small)
+    public static int blockSize(long fileSize) {
+        long size = (long) Math.sqrt((double) fileSize);
+        size = (size + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, size));
+    }
+
+    public static int weak(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    //weak sum of the window moved one byte: out leaves at the front, in enters at the back
+    public static int roll(int weak, byte out, byte in, int length) {
+        int a = weak & 0xFFFF;
+        int b = weak >>> 16;
+        int x = out & 0xFF;
+        a = (a - x + (in & 0xFF)) & 0xFFFF;
+        b = (b - length * x + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    public static String strong(byte[] data, int offset, int length) {
+        MessageDigest digest = Checksums.sha256();
+        digest.update(data, offset, length);
+        return Checksums.hex(Arrays.copyOf(digest.digest(), 16));
+    }
+}